@@ -16,6 +16,7 @@
 
 package com.android.contacts;
 
+import com.android.contacts.RecentCallsListActivity.ContactInfo;
 import com.android.internal.telephony.CallerInfo;
 
 import android.app.ListActivity;
@@ -85,12 +86,16 @@ public class CallDetailActivity extends ListActivity implements
         PhoneLookup.TYPE,
         PhoneLookup.LABEL,
         PhoneLookup.NUMBER,
+        PhoneLookup.PHOTO_ID,
+        PhoneLookup.LOOKUP_KEY,
     };
     static final int COLUMN_INDEX_ID = 0;
     static final int COLUMN_INDEX_NAME = 1;
     static final int COLUMN_INDEX_TYPE = 2;
     static final int COLUMN_INDEX_LABEL = 3;
     static final int COLUMN_INDEX_NUMBER = 4;
+    static final int COLUMN_INDEX_PHOTO_ID = 5;
+    static final int COLUMN_INDEX_LOOKUP_KEY = 6;
 
     @Override
     protected void onCreate(Bundle icicle) {
@@ -199,26 +204,15 @@ public class CallDetailActivity extends ListActivity implements
                     // Perform a reverse-phonebook lookup to find the PERSON_ID
                     String callLabel = null;
                     Uri personUri = null;
-                    Uri phoneUri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
-                            Uri.encode(mNumber));
-                    Cursor phonesCursor = resolver.query(phoneUri, PHONES_PROJECTION, null, null, null);
-                    try {
-                        if (phonesCursor != null && phonesCursor.moveToFirst()) {
-                            long personId = phonesCursor.getLong(COLUMN_INDEX_ID);
-                            personUri = ContentUris.withAppendedId(
-                                    Contacts.CONTENT_URI, personId);
-                            callText = getString(R.string.recentCalls_callNumber,
-                                    phonesCursor.getString(COLUMN_INDEX_NAME));
-                            mNumber = PhoneNumberUtils.formatNumber(
-                                    phonesCursor.getString(COLUMN_INDEX_NUMBER));
-                            callLabel = Phone.getDisplayLabel(this,
-                                    phonesCursor.getInt(COLUMN_INDEX_TYPE),
-                                    phonesCursor.getString(COLUMN_INDEX_LABEL)).toString();
-                        } else {
-                            mNumber = PhoneNumberUtils.formatNumber(mNumber);
-                        }
-                    } finally {
-                        if (phonesCursor != null) phonesCursor.close();
+                    ContactInfo info = lookupContactInfo(resolver, mNumber);
+                    if (info != null) {
+                        personUri = ContentUris.withAppendedId(
+                                Contacts.CONTENT_URI, info.personId);
+                        callText = getString(R.string.recentCalls_callNumber, info.name);
+                        mNumber = PhoneNumberUtils.formatNumber(info.number);
+                        callLabel = Phone.getDisplayLabel(this, info.type, info.label).toString();
+                    } else {
+                        mNumber = PhoneNumberUtils.formatNumber(mNumber);
                     }
 
                     // Build list of various available actions
@@ -269,6 +263,39 @@ public class CallDetailActivity extends ListActivity implements
         }
     }
 
+    /**
+     * Returns the contact {@code number} belongs to, or null if there is none.
+     * Verified entries of the shared caller ID cache spare the lookup.
+     */
+    private ContactInfo lookupContactInfo(ContentResolver resolver, String number) {
+        CallerIdCache cache = CallerIdCache.getInstance(this);
+        ContactInfo info = cache.get(number);
+        if (info != null && cache.isVerified(number)) {
+            return info != ContactInfo.EMPTY ? info : null;
+        }
+
+        info = null;
+        Uri phoneUri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
+                Uri.encode(number));
+        Cursor phonesCursor = resolver.query(phoneUri, PHONES_PROJECTION, null, null, null);
+        try {
+            if (phonesCursor != null && phonesCursor.moveToFirst()) {
+                info = new ContactInfo();
+                info.personId = phonesCursor.getLong(COLUMN_INDEX_ID);
+                info.name = phonesCursor.getString(COLUMN_INDEX_NAME);
+                info.type = phonesCursor.getInt(COLUMN_INDEX_TYPE);
+                info.label = phonesCursor.getString(COLUMN_INDEX_LABEL);
+                info.number = phonesCursor.getString(COLUMN_INDEX_NUMBER);
+                info.photoId = phonesCursor.getLong(COLUMN_INDEX_PHOTO_ID);
+                info.lookupKey = phonesCursor.getString(COLUMN_INDEX_LOOKUP_KEY);
+            }
+        } finally {
+            if (phonesCursor != null) phonesCursor.close();
+        }
+        cache.put(number, info);
+        return info;
+    }
+
     private String formatDuration(long elapsedSeconds) {
         long minutes = 0;
         long seconds = 0;
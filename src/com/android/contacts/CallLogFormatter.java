@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.telephony.PhoneNumberUtils;
+import android.text.SpannableStringBuilder;
+import android.text.TextUtils;
+import android.text.format.DateFormat;
+import android.text.format.DateUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Formats the number and date of call log rows and caches the results by row
+ * ID, so that they can be computed on a background thread ahead of binding.
+ * Relative dates ("5 mins ago") are recomputed once they are a minute old;
+ * absolute ones are kept until the date options change.
+ */
+final class CallLogFormatter {
+    private static final int MAX_ROWS = 1000;
+
+    private static final String FORMAT_24_HOUR_SECONDS = "MMM d, kk:mm:ss";
+    private static final String FORMAT_24_HOUR = "MMM d, kk:mm";
+    private static final String FORMAT_12_HOUR_SECONDS = "MMM d, h:mm:ssaa";
+    private static final String FORMAT_12_HOUR = "MMM d, h:mmaa";
+
+    /**
+     * Invalid formatting type constant for {@link #mFormattingType}.
+     */
+    private static final int FORMATTING_TYPE_INVALID = -1;
+
+    static final class Row {
+        String formattedNumber;
+        CharSequence date;
+        /** When the date was formatted, to expire relative dates */
+        long dateTime;
+    }
+
+    /**
+     * Builder reused to minimize allocations when formatting phone numbers.
+     * Guarded by itself.
+     */
+    private final SpannableStringBuilder mEditable = new SpannableStringBuilder();
+
+    /**
+     * Cached formatting type for the current {@link Locale}, as provided by
+     * {@link PhoneNumberUtils#getFormatTypeForLocale(Locale)}.
+     */
+    private int mFormattingType = FORMATTING_TYPE_INVALID;
+
+    // Guarded by "this"
+    private final LinkedHashMap<Long, Row> mRows =
+            new LinkedHashMap<Long, Row>(MAX_ROWS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Row> eldest) {
+                    return size() > MAX_ROWS;
+                }
+            };
+
+    private volatile boolean mExactTime = true;
+    private volatile boolean m24Hour;
+    private volatile boolean mShowSeconds = true;
+
+    /**
+     * Sets how dates are formatted, dropping the cached dates if that changed.
+     */
+    public void setDateOptions(boolean exactTime, boolean is24Hour, boolean showSeconds) {
+        if (exactTime == mExactTime && is24Hour == m24Hour && showSeconds == mShowSeconds) {
+            return;
+        }
+        mExactTime = exactTime;
+        m24Hour = is24Hour;
+        mShowSeconds = showSeconds;
+        synchronized (this) {
+            for (Row row : mRows.values()) {
+                row.date = null;
+            }
+        }
+    }
+
+    /**
+     * Returns true if the row is cached with a current date.
+     */
+    public synchronized boolean contains(long rowId) {
+        Row row = mRows.get(rowId);
+        return row != null && isCurrent(row, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the formatted number and date of a row, formatting them on the
+     * calling thread only if they are not cached or the date has expired.
+     */
+    public Row obtain(long rowId, String number, long date) {
+        long now = System.currentTimeMillis();
+        Row row;
+        synchronized (this) {
+            row = mRows.get(rowId);
+        }
+        if (row != null && isCurrent(row, now)) {
+            return row;
+        }
+        return format(rowId, number, date, now, row);
+    }
+
+    /**
+     * Formats and caches a row unless it is cached already.  Meant to be called
+     * on a background thread.
+     *
+     * @return true if the row was formatted
+     */
+    public boolean prefetch(long rowId, String number, long date) {
+        long now = System.currentTimeMillis();
+        Row row;
+        synchronized (this) {
+            row = mRows.get(rowId);
+        }
+        if (row != null && isCurrent(row, now)) {
+            return false;
+        }
+        format(rowId, number, date, now, row);
+        return true;
+    }
+
+    public synchronized void clear() {
+        mRows.clear();
+    }
+
+    private boolean isCurrent(Row row, long now) {
+        return row.date != null && (mExactTime || now - row.dateTime < DateUtils.MINUTE_IN_MILLIS);
+    }
+
+    private Row format(long rowId, String number, long date, long now, Row previous) {
+        Row row = new Row();
+        row.formattedNumber = previous != null ? previous.formattedNumber : formatNumber(number);
+        row.date = formatDate(date, now);
+        row.dateTime = now;
+        synchronized (this) {
+            mRows.put(rowId, row);
+        }
+        return row;
+    }
+
+    /**
+     * Formats the given phone number using
+     * {@link PhoneNumberUtils#formatNumber(android.text.Editable, int)}.
+     * SIP addresses are returned as they are.
+     * <p>
+     * If the given String object is null or empty, return an empty String.
+     */
+    public String formatNumber(String number) {
+        if (TextUtils.isEmpty(number)) {
+            return "";
+        }
+
+        // If "number" is really a SIP address, don't try to do any formatting at all.
+        if (PhoneNumberUtils.isUriNumber(number)) {
+            return number;
+        }
+
+        synchronized (mEditable) {
+            // Cache formatting type if not already present
+            if (mFormattingType == FORMATTING_TYPE_INVALID) {
+                mFormattingType = PhoneNumberUtils.getFormatTypeForLocale(Locale.getDefault());
+            }
+
+            mEditable.clear();
+            mEditable.append(number);
+
+            PhoneNumberUtils.formatNumber(mEditable, mFormattingType);
+            return mEditable.toString();
+        }
+    }
+
+    private CharSequence formatDate(long date, long now) {
+        if (!mExactTime) {
+            // Set the date/time field by mixing relative and absolute times.
+            return DateUtils.getRelativeTimeSpanString(date, now, DateUtils.MINUTE_IN_MILLIS,
+                    DateUtils.FORMAT_ABBREV_RELATIVE);
+        }
+
+        String format;
+        if (m24Hour) {
+            format = mShowSeconds ? FORMAT_24_HOUR_SECONDS : FORMAT_24_HOUR;
+        } else {
+            format = mShowSeconds ? FORMAT_12_HOUR_SECONDS : FORMAT_12_HOUR;
+        }
+        return DateFormat.format(format, date);
+    }
+}
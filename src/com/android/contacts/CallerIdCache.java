@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import com.android.contacts.RecentCallsListActivity.ContactInfo;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.ContactsContract.Contacts;
+import android.telephony.PhoneNumberUtils;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Process-wide cache of caller ID lookups, shared by the call log, the call
+ * details screen and T9 search.  Entries are keyed by the number with its
+ * separators stripped and kept in LRU order up to {@link #MAX_ENTRIES}.  A
+ * number that belongs to no contact is cached as well and returned as
+ * {@link ContactInfo#EMPTY}.
+ *
+ * Entries are verified when they come from a lookup in this process.  Entries
+ * read back from disk with {@link #persist} or seeded from the T9 contact list
+ * are good enough to paint a row, but callers should look the number up again
+ * before trusting them.  All entries are dropped when the contacts change.
+ *
+ * The file is only ever touched on a background thread of its own, so that
+ * neither creating the cache nor invalidating it waits for I/O.
+ */
+final class CallerIdCache {
+    private static final String TAG = "CallerIdCache";
+    private static final boolean LOGV = false;
+
+    private static final int MAX_ENTRIES = 500;
+
+    private static final String CACHE_FILE = "caller_id_cache";
+    private static final int MAGIC = 0x43494443; // "CIDC"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final class Entry {
+        /** Null if the number belongs to no contact */
+        final ContactInfo info;
+        final boolean verified;
+
+        Entry(ContactInfo info, boolean verified) {
+            this.info = info;
+            this.verified = verified;
+        }
+    }
+
+    private static CallerIdCache sInstance;
+
+    private final File mFile;
+
+    // Guarded by "this"
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    if (size() > MAX_ENTRIES) {
+                        mEvictionCount++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    /**
+     * Incremented on every invalidation, so that a write started before it does
+     * not bring stale entries back.  Guarded by "this".
+     */
+    private int mGeneration;
+
+    /**
+     * Runs the reads, writes and deletes of the file one after the other.
+     */
+    private final ExecutorService mFileExecutor = Executors.newSingleThreadExecutor();
+
+    private final ContentObserver mContactsObserver =
+            new ContentObserver(new Handler(Looper.getMainLooper())) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    invalidate();
+                }
+            };
+
+    /**
+     * Returns the cache, creating it on first use.  Persisted entries are read
+     * back in the background and show up once they are loaded.
+     */
+    public static synchronized CallerIdCache getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new CallerIdCache(new File(appContext.getCacheDir(), CACHE_FILE));
+            final CallerIdCache cache = sInstance;
+            cache.mFileExecutor.execute(new Runnable() {
+                public void run() {
+                    cache.read();
+                }
+            });
+            appContext.getContentResolver().registerContentObserver(Contacts.CONTENT_URI, true,
+                    sInstance.mContactsObserver);
+        }
+        return sInstance;
+    }
+
+    private CallerIdCache(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Returns the key the cache uses for {@code number}.
+     */
+    static String normalize(String number) {
+        if (PhoneNumberUtils.isUriNumber(number)) {
+            return number.toLowerCase();
+        }
+        return PhoneNumberUtils.stripSeparators(number);
+    }
+
+    /**
+     * Returns a copy of the cached contact info for {@code number},
+     * {@link ContactInfo#EMPTY} if it is known to belong to no contact, or null
+     * if it is not cached.
+     */
+    public synchronized ContactInfo get(String number) {
+        Entry entry = mEntries.get(normalize(number));
+        if (entry == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return entry.info != null ? entry.info.copy() : ContactInfo.EMPTY;
+    }
+
+    /**
+     * Returns true if the entry for {@code number} came from a lookup in this
+     * process rather than from disk or a seed.
+     */
+    public synchronized boolean isVerified(String number) {
+        Entry entry = mEntries.get(normalize(number));
+        return entry != null && entry.verified;
+    }
+
+    /**
+     * Stores the result of a lookup.
+     *
+     * @param info the contact found, or null if the number belongs to no contact
+     */
+    public synchronized void put(String number, ContactInfo info) {
+        mEntries.put(normalize(number), new Entry(info != null ? info.copy() : null, true));
+    }
+
+    /**
+     * Stores unverified contact info for {@code number} unless it is cached
+     * already.  Seeds never evict other entries.
+     */
+    public synchronized void seed(String number, ContactInfo info) {
+        String key = normalize(number);
+        if (mEntries.size() < MAX_ENTRIES && !mEntries.containsKey(key)) {
+            mEntries.put(key, new Entry(info.copy(), false));
+        }
+    }
+
+    /**
+     * Drops all entries, in memory right away and on disk in the background.
+     */
+    public void invalidate() {
+        synchronized (this) {
+            mEntries.clear();
+            mGeneration++;
+        }
+        mFileExecutor.execute(new Runnable() {
+            public void run() {
+                mFile.delete();
+            }
+        });
+        if (LOGV) {
+            Log.v(TAG, "Invalidated, hits=" + mHitCount + " misses=" + mMissCount
+                    + " evictions=" + mEvictionCount);
+        }
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * Writes the cached contacts to disk on a background thread, so that the
+     * next process can paint names before any lookup completed.
+     */
+    public void persist() {
+        final ArrayList<String> keys = new ArrayList<String>();
+        final ArrayList<ContactInfo> infos = new ArrayList<ContactInfo>();
+        final int generation;
+        synchronized (this) {
+            generation = mGeneration;
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                if (entry.getValue().info != null) {
+                    keys.add(entry.getKey());
+                    infos.add(entry.getValue().info);
+                }
+            }
+        }
+
+        mFileExecutor.execute(new Runnable() {
+            public void run() {
+                write(keys, infos, generation);
+            }
+        });
+    }
+
+    private void write(ArrayList<String> keys, ArrayList<ContactInfo> infos, int generation) {
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                ContactInfo info = infos.get(i);
+                out.writeUTF(keys.get(i));
+                out.writeLong(info.personId);
+                writeString(out, info.name);
+                out.writeInt(info.type);
+                writeString(out, info.label);
+                writeString(out, info.number);
+                out.writeLong(info.photoId);
+                writeString(out, info.lookupKey);
+            }
+            out.close();
+            out = null;
+
+            synchronized (this) {
+                if (generation != mGeneration) {
+                    temp.delete();
+                    return;
+                }
+            }
+            if (!temp.renameTo(mFile)) {
+                Log.w(TAG, "Cannot replace caller ID cache " + mFile);
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write caller ID cache", e);
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the persisted entries to the ones cached since the cache was
+     * created, unless it was invalidated in the meantime.
+     */
+    private void read() {
+        if (!mFile.exists()) {
+            return;
+        }
+
+        final int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+        ArrayList<String> keys = new ArrayList<String>();
+        ArrayList<ContactInfo> infos = new ArrayList<ContactInfo>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return;
+            }
+            int count = Math.min(in.readInt(), MAX_ENTRIES);
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                ContactInfo info = new ContactInfo();
+                info.personId = in.readLong();
+                info.name = readString(in);
+                info.type = in.readInt();
+                info.label = readString(in);
+                info.number = readString(in);
+                info.photoId = in.readLong();
+                info.lookupKey = readString(in);
+                keys.add(key);
+                infos.add(info);
+            }
+        } catch (EOFException e) {
+            Log.w(TAG, "Truncated caller ID cache", e);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read caller ID cache", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        synchronized (this) {
+            if (generation != mGeneration) {
+                return;
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                // Lookups made while loading are newer, and verified
+                if (mEntries.size() < MAX_ENTRIES && !mEntries.containsKey(keys.get(i))) {
+                    mEntries.put(keys.get(i), new Entry(infos.get(i), false));
+                }
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
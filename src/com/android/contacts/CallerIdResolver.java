@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import com.android.contacts.RecentCallsListActivity.ContactInfo;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.SipAddress;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.PhoneLookup;
+import android.telephony.PhoneNumberUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Resolves phone numbers and SIP addresses to contacts in batches.  Phone
+ * numbers are matched against an in-memory index of all phone rows keyed by
+ * their caller ID min-match suffix, which is the same key the provider's
+ * PhoneLookup uses.  A number whose suffix has no entry in the index therefore
+ * belongs to no contact and costs no query; only numbers whose candidates do
+ * not compare equal fall back to a per-number PhoneLookup query.  SIP addresses
+ * of a batch are looked up with a single Data query.
+ *
+ * The index is built on the first batch and kept until {@link #invalidate} is
+ * called.  Not thread safe except for {@link #invalidate}; batches are expected
+ * to be resolved on one background thread.
+ */
+class CallerIdResolver {
+    private static final String TAG = "CallerIdResolver";
+    private static final boolean LOGV = false;
+
+    private static final String[] PHONE_INDEX_PROJECTION = new String[] {
+            Phone.CONTACT_ID,
+            Phone.DISPLAY_NAME,
+            Phone.TYPE,
+            Phone.LABEL,
+            Phone.NUMBER,
+            Phone.PHOTO_ID,
+            Phone.LOOKUP_KEY,
+    };
+
+    private static final String[] SIP_PROJECTION = new String[] {
+            Data.CONTACT_ID,
+            Data.DISPLAY_NAME,
+            Data.DATA1,
+            Data.PHOTO_ID,
+            Data.LOOKUP_KEY,
+    };
+
+    // Same order as RecentCallsListActivity.PHONES_PROJECTION
+    private static final int CONTACT_ID_COLUMN_INDEX = 0;
+    private static final int DISPLAY_NAME_COLUMN_INDEX = 1;
+    private static final int TYPE_COLUMN_INDEX = 2;
+    private static final int LABEL_COLUMN_INDEX = 3;
+    private static final int NUMBER_COLUMN_INDEX = 4;
+    private static final int PHOTO_ID_COLUMN_INDEX = 5;
+    private static final int LOOKUP_KEY_COLUMN_INDEX = 6;
+
+    private static final int SIP_ADDRESS_COLUMN_INDEX = 2;
+    private static final int SIP_PHOTO_ID_COLUMN_INDEX = 3;
+    private static final int SIP_LOOKUP_KEY_COLUMN_INDEX = 4;
+
+    private final ContentResolver mResolver;
+
+    /**
+     * Phone rows by min-match suffix, null until built or after invalidation.
+     */
+    private volatile HashMap<String, ArrayList<ContactInfo>> mIndex;
+
+    // Metrics, only touched on the resolving thread
+    private int mBatchCount;
+    private int mResolvedCount;
+    private int mIndexHitCount;
+    private int mFallbackCount;
+    private long mLastBatchMillis;
+    private long mTotalMillis;
+
+    public CallerIdResolver(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Drops the phone index; the next batch rebuilds it.
+     */
+    public void invalidate() {
+        mIndex = null;
+    }
+
+    /**
+     * Looks up {@code numbers}, which should not contain duplicates.
+     *
+     * @return the contacts found, keyed by the number they were found for;
+     *         numbers that belong to no contact are absent
+     */
+    public HashMap<String, ContactInfo> resolve(Collection<String> numbers) {
+        long start = SystemClock.uptimeMillis();
+        HashMap<String, ContactInfo> result = new HashMap<String, ContactInfo>();
+        ArrayList<String> sipAddresses = null;
+        int fallbacks = 0;
+        int hits = 0;
+
+        HashMap<String, ArrayList<ContactInfo>> index = null;
+        for (String number : numbers) {
+            if (PhoneNumberUtils.isUriNumber(number)) {
+                if (sipAddresses == null) {
+                    sipAddresses = new ArrayList<String>();
+                }
+                sipAddresses.add(number);
+                continue;
+            }
+
+            if (index == null) {
+                index = getIndex();
+            }
+            ArrayList<ContactInfo> candidates =
+                    index.get(PhoneNumberUtils.toCallerIDMinMatch(number));
+            if (candidates == null) {
+                continue;
+            }
+
+            ContactInfo info = null;
+            for (ContactInfo candidate : candidates) {
+                if (PhoneNumberUtils.compare(number, candidate.number)) {
+                    info = candidate;
+                    break;
+                }
+            }
+            if (info != null) {
+                hits++;
+            } else {
+                fallbacks++;
+                info = lookupPhoneNumber(number);
+            }
+            if (info != null) {
+                // Index entries are shared between numbers; callers get their own copy
+                result.put(number, info.copy());
+            }
+        }
+
+        if (sipAddresses != null) {
+            fallbacks += sipAddresses.size();
+            lookupSipAddresses(sipAddresses, result);
+        }
+
+        mLastBatchMillis = SystemClock.uptimeMillis() - start;
+        mTotalMillis += mLastBatchMillis;
+        mBatchCount++;
+        mResolvedCount += numbers.size();
+        mIndexHitCount += hits;
+        mFallbackCount += fallbacks;
+        if (LOGV) {
+            Log.v(TAG, "Resolved " + numbers.size() + " numbers in " + mLastBatchMillis
+                    + "ms: " + hits + " from the index, " + fallbacks + " queried, "
+                    + result.size() + " found");
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of batches resolved so far.
+     */
+    public int getBatchCount() {
+        return mBatchCount;
+    }
+
+    /**
+     * Returns the number of numbers resolved so far, over all batches.
+     */
+    public int getResolvedCount() {
+        return mResolvedCount;
+    }
+
+    /**
+     * Returns how many numbers were matched in the phone index.
+     */
+    public int getIndexHitCount() {
+        return mIndexHitCount;
+    }
+
+    /**
+     * Returns how many numbers needed a query of their own.
+     */
+    public int getFallbackCount() {
+        return mFallbackCount;
+    }
+
+    /**
+     * Returns the time taken by the latest batch in milliseconds, including
+     * building the index if it was built for that batch.
+     */
+    public long getLastBatchMillis() {
+        return mLastBatchMillis;
+    }
+
+    /**
+     * Returns the time taken by all batches in milliseconds.
+     */
+    public long getTotalMillis() {
+        return mTotalMillis;
+    }
+
+    private HashMap<String, ArrayList<ContactInfo>> getIndex() {
+        HashMap<String, ArrayList<ContactInfo>> index = mIndex;
+        if (index != null) {
+            return index;
+        }
+
+        index = new HashMap<String, ArrayList<ContactInfo>>();
+        Cursor cursor = mResolver.query(Phone.CONTENT_URI, PHONE_INDEX_PROJECTION, null, null,
+                Data.IS_SUPER_PRIMARY + " DESC, " + Phone.CONTACT_ID);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    String number = cursor.getString(NUMBER_COLUMN_INDEX);
+                    if (number == null) {
+                        continue;
+                    }
+                    String key = PhoneNumberUtils.toCallerIDMinMatch(number);
+                    ArrayList<ContactInfo> candidates = index.get(key);
+                    if (candidates == null) {
+                        candidates = new ArrayList<ContactInfo>(1);
+                        index.put(key, candidates);
+                    }
+                    candidates.add(readPhoneRow(cursor));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        mIndex = index;
+        return index;
+    }
+
+    private ContactInfo lookupPhoneNumber(String number) {
+        Cursor cursor = mResolver.query(
+                Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number)),
+                RecentCallsListActivity.PHONES_PROJECTION, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            return cursor.moveToFirst() ? readPhoneRow(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void lookupSipAddresses(ArrayList<String> addresses,
+            HashMap<String, ContactInfo> result) {
+        // Upper-case both sides for a case-insensitive match
+        HashMap<String, String> addressesByKey = new HashMap<String, String>();
+        StringBuilder selection = new StringBuilder();
+        selection.append("upper(" + Data.DATA1 + ") IN (");
+        String[] selectionArgs = new String[addresses.size() + 1];
+        for (int i = 0; i < addresses.size(); i++) {
+            String address = addresses.get(i);
+            String key = address.toUpperCase();
+            addressesByKey.put(key, address);
+            if (i != 0) {
+                selection.append(',');
+            }
+            selection.append('?');
+            selectionArgs[i] = key;
+        }
+        selection.append(") AND " + Data.MIMETYPE + "=?");
+        selectionArgs[addresses.size()] = SipAddress.CONTENT_ITEM_TYPE;
+
+        Cursor cursor = mResolver.query(Data.CONTENT_URI, SIP_PROJECTION,
+                selection.toString(), selectionArgs, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                String sipAddress = cursor.getString(SIP_ADDRESS_COLUMN_INDEX);
+                String address = sipAddress != null
+                        ? addressesByKey.get(sipAddress.toUpperCase()) : null;
+                if (address == null || result.containsKey(address)) {
+                    continue;
+                }
+                ContactInfo info = new ContactInfo();
+                info.personId = cursor.getLong(CONTACT_ID_COLUMN_INDEX);
+                info.name = cursor.getString(DISPLAY_NAME_COLUMN_INDEX);
+                // "type" and "label" are currently unused for SIP addresses
+                info.type = SipAddress.TYPE_OTHER;
+                info.label = null;
+                info.number = sipAddress;
+                info.photoId = cursor.getLong(SIP_PHOTO_ID_COLUMN_INDEX);
+                info.lookupKey = cursor.getString(SIP_LOOKUP_KEY_COLUMN_INDEX);
+                result.put(address, info);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static ContactInfo readPhoneRow(Cursor cursor) {
+        ContactInfo info = new ContactInfo();
+        info.personId = cursor.getLong(CONTACT_ID_COLUMN_INDEX);
+        info.name = cursor.getString(DISPLAY_NAME_COLUMN_INDEX);
+        info.type = cursor.getInt(TYPE_COLUMN_INDEX);
+        info.label = cursor.getString(LABEL_COLUMN_INDEX);
+        info.number = cursor.getString(NUMBER_COLUMN_INDEX);
+        info.photoId = cursor.getLong(PHOTO_ID_COLUMN_INDEX);
+        info.lookupKey = cursor.getString(LOOKUP_KEY_COLUMN_INDEX);
+        return info;
+    }
+}
@@ -31,20 +31,42 @@ import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.Contacts.Photo;
 import android.widget.ImageView;
 
-import java.lang.ref.SoftReference;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Asynchronously loads contact photos and maintains cache of photos.  The class is
- * mostly single-threaded.  The only two methods accessed by the loader thread are
- * {@link #cacheBitmap} and {@link #obtainPhotoIdsToLoad}. Those methods access concurrent
- * hash maps shared with the main thread.
+ * mostly single-threaded.  The methods accessed by the loader and decoder threads are
+ * {@link #cacheBitmap}, {@link #obtainPhotoIdsToLoad}, {@link #obtainPrefetchIdsToLoad},
+ * {@link #releasePhotoId} and {@link #notifyPhotosLoaded}. Those methods access concurrent
+ * hash maps and synchronized structures shared with the main thread.  The photo cache itself is shared by all
+ * loaders in the process, so the contact list, the call log and the dialer's T9
+ * results reuse each other's decoded photos.
  */
 public class ContactPhotoLoader implements Callback {
 
     private static final String LOADER_THREAD_NAME = "ContactPhotoLoader";
+    private static final String DECODER_THREAD_NAME = "ContactPhotoDecoder";
+
+    /**
+     * Number of threads decoding photos in parallel with the provider queries.
+     */
+    private static final int DECODE_THREAD_COUNT = 2;
+
+    /**
+     * Default number of photo IDs per provider query.
+     */
+    private static final int DEFAULT_BATCH_SIZE = 20;
 
     /**
      * Type of message sent by the UI thread to itself to indicate that some photos
@@ -60,6 +82,22 @@ public class ContactPhotoLoader implements Callback {
 
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
 
+    /**
+     * Fraction of the heap the decoded photos may use.
+     */
+    private static final int BITMAP_CACHE_HEAP_DIVISOR = 8;
+
+    /**
+     * Fraction of the heap the compressed photo bytes may use.
+     */
+    private static final int BYTES_CACHE_HEAP_DIVISOR = 32;
+
+    /**
+     * Approximate per-entry bookkeeping cost, so that entries without a photo
+     * still count against the budget.
+     */
+    private static final int ENTRY_OVERHEAD = 64;
+
     private final String[] COLUMNS = new String[] { Photo._ID, Photo.PHOTO };
 
     /**
@@ -77,14 +115,99 @@ public class ContactPhotoLoader implements Callback {
         private static final int LOADED = 2;
 
         int state;
-        SoftReference<Bitmap> bitmapRef;
+
+        /**
+         * The decoded photo; null once loaded means the database has no bytes
+         * for the photo.
+         */
+        Bitmap bitmap;
+    }
+
+    /**
+     * A map of photo IDs to values that evicts the least recently used entries
+     * once the total size of the values exceeds a budget in bytes.
+     */
+    private static abstract class SizedLruCache<V> {
+        private final LinkedHashMap<Long, V> mMap = new LinkedHashMap<Long, V>(16, 0.75f, true);
+        private final long mMaxSize;
+        private long mSize;
+        private int mEvictionCount;
+
+        SizedLruCache(long maxSize) {
+            mMaxSize = maxSize;
+        }
+
+        protected abstract int sizeOf(V value);
+
+        synchronized V get(Long key) {
+            return mMap.get(key);
+        }
+
+        synchronized void put(Long key, V value) {
+            V previous = mMap.put(key, value);
+            mSize += sizeOf(value);
+            if (previous != null) {
+                mSize -= sizeOf(previous);
+            }
+
+            Iterator<Map.Entry<Long, V>> iterator = mMap.entrySet().iterator();
+            while (mSize > mMaxSize && iterator.hasNext()) {
+                Map.Entry<Long, V> eldest = iterator.next();
+                if (eldest.getKey().equals(key)) {
+                    // Never evict the entry that was just added
+                    continue;
+                }
+                mSize -= sizeOf(eldest.getValue());
+                iterator.remove();
+                mEvictionCount++;
+            }
+        }
+
+        synchronized void clear() {
+            mMap.clear();
+            mSize = 0;
+        }
+
+        synchronized int getEvictionCount() {
+            return mEvictionCount;
+        }
     }
 
     /**
-     * A soft cache for photos.
+     * Decoded photos, shared by all loaders in the process and bounded to a
+     * fraction of the heap.
+     */
+    private static final SizedLruCache<BitmapHolder> sBitmapCache =
+            new SizedLruCache<BitmapHolder>(
+                    Runtime.getRuntime().maxMemory() / BITMAP_CACHE_HEAP_DIVISOR) {
+                @Override
+                protected int sizeOf(BitmapHolder holder) {
+                    Bitmap bitmap = holder.bitmap;
+                    return ENTRY_OVERHEAD
+                            + (bitmap == null ? 0 : bitmap.getRowBytes() * bitmap.getHeight());
+                }
+            };
+
+    /**
+     * Compressed photo bytes as read from the database, so that a photo whose
+     * bitmap was evicted can be decoded again without another query.
      */
-    private final ConcurrentHashMap<Long, BitmapHolder> mBitmapCache =
-            new ConcurrentHashMap<Long, BitmapHolder>();
+    private static final SizedLruCache<byte[]> sBytesCache =
+            new SizedLruCache<byte[]>(
+                    Runtime.getRuntime().maxMemory() / BYTES_CACHE_HEAP_DIVISOR) {
+                @Override
+                protected int sizeOf(byte[] bytes) {
+                    return ENTRY_OVERHEAD + bytes.length;
+                }
+            };
+
+    // Statistics for the shared cache, updated on the main thread
+    private static int sHitCount;
+    private static int sMissCount;
+
+    // Statistics for the rows bound through this loader, updated on the main thread
+    private int mBindHitCount;
+    private int mBindCount;
 
     /**
      * A map from ImageView to the corresponding photo ID. Please note that this
@@ -93,6 +216,28 @@ public class ContactPhotoLoader implements Callback {
     private final ConcurrentHashMap<ImageView, Long> mPendingRequests =
             new ConcurrentHashMap<ImageView, Long>();
 
+    /**
+     * Photo IDs handed to the loader thread and not yet cached, so that they are
+     * not requested again while a decode is still running.
+     */
+    private final ConcurrentHashMap<Long, Boolean> mPhotoIdsInFlight =
+            new ConcurrentHashMap<Long, Boolean>();
+
+    /**
+     * Photo IDs to load ahead of display, in the order they should be loaded.
+     */
+    private final LinkedList<Long> mPrefetchIds = new LinkedList<Long>();
+
+    /**
+     * Set when a MESSAGE_PHOTOS_LOADED is on its way to the main thread.
+     */
+    private final AtomicBoolean mLoadedNotificationPending = new AtomicBoolean();
+
+    /**
+     * Number of photo IDs fetched per provider query.
+     */
+    private volatile int mBatchSize = DEFAULT_BATCH_SIZE;
+
     /**
      * Handler for messages sent to the UI thread.
      */
@@ -110,9 +255,10 @@ public class ContactPhotoLoader implements Callback {
     private boolean mLoadingRequested;
 
     /**
-     * Flag indicating if the image loading is paused.
+     * Flag indicating if the image loading is paused.  Read by the loader and
+     * decoding threads too.
      */
-    private boolean mPaused;
+    private volatile boolean mPaused;
 
     private final Context mContext;
 
@@ -140,9 +286,13 @@ public class ContactPhotoLoader implements Callback {
             mPendingRequests.remove(view);
         } else {
             boolean loaded = loadCachedPhoto(view, photoId);
+            mBindCount++;
             if (loaded) {
+                sHitCount++;
+                mBindHitCount++;
                 mPendingRequests.remove(view);
             } else {
+                sMissCount++;
                 mPendingRequests.put(view, photoId);
                 if (!mPaused) {
                     // Send a request to start loading photos
@@ -158,26 +308,18 @@ public class ContactPhotoLoader implements Callback {
      * temporarily set the image to the default resource ID.
      */
     private boolean loadCachedPhoto(ImageView view, long photoId) {
-        BitmapHolder holder = mBitmapCache.get(photoId);
+        BitmapHolder holder = sBitmapCache.get(photoId);
         if (holder == null) {
             holder = new BitmapHolder();
-            mBitmapCache.put(photoId, holder);
+            sBitmapCache.put(photoId, holder);
         } else if (holder.state == BitmapHolder.LOADED) {
-            // Null bitmap reference means that database contains no bytes for the photo
-            if (holder.bitmapRef == null) {
+            // Null bitmap means that database contains no bytes for the photo
+            if (holder.bitmap == null) {
                 view.setImageResource(mDefaultResourceId);
-                return true;
-            }
-
-            Bitmap bitmap = holder.bitmapRef.get();
-            if (bitmap != null) {
-                view.setImageBitmap(bitmap);
-                return true;
+            } else {
+                view.setImageBitmap(holder.bitmap);
             }
-
-            // Null bitmap means that the soft reference was released by the GC
-            // and we need to reload the photo.
-            holder.bitmapRef = null;
+            return true;
         }
 
         // The bitmap has not been loaded - should display the placeholder image.
@@ -187,7 +329,9 @@ public class ContactPhotoLoader implements Callback {
     }
 
     /**
-     * Stops loading images, kills the image loader thread and clears all caches.
+     * Stops loading images, kills the image loader thread and drops pending
+     * requests.  The shared photo cache is left to other loaders; it is bounded
+     * on its own.
      */
     public void stop() {
         pause();
@@ -198,12 +342,88 @@ public class ContactPhotoLoader implements Callback {
         }
 
         mPendingRequests.clear();
-        mBitmapCache.clear();
+        mPhotoIdsInFlight.clear();
+        cancelPrefetch();
     }
 
+    /**
+     * Drops pending requests and empties the shared photo caches.
+     */
     public void clear() {
         mPendingRequests.clear();
-        mBitmapCache.clear();
+        cancelPrefetch();
+        sBitmapCache.clear();
+        sBytesCache.clear();
+    }
+
+    /**
+     * Returns how many {@link #loadPhoto} calls found their photo already decoded.
+     */
+    public static int getCacheHitCount() {
+        return sHitCount;
+    }
+
+    /**
+     * Returns how many {@link #loadPhoto} calls had to wait for a photo to load.
+     */
+    public static int getCacheMissCount() {
+        return sMissCount;
+    }
+
+    /**
+     * Returns how many decoded photos were evicted to stay within the budget.
+     */
+    public static int getCacheEvictionCount() {
+        return sBitmapCache.getEvictionCount();
+    }
+
+    /**
+     * Returns the percentage of rows bound through this loader whose photo was
+     * already decoded, or 0 if no row with a photo was bound yet.
+     */
+    public int getBindHitRate() {
+        return mBindCount == 0 ? 0 : mBindHitCount * 100 / mBindCount;
+    }
+
+    /**
+     * Sets how many photo IDs are fetched per provider query.
+     */
+    public void setBatchSize(int batchSize) {
+        mBatchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Queues a photo to be loaded into the cache ahead of being displayed.
+     * Prefetching only runs while no visible view is waiting for a photo, and
+     * keeps running while the loader is paused for a fling.
+     */
+    public void prefetchPhoto(long photoId) {
+        if (photoId == 0) {
+            return;
+        }
+        BitmapHolder holder = sBitmapCache.get(photoId);
+        if (holder != null && holder.state == BitmapHolder.LOADED) {
+            return;
+        }
+        synchronized (mPrefetchIds) {
+            mPrefetchIds.addLast(photoId);
+        }
+        requestLoading();
+    }
+
+    /**
+     * Drops all queued prefetch requests.
+     */
+    public void cancelPrefetch() {
+        synchronized (mPrefetchIds) {
+            mPrefetchIds.clear();
+        }
+    }
+
+    private boolean hasPendingPrefetch() {
+        synchronized (mPrefetchIds) {
+            return !mPrefetchIds.isEmpty();
+        }
     }
 
     /**
@@ -218,7 +438,7 @@ public class ContactPhotoLoader implements Callback {
      */
     public void resume() {
         mPaused = false;
-        if (!mPendingRequests.isEmpty()) {
+        if (!mPendingRequests.isEmpty() || hasPendingPrefetch()) {
             requestLoading();
         }
     }
@@ -243,7 +463,7 @@ public class ContactPhotoLoader implements Callback {
         switch (msg.what) {
             case MESSAGE_REQUEST_LOADING: {
                 mLoadingRequested = false;
-                if (!mPaused) {
+                if (!mPaused || hasPendingPrefetch()) {
                     if (mLoaderThread == null) {
                         mLoaderThread = new LoaderThread(mContext.getContentResolver());
                         mLoaderThread.start();
@@ -255,6 +475,7 @@ public class ContactPhotoLoader implements Callback {
             }
 
             case MESSAGE_PHOTOS_LOADED: {
+                mLoadedNotificationPending.set(false);
                 if (!mPaused) {
                     processLoadedImages();
                 }
@@ -279,34 +500,43 @@ public class ContactPhotoLoader implements Callback {
             }
         }
 
-        if (!mPendingRequests.isEmpty()) {
+        if (!mPendingRequests.isEmpty() || hasPendingPrefetch()) {
             requestLoading();
         }
     }
 
     /**
-     * Stores the supplied bitmap in cache.
+     * Decodes the supplied bytes and stores the bitmap in cache.  The compressed
+     * bytes are kept as well, see {@link #sBytesCache}.  Photos requested by
+     * views are not decoded while paused, prefetched ones are; their bytes are
+     * kept and the photo is marked as needed again, so that {@link #resume()}
+     * only has to decode them.
      */
-    private void cacheBitmap(long id, byte[] bytes) {
-        if (mPaused) {
+    private void cacheBitmap(long id, byte[] bytes, boolean prefetched) {
+        if (mPaused && !prefetched && bytes != null) {
+            sBytesCache.put(id, bytes);
+            BitmapHolder holder = sBitmapCache.get(id);
+            if (holder != null && holder.state == BitmapHolder.LOADING) {
+                holder.state = BitmapHolder.NEEDED;
+            }
             return;
         }
 
         BitmapHolder holder = new BitmapHolder();
         holder.state = BitmapHolder.LOADED;
         if (bytes != null) {
+            sBytesCache.put(id, bytes);
             try {
-                Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, null);
-                holder.bitmapRef = new SoftReference<Bitmap>(bitmap);
+                holder.bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, null);
             } catch (OutOfMemoryError e) {
                 // Do nothing - the photo will appear to be missing
             }
         }
-        mBitmapCache.put(id, holder);
+        sBitmapCache.put(id, holder);
     }
 
     /**
-     * Populates an array of photo IDs that need to be loaded.
+     * Populates an array of photo IDs that need to be loaded for visible views.
      */
     private void obtainPhotoIdsToLoad(ArrayList<Long> photoIds,
             ArrayList<String> photoIdsAsStrings) {
@@ -324,8 +554,9 @@ public class ContactPhotoLoader implements Callback {
         Iterator<Long> iterator = mPendingRequests.values().iterator();
         while (iterator.hasNext()) {
             Long id = iterator.next();
-            BitmapHolder holder = mBitmapCache.get(id);
-            if (holder != null && holder.state == BitmapHolder.NEEDED) {
+            BitmapHolder holder = sBitmapCache.get(id);
+            if (holder != null && holder.state == BitmapHolder.NEEDED
+                    && mPhotoIdsInFlight.putIfAbsent(id, Boolean.TRUE) == null) {
                 // Assuming atomic behavior
                 holder.state = BitmapHolder.LOADING;
                 photoIds.add(id);
@@ -335,18 +566,83 @@ public class ContactPhotoLoader implements Callback {
     }
 
     /**
-     * The thread that performs loading of photos from the database.
+     * Populates an array with up to one batch of queued prefetch IDs. Only
+     * consulted when no visible view is waiting for a photo.
+     */
+    private void obtainPrefetchIdsToLoad(ArrayList<Long> photoIds,
+            ArrayList<String> photoIdsAsStrings) {
+        photoIds.clear();
+        photoIdsAsStrings.clear();
+
+        synchronized (mPrefetchIds) {
+            while (!mPrefetchIds.isEmpty() && photoIds.size() < mBatchSize) {
+                Long id = mPrefetchIds.removeFirst();
+                BitmapHolder holder = sBitmapCache.get(id);
+                if (holder == null) {
+                    holder = new BitmapHolder();
+                    sBitmapCache.put(id, holder);
+                } else if (holder.state == BitmapHolder.LOADED) {
+                    continue;
+                }
+                if (mPhotoIdsInFlight.putIfAbsent(id, Boolean.TRUE) == null) {
+                    holder.state = BitmapHolder.LOADING;
+                    photoIds.add(id);
+                    photoIdsAsStrings.add(id.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives up on a photo that was about to be loaded, so that a later request
+     * starts over.
+     */
+    private void releasePhotoId(Long id) {
+        mPhotoIdsInFlight.remove(id);
+        BitmapHolder holder = sBitmapCache.get(id);
+        if (holder != null && holder.state == BitmapHolder.LOADING) {
+            holder.state = BitmapHolder.NEEDED;
+        }
+    }
+
+    /**
+     * Tells the main thread that new photos are in the cache, coalescing
+     * notifications that arrive before it got around to processing them.
+     */
+    private void notifyPhotosLoaded() {
+        if (mLoadedNotificationPending.compareAndSet(false, true)) {
+            mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+        }
+    }
+
+    /**
+     * The thread that performs loading of photos from the database.  Queries are
+     * issued in batches of {@link ContactPhotoLoader#setBatchSize} IDs; before each
+     * batch, IDs no longer requested by any view are dropped.  Decoding happens
+     * on a small pool so that it overlaps with the next query.
      */
     private class LoaderThread extends HandlerThread implements Callback {
         private final ContentResolver mResolver;
         private final StringBuilder mStringBuilder = new StringBuilder();
         private final ArrayList<Long> mPhotoIds = Lists.newArrayList();
         private final ArrayList<String> mPhotoIdsAsStrings = Lists.newArrayList();
+        private final ArrayList<Long> mBatchIds = Lists.newArrayList();
+        private final ArrayList<String> mBatchIdsAsStrings = Lists.newArrayList();
+        private final HashSet<Long> mRequestedIds = new HashSet<Long>();
+        private final ExecutorService mDecodeExecutor;
         private Handler mLoaderThreadHandler;
 
         public LoaderThread(ContentResolver resolver) {
             super(LOADER_THREAD_NAME);
             mResolver = resolver;
+            mDecodeExecutor = Executors.newFixedThreadPool(DECODE_THREAD_COUNT,
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, DECODER_THREAD_NAME);
+                            thread.setPriority(Thread.MIN_PRIORITY);
+                            return thread;
+                        }
+                    });
         }
 
         /**
@@ -359,24 +655,80 @@ public class ContactPhotoLoader implements Callback {
             mLoaderThreadHandler.sendEmptyMessage(0);
         }
 
+        @Override
+        public boolean quit() {
+            mDecodeExecutor.shutdownNow();
+            return super.quit();
+        }
+
         /**
-         * Receives the above message, loads photos and then sends a message
-         * to the main thread to process them.
+         * Receives the above message, loads photos and lets the main thread
+         * know once they have been decoded.
          */
         public boolean handleMessage(Message msg) {
             loadPhotosFromDatabase();
-            mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
             return true;
         }
 
         private void loadPhotosFromDatabase() {
-            obtainPhotoIdsToLoad(mPhotoIds, mPhotoIdsAsStrings);
+            boolean prefetch = false;
+            if (mPaused) {
+                mPhotoIds.clear();
+                mPhotoIdsAsStrings.clear();
+            } else {
+                obtainPhotoIdsToLoad(mPhotoIds, mPhotoIdsAsStrings);
+            }
+            if (mPhotoIds.isEmpty()) {
+                obtainPrefetchIdsToLoad(mPhotoIds, mPhotoIdsAsStrings);
+                prefetch = true;
+            }
+
+            // Photos whose compressed bytes are still cached only need decoding
+            for (int i = mPhotoIds.size() - 1; i >= 0; i--) {
+                Long id = mPhotoIds.get(i);
+                byte[] bytes = sBytesCache.get(id);
+                if (bytes != null) {
+                    decode(id, bytes, prefetch);
+                    mPhotoIds.remove(i);
+                    mPhotoIdsAsStrings.remove(i);
+                }
+            }
 
             int count = mPhotoIds.size();
-            if (count == 0) {
-                return;
+            int batchSize = mBatchSize;
+            for (int start = 0; start < count; start += batchSize) {
+                int end = Math.min(start + batchSize, count);
+                mBatchIds.clear();
+                mBatchIdsAsStrings.clear();
+
+                if (!prefetch && start > 0) {
+                    // Views may have been recycled while the previous batch loaded
+                    mRequestedIds.clear();
+                    mRequestedIds.addAll(mPendingRequests.values());
+                }
+                for (int i = start; i < end; i++) {
+                    Long id = mPhotoIds.get(i);
+                    if (!prefetch && start > 0 && !mRequestedIds.contains(id)) {
+                        releasePhotoId(id);
+                        continue;
+                    }
+                    mBatchIds.add(id);
+                    mBatchIdsAsStrings.add(mPhotoIdsAsStrings.get(i));
+                }
+
+                if (!mBatchIds.isEmpty()) {
+                    loadBatch(prefetch);
+                }
             }
 
+            if (prefetch && hasPendingPrefetch()) {
+                // One prefetch batch at a time, so visible requests can get in between
+                requestLoading();
+            }
+        }
+
+        private void loadBatch(boolean prefetch) {
+            int count = mBatchIds.size();
             mStringBuilder.setLength(0);
             mStringBuilder.append(Photo._ID + " IN(");
             for (int i = 0; i < count; i++) {
@@ -392,15 +744,15 @@ public class ContactPhotoLoader implements Callback {
                 cursor = mResolver.query(Data.CONTENT_URI,
                         COLUMNS,
                         mStringBuilder.toString(),
-                        mPhotoIdsAsStrings.toArray(EMPTY_STRING_ARRAY),
+                        mBatchIdsAsStrings.toArray(EMPTY_STRING_ARRAY),
                         null);
 
                 if (cursor != null) {
                     while (cursor.moveToNext()) {
                         Long id = cursor.getLong(0);
                         byte[] bytes = cursor.getBlob(1);
-                        cacheBitmap(id, bytes);
-                        mPhotoIds.remove(id);
+                        decode(id, bytes, prefetch);
+                        mBatchIds.remove(id);
                     }
                 }
             } finally {
@@ -410,9 +762,29 @@ public class ContactPhotoLoader implements Callback {
             }
 
             // Remaining photos were not found in the database - mark the cache accordingly.
-            count = mPhotoIds.size();
+            count = mBatchIds.size();
             for (int i = 0; i < count; i++) {
-                cacheBitmap(mPhotoIds.get(i), null);
+                Long id = mBatchIds.get(i);
+                cacheBitmap(id, null, prefetch);
+                mPhotoIdsInFlight.remove(id);
+            }
+            if (count > 0) {
+                notifyPhotosLoaded();
+            }
+        }
+
+        private void decode(final Long id, final byte[] bytes, final boolean prefetch) {
+            try {
+                mDecodeExecutor.execute(new Runnable() {
+                    public void run() {
+                        cacheBitmap(id, bytes, prefetch);
+                        mPhotoIdsInFlight.remove(id);
+                        notifyPhotosLoaded();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The loader is shutting down
+                releasePhotoId(id);
             }
         }
     }
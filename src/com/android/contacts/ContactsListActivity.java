@@ -2915,7 +2915,8 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
     }
 
     private final class ContactItemListAdapter extends ResourceCursorAdapter
-            implements SectionIndexer, OnScrollListener, PinnedHeaderListView.PinnedHeaderAdapter {
+            implements SectionIndexer, OnScrollListener, PinnedHeaderListView.PinnedHeaderAdapter,
+            PhotoPrefetcher.PhotoIdSource {
         private SectionIndexer mIndexer;
         private String mAlphabet;
         private boolean mLoading = true;
@@ -2931,12 +2932,14 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
         private int mSuggestionsCursorCount;
         private ImageFetchHandler mHandler;
         private static final int FETCH_IMAGE_MSG = 1;
+        private final PhotoPrefetcher mPhotoPrefetcher;
 
 
         public ContactItemListAdapter(Context context) {
             super(context, R.layout.contacts_list_item, null, false);
 
             mHandler = new ImageFetchHandler();
+            mPhotoPrefetcher = new PhotoPrefetcher(mPhotoLoader, this);
             mAlphabet = context.getString(com.android.internal.R.string.fast_scroll_alphabet);
 
             mUnknownNameText = context.getText(android.R.string.unknownName);
@@ -3553,6 +3556,7 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
                 foundContactsText.setText(text);
             }
 
+            mPhotoPrefetcher.reset();
             super.changeCursor(cursor);
             // Update the indexer for the fast scroll widget
             updateIndexer(cursor);
@@ -3766,6 +3770,21 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
             if (view instanceof PinnedHeaderListView) {
                 ((PinnedHeaderListView)view).configureHeaderView(firstVisibleItem);
             }
+            if (mDisplayPhotos) {
+                mPhotoPrefetcher.onScroll(firstVisibleItem, visibleItemCount, totalItemCount);
+            }
+        }
+
+        public long getPhotoId(int pos) {
+            if (mSuggestionsCursorCount != 0 && pos < mSuggestionsCursorCount + 2) {
+                return 0;
+            }
+            int realPosition = getRealPosition(pos);
+            if (realPosition < 0 || mCursor == null || !mCursor.moveToPosition(realPosition)
+                    || mCursor.isNull(SUMMARY_PHOTO_ID_COLUMN_INDEX)) {
+                return 0;
+            }
+            return mCursor.getLong(SUMMARY_PHOTO_ID_COLUMN_INDEX);
         }
 
         public void onScrollStateChanged(AbsListView view, int scrollState) {
@@ -30,10 +30,13 @@ import android.pim.vcard.VCardConfig;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.OutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -50,6 +53,7 @@ public class ExportVCardActivity extends Activity {
 
     // If true, VCardExporter is able to emits files longer than 8.3 format.
     private static final boolean ALLOW_LONG_FILE_NAME = false;
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
     private String mTargetDirectory;
     private String mFileNamePrefix;
     private String mFileNameSuffix;
@@ -119,7 +123,8 @@ public class ExportVCardActivity extends Activity {
     private class ActualExportThread extends Thread
             implements DialogInterface.OnCancelListener {
         private PowerManager.WakeLock mWakeLock;
-        private boolean mCanceled = false;
+        private volatile boolean mCanceled = false;
+        private volatile VCardExporter mExporter;
 
         public ActualExportThread(String fileName) {
             mExportingFileName = fileName;
@@ -133,9 +138,9 @@ public class ExportVCardActivity extends Activity {
         public void run() {
             boolean shouldCallFinish = true;
             mWakeLock.acquire();
-            VCardComposer composer = null;
+            Writer writer = null;
             try {
-                OutputStream outputStream = null;
+                final FileOutputStream outputStream;
                 try {
                     outputStream = new FileOutputStream(mExportingFileName);
                 } catch (FileNotFoundException e) {
@@ -146,26 +151,22 @@ public class ExportVCardActivity extends Activity {
                     mHandler.post(new ErrorReasonDisplayer(errorReason));
                     return;
                 }
-
-                // composer = new VCardComposer(ExportVCardActivity.this, mVCardTypeStr, true);
-                int vcardType = VCardConfig.VCARD_TYPE_V30_GENERIC;
-                composer = new VCardComposer(ExportVCardActivity.this, vcardType, true);
-
-                composer.addHandler(composer.new HandlerForOutputStream(outputStream));
-
-                if (!composer.init()) {
-                    final String errorReason = composer.getErrorReason();
-                    Log.e(LOG_TAG, "initialization of vCard composer failed: " + errorReason);
-                    final String translatedErrorReason =
-                            translateComposerError(errorReason);
+                writer = new OutputStreamWriter(
+                        new BufferedOutputStream(outputStream, OUTPUT_BUFFER_SIZE), "UTF-8");
+
+                final long[] contactIds = VCardExporter.queryContactIds(getContentResolver());
+                if (contactIds == null) {
+                    final String errorReason = translateComposerError(
+                            VCardComposer.FAILURE_REASON_FAILED_TO_GET_DATABASE_INFO);
+                    Log.e(LOG_TAG, "initialization of vCard exporter failed: " + errorReason);
                     mHandler.post(new ErrorReasonDisplayer(
                             getString(R.string.fail_reason_could_not_initialize_exporter,
-                                    translatedErrorReason)));
+                                    errorReason)));
                     shouldCallFinish = false;
                     return;
                 }
 
-                int size = composer.getCount();
+                int size = contactIds.length;
 
                 if (size == 0) {
                     mHandler.post(new ErrorReasonDisplayer(
@@ -179,26 +180,49 @@ public class ExportVCardActivity extends Activity {
                 mProgressDialog.setMax(size);
                 mProgressDialog.setProgress(0);
 
-                while (!composer.isAfterLast()) {
-                    if (mCanceled) {
-                        return;
-                    }
-                    if (!composer.createOneEntry()) {
-                        final String errorReason = composer.getErrorReason();
-                        Log.e(LOG_TAG, "Failed to read a contact: " + errorReason);
-                        final String translatedErrorReason =
-                            translateComposerError(errorReason);
-                        mHandler.post(new ErrorReasonDisplayer(
-                                getString(R.string.fail_reason_error_occurred_during_export,
-                                        translatedErrorReason)));
-                        shouldCallFinish = false;
-                        return;
+                int vcardType = VCardConfig.VCARD_TYPE_V30_GENERIC;
+                final VCardExporter exporter = new VCardExporter(vcardType);
+                exporter.setProgressListener(new VCardExporter.ProgressListener() {
+                    public void onProgress(int exportedCount) {
+                        mProgressDialog.setProgress(exportedCount);
                     }
-                    mProgressDialog.incrementProgressBy(1);
+                });
+                mExporter = exporter;
+                if (mCanceled) {
+                    return;
+                }
+
+                final long start = System.currentTimeMillis();
+                if (!exporter.export(getContentResolver(), contactIds, writer)) {
+                    final String errorReason = translateComposerError(
+                            VCardComposer.FAILURE_REASON_FAILED_TO_GET_DATABASE_INFO);
+                    Log.e(LOG_TAG, "Failed to read contacts: " + errorReason);
+                    mHandler.post(new ErrorReasonDisplayer(
+                            getString(R.string.fail_reason_error_occurred_during_export,
+                                    errorReason)));
+                    shouldCallFinish = false;
+                    return;
                 }
+                if (exporter.isCanceled()) {
+                    return;
+                }
+                writer.flush();
+                outputStream.getFD().sync();
+                final long time = System.currentTimeMillis() - start;
+                Log.i(LOG_TAG, "Exported " + exporter.getExportedCount() + " contacts in "
+                        + time + " ms");
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to write a contact: " + e.getMessage());
+                mHandler.post(new ErrorReasonDisplayer(
+                        getString(R.string.fail_reason_error_occurred_during_export,
+                                e.getMessage())));
+                shouldCallFinish = false;
             } finally {
-                if (composer != null) {
-                    composer.terminate();
+                if (writer != null) {
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                    }
                 }
                 mWakeLock.release();
                 mProgressDialog.dismiss();
@@ -217,6 +241,10 @@ public class ExportVCardActivity extends Activity {
 
         public void cancel() {
             mCanceled = true;
+            final VCardExporter exporter = mExporter;
+            if (exporter != null) {
+                exporter.cancel();
+            }
         }
 
         public void onCancel(DialogInterface dialog) {
@@ -21,9 +21,9 @@ import com.android.internal.util.ArrayUtils;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.CursorWrapper;
 import android.database.DataSetObserver;
 import android.os.Handler;
-import android.util.SparseIntArray;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseAdapter;
@@ -41,6 +41,25 @@ public abstract class GroupingListAdapter extends BaseAdapter {
     private static final long GROUP_SIZE_MASK     = 0x7FFFFFFF00000000L;
     private static final long EXPANDED_GROUP_MASK = 0x8000000000000000L;
 
+    /**
+     * Number of rows compared when checking whether a new cursor only adds rows
+     * in front of or behind the previous one.
+     */
+    private static final int PREFIX_CHECK_SAMPLES = 16;
+
+    /**
+     * Number of rows next to the added ones regrouped before looking for the point
+     * where the new grouping joins the old one.  Doubled until found when rows
+     * are added in front.
+     */
+    private static final int REGROUP_WINDOW = 32;
+
+    /**
+     * Number of consecutive group boundaries that have to agree between the new
+     * and the old grouping before the old groups are reused.
+     */
+    private static final int SYNC_BOUNDARIES = 3;
+
     public static final int ITEM_TYPE_STANDALONE = 0;
     public static final int ITEM_TYPE_GROUP_HEADER = 1;
     public static final int ITEM_TYPE_IN_GROUP = 2;
@@ -79,10 +98,13 @@ public abstract class GroupingListAdapter extends BaseAdapter {
      */
     private long[] mGroupMetadata;
 
-    private SparseIntArray mPositionCache = new SparseIntArray();
-    private int mLastCachedListPosition;
-    private int mLastCachedCursorPosition;
-    private int mLastCachedGroup;
+    /**
+     * List position of each group header, a prefix sum over the list items the
+     * groups in front of it hide.  Rebuilt lazily after groups change, and used to
+     * map list positions with a binary search.
+     */
+    private int[] mGroupListPositions = new int[0];
+    private boolean mGroupListPositionsValid;
 
     /**
      * A reusable temporary instance of PositionMetadata
@@ -141,29 +163,56 @@ public abstract class GroupingListAdapter extends BaseAdapter {
      */
     private void resetCache() {
         mCount = -1;
-        mLastCachedListPosition = -1;
-        mLastCachedCursorPosition = -1;
-        mLastCachedGroup = -1;
         mPositionMetadata.listPosition = -1;
-        mPositionCache.clear();
+        mGroupListPositionsValid = false;
     }
 
     protected void onContentChanged() {
     }
 
+    /**
+     * Returns true if {@link #changeCursor} may regroup only the rows added in
+     * front of or behind the previous cursor.  Subclasses enabling this must
+     * identify rows by a stable "_id", never change the grouped values of existing
+     * rows, and group in {@link #addGroups} by scanning the rows in order, where
+     * joining a row to a group depends only on that group and the group before it.
+     */
+    protected boolean isIncrementalGroupingSupported() {
+        return false;
+    }
+
     public void changeCursor(Cursor cursor) {
         if (cursor == mCursor) {
             return;
         }
 
+        int addedRows = -1;
+        boolean addedAtHead = true;
+        if (mCursor != null && cursor != null && isIncrementalGroupingSupported()) {
+            addedRows = getAddedRows(mCursor, cursor, true);
+            if (addedRows == -1) {
+                addedAtHead = false;
+                addedRows = getAddedRows(mCursor, cursor, false);
+            }
+        }
+
         if (mCursor != null) {
             mCursor.unregisterContentObserver(mChangeObserver);
             mCursor.unregisterDataSetObserver(mDataSetObserver);
             mCursor.close();
         }
         mCursor = cursor;
-        resetCache();
-        findGroups();
+        if (addedRows > 0) {
+            if (addedAtHead) {
+                regroupHead(addedRows);
+            } else {
+                regroupTail(addedRows);
+            }
+        } else if (addedRows < 0) {
+            resetCache();
+            findGroups();
+        }
+        mPositionMetadata.listPosition = -1;
 
         if (cursor != null) {
             cursor.registerContentObserver(mChangeObserver);
@@ -196,6 +245,350 @@ public abstract class GroupingListAdapter extends BaseAdapter {
         addGroups(mCursor);
     }
 
+    /**
+     * Returns how many rows {@code newCursor} has in front of ({@code atHead}) or
+     * behind the rows of {@code oldCursor}, or -1 if it differs from it in any
+     * other way.  Rather than reading every row, the row IDs are compared at the
+     * boundaries and at evenly spaced samples.
+     */
+    private int getAddedRows(Cursor oldCursor, Cursor newCursor, boolean atHead) {
+        if (oldCursor.isClosed()) {
+            return -1;
+        }
+        int oldCount = oldCursor.getCount();
+        int addedRows = newCursor.getCount() - oldCount;
+        if (oldCount == 0 || addedRows < 0) {
+            return -1;
+        }
+
+        int shift = atHead ? addedRows : 0;
+        int oldIdColumn = oldCursor.getColumnIndexOrThrow("_id");
+        int newIdColumn = newCursor.getColumnIndexOrThrow("_id");
+        int step = Math.max(1, oldCount / PREFIX_CHECK_SAMPLES);
+        for (int i = 0; i < oldCount; i += step) {
+            if (!sameRowId(oldCursor, oldIdColumn, i, newCursor, newIdColumn, i + shift)) {
+                return -1;
+            }
+        }
+        int last = oldCount - 1;
+        if (!sameRowId(oldCursor, oldIdColumn, last, newCursor, newIdColumn, last + shift)) {
+            return -1;
+        }
+        return addedRows;
+    }
+
+    private static boolean sameRowId(Cursor oldCursor, int oldIdColumn, int oldPosition,
+            Cursor newCursor, int newIdColumn, int newPosition) {
+        return oldCursor.moveToPosition(oldPosition) && newCursor.moveToPosition(newPosition)
+                && oldCursor.getLong(oldIdColumn) == newCursor.getLong(newIdColumn);
+    }
+
+    /**
+     * Regroups the rows added in front of the cursor and as many of the following
+     * rows as it takes for the grouping to agree with the previous one again.  The
+     * remaining groups are shifted rather than rediscovered, keeping their
+     * expanded state and list positions.
+     */
+    private void regroupHead(int addedRows) {
+        int count = mCursor.getCount();
+        long[] oldMetadata = mGroupMetadata;
+        int oldGroupCount = mGroupCount;
+        int[] oldListPositions = mGroupListPositionsValid ? mGroupListPositions : null;
+
+        int window = REGROUP_WINDOW;
+        while (true) {
+            int limit = Math.min(count, addedRows + window);
+            mGroupCount = 0;
+            mGroupMetadata = new long[GROUP_METADATA_ARRAY_INITIAL_SIZE];
+            addGroups(new WindowCursor(mCursor, 0, limit));
+            if (limit == count) {
+                // Regrouped everything after all
+                resetCache();
+                return;
+            }
+
+            int sync = findSyncPosition(mGroupMetadata, 0, mGroupCount, 0,
+                    oldMetadata, 0, oldGroupCount, addedRows, addedRows + 1, limit);
+            if (sync != -1) {
+                joinOldGroups(oldMetadata, oldListPositions, oldGroupCount, addedRows, sync);
+                return;
+            }
+            window *= 2;
+        }
+    }
+
+    /**
+     * Regroups the rows added behind the cursor together with the last
+     * {@link #REGROUP_WINDOW} old rows, whose groups may continue into the new
+     * ones.  The old groups in front of the point where both groupings agree are
+     * kept as they are, along with their expanded state and list positions.
+     */
+    private void regroupTail(int addedRows) {
+        int count = mCursor.getCount();
+        int oldCount = count - addedRows;
+        int start = Math.max(0, oldCount - REGROUP_WINDOW);
+        if (start == 0) {
+            resetCache();
+            findGroups();
+            return;
+        }
+
+        long[] oldMetadata = mGroupMetadata;
+        int oldGroupCount = mGroupCount;
+        int firstOldGroup = oldGroupCount;
+        while (firstOldGroup > 0 && groupEnd(oldMetadata[firstOldGroup - 1]) > start) {
+            firstOldGroup--;
+        }
+
+        mGroupCount = 0;
+        mGroupMetadata = new long[GROUP_METADATA_ARRAY_INITIAL_SIZE];
+        addGroups(new WindowCursor(mCursor, start, count));
+
+        int sync = findSyncPosition(mGroupMetadata, 0, mGroupCount, start,
+                oldMetadata, firstOldGroup, oldGroupCount, 0, start + 1, oldCount);
+        if (sync == -1) {
+            resetCache();
+            findGroups();
+            return;
+        }
+
+        int keptGroupCount = firstOldGroup;
+        while (keptGroupCount < oldGroupCount && groupOffset(oldMetadata[keptGroupCount]) < sync) {
+            keptGroupCount++;
+        }
+        int firstNewGroup = 0;
+        while (firstNewGroup < mGroupCount
+                && groupOffset(mGroupMetadata[firstNewGroup]) + start < sync) {
+            firstNewGroup++;
+        }
+
+        long[] newMetadata = mGroupMetadata;
+        int newGroupCount = mGroupCount;
+        int groupCount = keptGroupCount + newGroupCount - firstNewGroup;
+        long[] metadata = new long[ArrayUtils.idealLongArraySize(groupCount)];
+        System.arraycopy(oldMetadata, 0, metadata, 0, keptGroupCount);
+        for (int i = firstNewGroup; i < newGroupCount; i++) {
+            metadata[keptGroupCount + i - firstNewGroup] = newMetadata[i] + start;
+        }
+        mGroupMetadata = metadata;
+        mGroupCount = groupCount;
+        mCount = -1;
+
+        if (!mGroupListPositionsValid) {
+            return;
+        }
+
+        // Kept groups stay where they were, the new ones follow them
+        int[] listPositions = new int[metadata.length];
+        System.arraycopy(mGroupListPositions, 0, listPositions, 0, keptGroupCount);
+        int hidden = 0;
+        if (keptGroupCount > 0) {
+            long last = metadata[keptGroupCount - 1];
+            hidden = groupOffset(last) - listPositions[keptGroupCount - 1] + hiddenItems(last);
+        }
+        for (int i = keptGroupCount; i < groupCount; i++) {
+            listPositions[i] = groupOffset(metadata[i]) - hidden;
+            hidden += hiddenItems(metadata[i]);
+        }
+        mGroupListPositions = listPositions;
+    }
+
+    /**
+     * Returns the cursor position in {@code [from, to)} at which two groupings of
+     * the same rows have agreed on {@link #SYNC_BOUNDARIES} consecutive item
+     * boundaries, or -1 if they do not agree within that range.  The groups of
+     * each grouping are scanned from the given index, and their offsets shifted by
+     * the given number of rows.
+     */
+    private static int findSyncPosition(long[] a, int firstA, int countA, int shiftA,
+            long[] b, int firstB, int countB, int shiftB, int from, int to) {
+        int groupA = firstA;
+        int groupB = firstB;
+        int agreed = 0;
+        for (int position = from; position < to; position++) {
+            while (groupA < countA && groupEnd(a[groupA]) + shiftA <= position) {
+                groupA++;
+            }
+            while (groupB < countB && groupEnd(b[groupB]) + shiftB <= position) {
+                groupB++;
+            }
+            boolean boundaryA = groupA >= countA || groupOffset(a[groupA]) + shiftA >= position;
+            boolean boundaryB = groupB >= countB || groupOffset(b[groupB]) + shiftB >= position;
+            if (boundaryA != boundaryB) {
+                agreed = 0;
+            } else if (boundaryA && ++agreed == SYNC_BOUNDARIES) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Replaces the new groups from cursor position {@code sync} on with the old
+     * groups shifted by {@code addedRows}, and shifts the list positions and
+     * count by the number of list items the new head added.
+     */
+    private void joinOldGroups(long[] oldMetadata, int[] oldListPositions, int oldGroupCount,
+            int addedRows, int sync) {
+        int headGroupCount = 0;
+        int newListPosition = sync;
+        while (headGroupCount < mGroupCount
+                && groupOffset(mGroupMetadata[headGroupCount]) < sync) {
+            newListPosition -= hiddenItems(mGroupMetadata[headGroupCount]);
+            headGroupCount++;
+        }
+        int firstOldGroup = 0;
+        int oldListPosition = sync - addedRows;
+        while (firstOldGroup < oldGroupCount
+                && groupOffset(oldMetadata[firstOldGroup]) + addedRows < sync) {
+            oldListPosition -= hiddenItems(oldMetadata[firstOldGroup]);
+            firstOldGroup++;
+        }
+        int listShift = newListPosition - oldListPosition;
+        int groupShift = headGroupCount - firstOldGroup;
+
+        long[] metadata = new long[ArrayUtils.idealLongArraySize(
+                headGroupCount + oldGroupCount - firstOldGroup)];
+        System.arraycopy(mGroupMetadata, 0, metadata, 0, headGroupCount);
+        for (int i = firstOldGroup; i < oldGroupCount; i++) {
+            // Offsets are in the low bits, so adding the shift moves the group
+            metadata[i + groupShift] = oldMetadata[i] + addedRows;
+        }
+        mGroupMetadata = metadata;
+        mGroupCount = headGroupCount + oldGroupCount - firstOldGroup;
+
+        if (mCount != -1) {
+            mCount += listShift;
+        }
+
+        if (oldListPositions == null) {
+            mGroupListPositionsValid = false;
+            return;
+        }
+
+        // List positions of the head groups, then the old ones shifted
+        int[] listPositions = new int[metadata.length];
+        int hidden = 0;
+        for (int i = 0; i < headGroupCount; i++) {
+            listPositions[i] = groupOffset(mGroupMetadata[i]) - hidden;
+            hidden += hiddenItems(mGroupMetadata[i]);
+        }
+        for (int i = firstOldGroup; i < oldGroupCount; i++) {
+            listPositions[i + groupShift] = oldListPositions[i] + listShift;
+        }
+        mGroupListPositions = listPositions;
+        mGroupListPositionsValid = true;
+    }
+
+    private static int groupOffset(long metadata) {
+        return (int)(metadata & GROUP_OFFSET_MASK);
+    }
+
+    private static int groupSize(long metadata) {
+        return (int)((metadata & GROUP_SIZE_MASK) >> 32);
+    }
+
+    private static int groupEnd(long metadata) {
+        return groupOffset(metadata) + groupSize(metadata);
+    }
+
+    /**
+     * Returns the number of list items the group occupies.
+     */
+    private static int visibleItems(long metadata) {
+        return (metadata & EXPANDED_GROUP_MASK) != 0 ? groupSize(metadata) + 1 : 1;
+    }
+
+    /**
+     * Returns how many fewer list items than cursor rows the group occupies.
+     */
+    private static int hiddenItems(long metadata) {
+        return groupSize(metadata) - visibleItems(metadata);
+    }
+
+    /**
+     * Exposes a range of rows of a cursor to {@link #addGroups} as a cursor of
+     * their own.
+     */
+    private static class WindowCursor extends CursorWrapper {
+        private final int mStart;
+        private final int mCount;
+
+        public WindowCursor(Cursor cursor, int start, int end) {
+            super(cursor);
+            mStart = start;
+            mCount = end - start;
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int getPosition() {
+            return Math.max(-1, Math.min(mCount, super.getPosition() - mStart));
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            if (position < 0) {
+                super.moveToPosition(mStart - 1);
+                return false;
+            }
+            if (position >= mCount) {
+                super.moveToPosition(mStart + mCount);
+                return false;
+            }
+            return super.moveToPosition(mStart + position);
+        }
+
+        @Override
+        public boolean move(int offset) {
+            return moveToPosition(getPosition() + offset);
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            return moveToPosition(0);
+        }
+
+        @Override
+        public boolean moveToLast() {
+            return moveToPosition(mCount - 1);
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return moveToPosition(getPosition() + 1);
+        }
+
+        @Override
+        public boolean moveToPrevious() {
+            return moveToPosition(getPosition() - 1);
+        }
+
+        @Override
+        public boolean isFirst() {
+            return mCount != 0 && getPosition() == 0;
+        }
+
+        @Override
+        public boolean isLast() {
+            return mCount != 0 && getPosition() == mCount - 1;
+        }
+
+        @Override
+        public boolean isBeforeFirst() {
+            return mCount == 0 || getPosition() < 0;
+        }
+
+        @Override
+        public boolean isAfterLast() {
+            return mCount == 0 || getPosition() >= mCount;
+        }
+    }
+
     /**
      * Records information about grouping in the list.  Should be called by the overridden
      * {@link #addGroups} method.
@@ -225,27 +618,58 @@ public abstract class GroupingListAdapter extends BaseAdapter {
             return mCount;
         }
 
-        int cursorPosition = 0;
-        int count = 0;
-        for (int i = 0; i < mGroupCount; i++) {
-            long metadata = mGroupMetadata[i];
-            int offset = (int)(metadata & GROUP_OFFSET_MASK);
-            boolean expanded = (metadata & EXPANDED_GROUP_MASK) != 0;
-            int size = (int)((metadata & GROUP_SIZE_MASK) >> 32);
+        if (mGroupCount == 0) {
+            mCount = mCursor.getCount();
+            return mCount;
+        }
 
-            count += (offset - cursorPosition);
+        // Everything past the last group is a stand-alone item
+        int[] listPositions = obtainGroupListPositions();
+        long last = mGroupMetadata[mGroupCount - 1];
+        mCount = listPositions[mGroupCount - 1] + visibleItems(last)
+                + mCursor.getCount() - groupEnd(last);
+        return mCount;
+    }
 
-            if (expanded) {
-                count += size + 1;
-            } else {
-                count++;
-            }
+    /**
+     * Returns the list position of every group header, computing them if the
+     * groups changed since the last call.
+     */
+    private int[] obtainGroupListPositions() {
+        if (mGroupListPositionsValid) {
+            return mGroupListPositions;
+        }
 
-            cursorPosition = offset + size;
+        if (mGroupListPositions.length < mGroupCount) {
+            mGroupListPositions = new int[mGroupMetadata.length];
+        }
+        int hidden = 0;
+        for (int i = 0; i < mGroupCount; i++) {
+            long group = mGroupMetadata[i];
+            mGroupListPositions[i] = groupOffset(group) - hidden;
+            hidden += hiddenItems(group);
         }
+        mGroupListPositionsValid = true;
+        return mGroupListPositions;
+    }
 
-        mCount = count + mCursor.getCount() - cursorPosition;
-        return mCount;
+    /**
+     * Returns the index of the last group whose header is at or before the list
+     * position, or -1 if the position precedes all groups.
+     */
+    private int findGroupAtOrBefore(int position) {
+        int[] listPositions = obtainGroupListPositions();
+        int low = 0;
+        int high = mGroupCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (listPositions[mid] <= position) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
     }
 
     /**
@@ -260,113 +684,44 @@ public abstract class GroupingListAdapter extends BaseAdapter {
             return;
         }
 
-        int listPosition = 0;
-        int cursorPosition = 0;
-        int firstGroupToCheck = 0;
-
-        // Check cache for the supplied position.  What we are looking for is
-        // the group descriptor immediately preceding the supplied position.
+        // Find the group header at or immediately preceding the position.
         // Once we have that, we will be able to tell whether the position
         // is the header of the group, a member of the group or a standalone item.
-        if (mLastCachedListPosition != -1) {
-            if (position <= mLastCachedListPosition) {
-
-                // Have SparceIntArray do a binary search for us.
-                int index = mPositionCache.indexOfKey(position);
-
-                // If we get back a positive number, the position corresponds to
-                // a group header.
-                if (index < 0) {
-
-                    // We had a cache miss, but we did obtain valuable information anyway.
-                    // The negative number will allow us to compute the location of
-                    // the group header immediately preceding the supplied position.
-                    index = ~index - 1;
-
-                    if (index >= mPositionCache.size()) {
-                        index--;
-                    }
-                }
-
-                // A non-negative index gives us the position of the group header
-                // corresponding or preceding the position, so we can
-                // search for the group information at the supplied position
-                // starting with the cached group we just found
-                if (index >= 0) {
-                    listPosition = mPositionCache.keyAt(index);
-                    firstGroupToCheck = mPositionCache.valueAt(index);
-                    long descriptor = mGroupMetadata[firstGroupToCheck];
-                    cursorPosition = (int)(descriptor & GROUP_OFFSET_MASK);
-                }
-            } else {
+        int i = findGroupAtOrBefore(position);
 
-                // If we haven't examined groups beyond the supplied position,
-                // we will start where we left off previously
-                firstGroupToCheck = mLastCachedGroup;
-                listPosition = mLastCachedListPosition;
-                cursorPosition = mLastCachedCursorPosition;
-            }
+        // A) The requested position precedes all groups
+        if (i == -1) {
+            metadata.itemType = ITEM_TYPE_STANDALONE;
+            metadata.cursorPosition = position;
+            return;
         }
 
-        for (int i = firstGroupToCheck; i < mGroupCount; i++) {
-            long group = mGroupMetadata[i];
-            int offset = (int)(group & GROUP_OFFSET_MASK);
-
-            // Move pointers to the beginning of the group
-            listPosition += (offset - cursorPosition);
-            cursorPosition = offset;
-
-            if (i > mLastCachedGroup) {
-                mPositionCache.append(listPosition, i);
-                mLastCachedListPosition = listPosition;
-                mLastCachedCursorPosition = cursorPosition;
-                mLastCachedGroup = i;
-            }
-
-            // Now we have several possibilities:
-            // A) The requested position precedes the group
-            if (position < listPosition) {
-                metadata.itemType = ITEM_TYPE_STANDALONE;
-                metadata.cursorPosition = cursorPosition - (listPosition - position);
-                return;
-            }
-
-            boolean expanded = (group & EXPANDED_GROUP_MASK) != 0;
-            int size = (int) ((group & GROUP_SIZE_MASK) >> 32);
-
-            // B) The requested position is a group header
-            if (position == listPosition) {
-                metadata.itemType = ITEM_TYPE_GROUP_HEADER;
-                metadata.groupPosition = i;
-                metadata.isExpanded = expanded;
-                metadata.childCount = size;
-                metadata.cursorPosition = offset;
-                return;
-            }
-
-            if (expanded) {
-                // C) The requested position is an element in the expanded group
-                if (position < listPosition + size + 1) {
-                    metadata.itemType = ITEM_TYPE_IN_GROUP;
-                    metadata.cursorPosition = cursorPosition + (position - listPosition) - 1;
-                    return;
-                }
-
-                // D) The element is past the expanded group
-                listPosition += size + 1;
-            } else {
-
-                // E) The element is past the collapsed group
-                listPosition++;
-            }
+        long group = mGroupMetadata[i];
+        int listPosition = mGroupListPositions[i];
+        int offset = groupOffset(group);
+        boolean expanded = (group & EXPANDED_GROUP_MASK) != 0;
+        int size = groupSize(group);
+
+        // B) The requested position is a group header
+        if (position == listPosition) {
+            metadata.itemType = ITEM_TYPE_GROUP_HEADER;
+            metadata.groupPosition = i;
+            metadata.isExpanded = expanded;
+            metadata.childCount = size;
+            metadata.cursorPosition = offset;
+            return;
+        }
 
-            // Move cursor past the group
-            cursorPosition += size;
+        // C) The requested position is an element in the expanded group
+        if (expanded && position < listPosition + size + 1) {
+            metadata.itemType = ITEM_TYPE_IN_GROUP;
+            metadata.cursorPosition = offset + (position - listPosition) - 1;
+            return;
         }
 
-        // The required item is past the last group
+        // D) The requested position is past the group, and before the next one
         metadata.itemType = ITEM_TYPE_STANDALONE;
-        metadata.cursorPosition = cursorPosition + (position - listPosition);
+        metadata.cursorPosition = offset + size + (position - listPosition - visibleItems(group));
     }
 
     /**
@@ -37,17 +37,12 @@ import android.os.Environment;
 import android.os.Handler;
 import android.os.PowerManager;
 import android.pim.vcard.VCardConfig;
-import android.pim.vcard.VCardEntryCommitter;
+import android.pim.vcard.VCardEntry;
 import android.pim.vcard.VCardEntryConstructor;
-import android.pim.vcard.VCardEntryCounter;
-import android.pim.vcard.VCardInterpreter;
-import android.pim.vcard.VCardInterpreterCollection;
+import android.pim.vcard.VCardEntryHandler;
 import android.pim.vcard.VCardParser;
-import android.pim.vcard.VCardParser_V21;
 import android.pim.vcard.VCardParser_V30;
-import android.pim.vcard.VCardSourceDetector;
 import android.pim.vcard.exception.VCardException;
-import android.pim.vcard.exception.VCardNestedException;
 import android.pim.vcard.exception.VCardNotSupportedException;
 import android.pim.vcard.exception.VCardVersionException;
 import android.provider.ContactsContract.RawContacts;
@@ -59,17 +54,18 @@ import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 class VCardFile {
     private String mName;
@@ -112,6 +108,14 @@ public class ImportVCardActivity extends Activity {
     private final static int VCARD_VERSION_V30 = 2;
     private final static int VCARD_VERSION_V40 = 3;
 
+    /** File in the cache directory holding the result of the last SD card scan */
+    private static final String SCAN_INDEX_FILE_NAME = "vcard_scan_index";
+
+    /** Number of parsed entries a file may get ahead of the commit stage */
+    private static final int PARSE_QUEUE_CAPACITY = 64;
+    /** Queued after the last entry of a file */
+    private static final Object END_OF_VCARD_ENTRIES = new Object();
+
     // Run on the UI thread. Must not be null except after onDestroy().
     private Handler mHandler = new Handler();
 
@@ -161,13 +165,96 @@ public class ImportVCardActivity extends Activity {
             implements DialogInterface.OnCancelListener {
         private ContentResolver mResolver;
         private VCardParser mVCardParser;
-        private boolean mCanceled;
+        private volatile boolean mCanceled;
         private PowerManager.WakeLock mWakeLock;
         private Uri mUri;
         private File mTempFile;
+        private VCardImportCheckpoints mCheckpoints;
+        // Only used by the thread committing entries
+        private VCardDuplicateIndex mDuplicateIndex;
 
         private List<VCardFile> mSelectedVCardFileList;
         private List<String> mErrorFileNameList;
+        // Guarded by itself
+        private final List<VCardParseJob> mParseJobs = new ArrayList<VCardParseJob>();
+
+        /**
+         * Parses one of several selected files on the import pool, handing the
+         * entries over to the commit stage through a bounded queue.
+         */
+        private class VCardParseJob implements Runnable, VCardEntryHandler {
+            private final Uri mUri;
+            private final BlockingQueue<Object> mEntries =
+                    new ArrayBlockingQueue<Object>(PARSE_QUEUE_CAPACITY);
+            private final List<String> mJobErrorFileNameList = new ArrayList<String>();
+            private volatile VCardParser mParser;
+            // Set on the pool before the first entry is queued
+            private VCardBatchCommitter mCommitter;
+
+            public VCardParseJob(Uri uri) {
+                mUri = uri;
+            }
+
+            public void run() {
+                try {
+                    if (!mCanceled) {
+                        doActuallyReadOneVCard(mUri, false, this, mJobErrorFileNameList);
+                    }
+                } finally {
+                    try {
+                        mEntries.put(END_OF_VCARD_ENTRIES);
+                    } catch (InterruptedException e) {
+                        // Canceled, the commit stage is gone
+                    }
+                }
+            }
+
+            public void onStart() {
+            }
+
+            public void onEntryCreated(VCardEntry entry) {
+                try {
+                    mEntries.put(entry);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancel();
+                }
+            }
+
+            public void onEnd() {
+            }
+
+            /**
+             * Commits the entries of this file as they are parsed, on the calling
+             * thread.  Errors are collected in {@code errorFileNameList}.
+             */
+            public void commit(List<String> errorFileNameList) throws InterruptedException {
+                Object entry = mEntries.take();
+                final VCardBatchCommitter committer = mCommitter;
+                if (committer != null) {
+                    committer.onStart();
+                    while (entry != END_OF_VCARD_ENTRIES && !mCanceled) {
+                        committer.onEntryCreated((VCardEntry) entry);
+                        entry = mEntries.take();
+                    }
+                    committer.onEnd();
+                    if (committer.getFailedCount() > 0) {
+                        mJobErrorFileNameList.add(mUri.toString());
+                    }
+                }
+                if (!mCanceled && mJobErrorFileNameList.isEmpty()) {
+                    mCheckpoints.remove(mUri, mAccount);
+                }
+                errorFileNameList.addAll(mJobErrorFileNameList);
+            }
+
+            public void cancel() {
+                final VCardParser parser = mParser;
+                if (parser != null) {
+                    parser.cancel();
+                }
+            }
+        }
 
         public VCardReadThread(Uri uri) {
             mUri = uri;
@@ -183,6 +270,7 @@ public class ImportVCardActivity extends Activity {
         private void init() {
             Context context = ImportVCardActivity.this;
             mResolver = context.getContentResolver();
+            mCheckpoints = new VCardImportCheckpoints(context);
             PowerManager powerManager = (PowerManager)context.getSystemService(
                     Context.POWER_SERVICE);
             mWakeLock = powerManager.newWakeLock(
@@ -207,84 +295,32 @@ public class ImportVCardActivity extends Activity {
             // (e.g. OutOfMemoryError).
             // Even in such cases, some should be done.
             try {
+                if (getResources().getBoolean(R.bool.config_import_vcard_skip_duplicates)) {
+                    mDuplicateIndex = VCardDuplicateIndex.build(mResolver, mAccount);
+                }
                 if (mUri != null) {  // Read one vCard expressed by mUri
                     final Uri targetUri = mUri;
                     mProgressDialogForReadVCard.setProgressNumberFormat("");
                     mProgressDialogForReadVCard.setProgress(0);
 
-                    // Count the number of VCard entries
+                    // The vCard is parsed once, so progress is reported by the bytes read
+                    // rather than a count of entries.
                     mProgressDialogForReadVCard.setIndeterminate(true);
-                    long start;
-                    if (DO_PERFORMANCE_PROFILE) {
-                        start = System.currentTimeMillis();
-                    }
-                    final VCardEntryCounter counter = new VCardEntryCounter();
-                    final VCardSourceDetector detector = new VCardSourceDetector();
-                    final VCardInterpreterCollection builderCollection =
-                            new VCardInterpreterCollection(Arrays.asList(counter, detector));
-                    boolean result;
-                    try {
-                        // We don't know which type should be useld to parse the Uri.
-                        // It is possble to misinterpret the vCard, but we expect the parser
-                        // lets VCardSourceDetector detect the type before the misinterpretation.
-                        result = readOneVCardFile(targetUri, VCardConfig.VCARD_TYPE_UNKNOWN,
-                                builderCollection, true, null);
-                    } catch (VCardNestedException e) {
-                        try {
-                            final int estimatedVCardType = detector.getEstimatedType();
-                            final String estimatedCharset = detector.getEstimatedCharset();
-                            // Assume that VCardSourceDetector was able to detect the source.
-                            // Try again with the detector.
-                            result = readOneVCardFile(targetUri, estimatedVCardType,
-                                    counter, false, null);
-                        } catch (VCardNestedException e2) {
-                            result = false;
-                            Log.e(LOG_TAG, "Must not reach here. " + e2);
-                        }
-                    }
-                    if (DO_PERFORMANCE_PROFILE) {
-                        long time = System.currentTimeMillis() - start;
-                        Log.d(LOG_TAG, "time for counting the number of vCard entries: " +
-                                time + " ms");
-                    }
-                    if (!result) {
+                    final ArrayList<Uri> createdUris =
+                            doActuallyReadOneVCard(targetUri, true, null, mErrorFileNameList);
+                    if (createdUris == null) {
                         shouldCallFinish = false;
                         return;
                     }
-
-                    mProgressDialogForReadVCard.setProgressNumberFormat(
-                            getString(R.string.reading_vcard_contacts));
-                    mProgressDialogForReadVCard.setIndeterminate(false);
-                    mProgressDialogForReadVCard.setMax(counter.getCount());
-                    String charset = detector.getEstimatedCharset();
-                    createdUri = doActuallyReadOneVCard(targetUri, mAccount, true, detector,
-                            mErrorFileNameList);
+                    createdUri = createdUris.size() != 1 ?
+                            null : createdUris.get(0);
                 } else {  // Read multiple files.
                     mProgressDialogForReadVCard.setProgressNumberFormat(
                             getString(R.string.reading_vcard_files));
                     mProgressDialogForReadVCard.setMax(mSelectedVCardFileList.size());
                     mProgressDialogForReadVCard.setProgress(0);
 
-                    for (VCardFile vcardFile : mSelectedVCardFileList) {
-                        if (mCanceled) {
-                            return;
-                        }
-                        // TODO: detect scheme!
-                        final Uri targetUri = Uri.parse("file://" + vcardFile.getCanonicalPath());
-                        VCardSourceDetector detector = new VCardSourceDetector();
-                        try {
-                            if (!readOneVCardFile(targetUri, VCardConfig.VCARD_TYPE_UNKNOWN,
-                                    detector, true, mErrorFileNameList)) {
-                                continue;
-                            }
-                        } catch (VCardNestedException e) {
-                            // Assume that VCardSourceDetector was able to detect the source.
-                        }
-                        String charset = detector.getEstimatedCharset();
-                        doActuallyReadOneVCard(targetUri, mAccount,
-                                false, detector, mErrorFileNameList);
-                        mProgressDialogForReadVCard.incrementProgressBy(1);
-                    }
+                    readSelectedVCardFiles();
                 }
             } finally {
                 mWakeLock.release();
@@ -334,85 +370,124 @@ public class ImportVCardActivity extends Activity {
             }
         }
 
-        private Uri doActuallyReadOneVCard(Uri uri, Account account,
-                boolean showEntryParseProgress,
-                VCardSourceDetector detector, List<String> errorFileNameList) {
-            final Context context = ImportVCardActivity.this;
-            int vcardType = detector.getEstimatedType();
-            if (vcardType == VCardConfig.VCARD_TYPE_UNKNOWN) {
-                vcardType = VCardConfig.getVCardTypeFromString(
-                        context.getString(R.string.config_import_vcard_type));
-            }
-            final String estimatedCharset = detector.getEstimatedCharset();
-            final String currentLanguage = Locale.getDefault().getLanguage();
-            VCardEntryConstructor builder;
-            builder = new VCardEntryConstructor(vcardType, mAccount, estimatedCharset);
-            final VCardEntryCommitter committer = new VCardEntryCommitter(mResolver);
-            builder.addEntryHandler(committer);
-            if (showEntryParseProgress) {
-                builder.addEntryHandler(new ProgressShower(mProgressDialogForReadVCard,
-                        context.getString(R.string.reading_vcard_message),
-                        ImportVCardActivity.this,
-                        mHandler));
-            }
-
+        /**
+         * Parses the selected files on a pool of threads and commits their
+         * entries on this one, a file at a time in the order they were selected,
+         * so that the provider writes stay serialized.
+         */
+        private void readSelectedVCardFiles() {
+            final int threadCount = Math.max(1, Math.min(mSelectedVCardFileList.size(),
+                    Runtime.getRuntime().availableProcessors()));
+            final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
             try {
-                if (!readOneVCardFile(uri, vcardType, builder, false, null)) {
-                    return null;
+                for (VCardFile vcardFile : mSelectedVCardFileList) {
+                    // TODO: detect scheme!
+                    final Uri targetUri = Uri.parse("file://" + vcardFile.getCanonicalPath());
+                    final VCardParseJob job = new VCardParseJob(targetUri);
+                    synchronized (mParseJobs) {
+                        mParseJobs.add(job);
+                    }
+                    executor.execute(job);
+                }
+
+                // Jobs start in order, so the one committed is always running or done.
+                for (int i = 0; i < mSelectedVCardFileList.size(); i++) {
+                    if (mCanceled) {
+                        return;
+                    }
+                    final VCardParseJob job;
+                    synchronized (mParseJobs) {
+                        job = mParseJobs.get(i);
+                    }
+                    job.commit(mErrorFileNameList);
+                    mProgressDialogForReadVCard.incrementProgressBy(1);
                 }
-            } catch (VCardNestedException e) {
-                Log.e(LOG_TAG, "Never reach here.");
+            } catch (InterruptedException e) {
+                Log.w(LOG_TAG, "Interrupted while reading vCard files");
+            } finally {
+                // Unblocks the jobs left, when canceled
+                executor.shutdownNow();
             }
-            final ArrayList<Uri> createdUris = committer.getCreatedUris();
-            return (createdUris == null || createdUris.size() != 1) ? null : createdUris.get(0);
         }
 
         /**
-         * Charset should be handled by {@link VCardEntryConstructor}. 
+         * Reads one vCard in a single pass.  The version, type and charset are
+         * sniffed from the first bytes of the stream, see {@link VCardSource}.
+         * Charset should be handled by {@link VCardEntryConstructor}.
+         *
+         * @param parseJob if not null, the entries are handed to the job to be
+         *     committed by the commit stage rather than committed here
+         * @return the created raw contact URIs, or null if the vCard could not be
+         *     read, after reporting the error.  For a parse job the URIs are only
+         *     added once the commit stage commits the entries.
          */
-        private boolean readOneVCardFile(Uri uri, int vcardType,
-                VCardInterpreter interpreter,
-                boolean throwNestedException, List<String> errorFileNameList)
-                throws VCardNestedException {
-            InputStream is;
+        private ArrayList<Uri> doActuallyReadOneVCard(Uri uri,
+                boolean showEntryParseProgress, VCardParseJob parseJob,
+                List<String> errorFileNameList) {
+            final Context context = ImportVCardActivity.this;
+            long start;
+            if (DO_PERFORMANCE_PROFILE) {
+                start = System.currentTimeMillis();
+            }
+            VCardSource source = null;
+            VCardBatchCommitter committer;
             try {
-                is = mResolver.openInputStream(uri);
-                mVCardParser = new VCardParser_V21(vcardType);
+                source = VCardSource.open(mResolver, uri);
+                final CheckpointRecorder checkpointRecorder = new CheckpointRecorder(uri, source);
+                int vcardType = source.getEstimatedType();
+                if (vcardType == VCardConfig.VCARD_TYPE_UNKNOWN) {
+                    vcardType = VCardConfig.getVCardTypeFromString(
+                            context.getString(R.string.config_import_vcard_type));
+                }
+                final VCardEntryConstructor builder = new VCardEntryConstructor(vcardType,
+                        mAccount, source.getEstimatedCharset());
+                committer = new VCardBatchCommitter(mResolver,
+                        mAccount, vcardType, context.getResources().getInteger(
+                                R.integer.config_import_vcard_batch_size));
+                committer.setOnBatchCommittedListener(checkpointRecorder);
+                committer.setDuplicateIndex(mDuplicateIndex);
+                if (parseJob != null) {
+                    parseJob.mCommitter = committer;
+                    builder.addEntryHandler(parseJob);
+                } else {
+                    builder.addEntryHandler(committer);
+                }
+                ProgressShower progressShower = null;
+                if (showEntryParseProgress) {
+                    progressShower = new ProgressShower(mProgressDialogForReadVCard,
+                            context.getString(R.string.reading_vcard_message),
+                            ImportVCardActivity.this,
+                            mHandler);
+                    progressShower.setVCardSource(source);
+                    builder.addEntryHandler(progressShower);
+                    setByteProgressMax(source.getLength());
+                }
 
                 try {
-                    mVCardParser.parse(is, interpreter);
+                    final VCardParser parser = source.newParser(vcardType);
+                    setCurrentParser(parseJob, parser);
+                    parser.parse(source.getInputStream(), builder);
                 } catch (VCardVersionException e1) {
-                    try {
-                        is.close();
-                    } catch (IOException e) {
+                    if (source.getVersion() != VCardSource.VERSION_UNKNOWN) {
+                        throw new VCardException("vCard with unspported version.");
                     }
-                    if (interpreter instanceof VCardEntryConstructor) {
-                        // Let the object clean up internal temporal objects,
-                        ((VCardEntryConstructor)interpreter).clear();
-                    } else if (interpreter instanceof VCardInterpreterCollection) {
-                        for (VCardInterpreter elem :
-                            ((VCardInterpreterCollection) interpreter).getCollection()) {
-                            if (elem instanceof VCardEntryConstructor) {
-                                ((VCardEntryConstructor)elem).clear();
-                            }
-                        }
+                    // No VERSION was found in the first bytes; the vCard may still be 3.0.
+                    source.close();
+                    // Let the object clean up internal temporal objects,
+                    builder.clear();
+
+                    source = VCardSource.open(mResolver, uri);
+                    checkpointRecorder.resume(source);
+                    if (progressShower != null) {
+                        progressShower.setVCardSource(source);
                     }
-
-                    is = mResolver.openInputStream(uri);
-
                     try {
-                        mVCardParser = new VCardParser_V30(vcardType);
-                        mVCardParser.parse(is, interpreter);
+                        final VCardParser parser = new VCardParser_V30(vcardType);
+                        setCurrentParser(parseJob, parser);
+                        parser.parse(source.getInputStream(), builder);
                     } catch (VCardVersionException e2) {
                         throw new VCardException("vCard with unspported version.");
                     }
-                } finally {
-                    if (is != null) {
-                        try {
-                            is.close();
-                        } catch (IOException e) {
-                        }
-                    }
                 }
             } catch (IOException e) {
                 Log.e(LOG_TAG, "IOException was emitted: " + e.getMessage());
@@ -426,11 +501,8 @@ public class ImportVCardActivity extends Activity {
                             getString(R.string.fail_reason_io_error) +
                                     ": " + e.getLocalizedMessage()));
                 }
-                return false;
+                return null;
             } catch (VCardNotSupportedException e) {
-                if ((e instanceof VCardNestedException) && throwNestedException) {
-                    throw (VCardNestedException)e;
-                }
                 if (errorFileNameList != null) {
                     errorFileNameList.add(uri.toString());
                 } else {
@@ -438,7 +510,7 @@ public class ImportVCardActivity extends Activity {
                             getString(R.string.fail_reason_vcard_not_supported_error) +
                             " (" + e.getMessage() + ")"));
                 }
-                return false;
+                return null;
             } catch (VCardException e) {
                 if (errorFileNameList != null) {
                     errorFileNameList.add(uri.toString());
@@ -447,9 +519,91 @@ public class ImportVCardActivity extends Activity {
                             getString(R.string.fail_reason_vcard_parse_error) +
                             " (" + e.getMessage() + ")"));
                 }
-                return false;
+                return null;
+            } finally {
+                if (source != null) {
+                    source.close();
+                }
+            }
+            if (DO_PERFORMANCE_PROFILE) {
+                long time = System.currentTimeMillis() - start;
+                Log.d(LOG_TAG, "time for reading " + uri + ": " + time + " ms");
+            }
+            if (parseJob == null && committer.getFailedCount() > 0) {
+                if (errorFileNameList != null) {
+                    errorFileNameList.add(uri.toString());
+                } else {
+                    runOnUIThread(new DialogDisplayer(getString(
+                            R.string.fail_reason_failed_to_save_contacts,
+                            committer.getFailedCount())));
+                    return null;
+                }
+            } else if (parseJob == null && !mCanceled) {
+                mCheckpoints.remove(uri, mAccount);
+            }
+            return committer.getCreatedUris();
+        }
+
+        /**
+         * Resumes a vCard from its checkpoint, if any, and records a new one after
+         * each batch is committed.
+         */
+        private class CheckpointRecorder implements VCardBatchCommitter.OnBatchCommittedListener {
+            private final Uri mUri;
+            private final long mLength;
+            private final VCardImportCheckpoints.Checkpoint mCheckpoint;
+            private volatile VCardSource mSource;
+
+            public CheckpointRecorder(Uri uri, VCardSource source) throws IOException {
+                mUri = uri;
+                mLength = source.getLength();
+                mCheckpoint = mCheckpoints.get(uri, mAccount, mLength);
+                resume(source);
+            }
+
+            /**
+             * Skips the committed vCards of a newly opened source.
+             */
+            public void resume(VCardSource source) throws IOException {
+                mSource = source;
+                if (mCheckpoint != null) {
+                    source.skipTo(mCheckpoint.offset);
+                }
+            }
+
+            public void onBatchCommitted(int entryCount) {
+                final long offset = mSource.getEntryEnd(entryCount - 1);
+                if (offset >= 0) {
+                    final int skippedCount = mCheckpoint != null ? mCheckpoint.entryCount : 0;
+                    mCheckpoints.put(mUri, mAccount, mLength, offset,
+                            skippedCount + entryCount);
+                }
+            }
+        }
+
+        /**
+         * Switches the progress dialog to kilobytes read when the length of the
+         * vCard is known, and leaves it indeterminate otherwise.
+         */
+        private void setByteProgressMax(long length) {
+            if (length <= 0) {
+                return;
+            }
+            mProgressDialogForReadVCard.setProgressNumberFormat(
+                    getString(R.string.reading_vcard_kilobytes));
+            mProgressDialogForReadVCard.setIndeterminate(false);
+            mProgressDialogForReadVCard.setMax((int) ((length + 1023) / 1024));
+        }
+
+        private void setCurrentParser(VCardParseJob parseJob, VCardParser parser) {
+            if (parseJob != null) {
+                parseJob.mParser = parser;
+            } else {
+                mVCardParser = parser;
+            }
+            if (mCanceled) {
+                parser.cancel();
             }
-            return true;
         }
 
         public void cancel() {
@@ -457,6 +611,11 @@ public class ImportVCardActivity extends Activity {
             if (mVCardParser != null) {
                 mVCardParser.cancel();
             }
+            synchronized (mParseJobs) {
+                for (VCardParseJob job : mParseJobs) {
+                    job.cancel();
+                }
+            }
         }
 
         public void onCancel(DialogInterface dialog) {
@@ -561,6 +720,11 @@ public class ImportVCardActivity extends Activity {
         private Set<String> mCheckedPaths;
         private PowerManager.WakeLock mWakeLock;
 
+        private File mScanIndexFile;
+        // The index of the previous scan, and the one being built
+        private VCardScanIndex mLastScanIndex;
+        private VCardScanIndex mScanIndex;
+
         private class CanceledException extends Exception {
         }
 
@@ -569,6 +733,7 @@ public class ImportVCardActivity extends Activity {
             mGotIOException = false;
             mRootDirectory = sdcardDirectory;
             mCheckedPaths = new HashSet<String>();
+            mScanIndexFile = new File(getCacheDir(), SCAN_INDEX_FILE_NAME);
             PowerManager powerManager = (PowerManager)ImportVCardActivity.this.getSystemService(
                     Context.POWER_SERVICE);
             mWakeLock = powerManager.newWakeLock(
@@ -581,7 +746,13 @@ public class ImportVCardActivity extends Activity {
             mAllVCardFileList = new Vector<VCardFile>();
             try {
                 mWakeLock.acquire();
-                getVCardFileRecursively(mRootDirectory);
+                final String rootPath = mRootDirectory.getCanonicalPath();
+                mLastScanIndex = VCardScanIndex.load(mScanIndexFile, rootPath);
+                mScanIndex = new VCardScanIndex(rootPath);
+                getVCardFileRecursively(mRootDirectory, rootPath);
+                if (!mCanceled) {
+                    mScanIndex.save(mScanIndexFile);
+                }
             } catch (CanceledException e) {
                 mCanceled = true;
             } catch (IOException e) {
@@ -612,38 +783,75 @@ public class ImportVCardActivity extends Activity {
             }
         }
 
-        private void getVCardFileRecursively(File directory)
+        /**
+         * Collects the vCard files under {@code directory}.  Directories that did
+         * not change since the last scan are not listed again; only their vCard
+         * files and subdirectories are checked.
+         */
+        private void getVCardFileRecursively(File directory, String canonicalDirectoryPath)
                 throws CanceledException, IOException {
             if (mCanceled) {
                 throw new CanceledException();
             }
 
-            // e.g. secured directory may return null toward listFiles().
-            final File[] files = directory.listFiles();
-            if (files == null) {
-                Log.w(LOG_TAG, "listFiles() returned null (directory: " + directory + ")");
-                return;
+            final long lastModified = directory.lastModified();
+            VCardScanIndex.Directory listing =
+                    mLastScanIndex.getUnchanged(canonicalDirectoryPath, lastModified);
+            if (listing != null) {
+                mScanIndex.putUnchanged(canonicalDirectoryPath, listing);
+            } else {
+                // e.g. secured directory may return null toward listFiles().
+                final File[] files = directory.listFiles();
+                if (files == null) {
+                    Log.w(LOG_TAG, "listFiles() returned null (directory: " + directory + ")");
+                    return;
+                }
+                final ArrayList<String> subdirectories = new ArrayList<String>();
+                final ArrayList<VCardScanIndex.Entry> vcardFiles =
+                        new ArrayList<VCardScanIndex.Entry>();
+                for (File file : files) {
+                    if (mCanceled) {
+                        throw new CanceledException();
+                    }
+                    String canonicalPath = file.getCanonicalPath();
+                    if (file.isDirectory()) {
+                        subdirectories.add(canonicalPath);
+                    } else if (canonicalPath.toLowerCase().endsWith(".vcf")) {
+                        vcardFiles.add(new VCardScanIndex.Entry(file.getName(), canonicalPath,
+                                file.length(), file.lastModified()));
+                    }
+                }
+                listing = mScanIndex.putListed(canonicalDirectoryPath, lastModified,
+                        subdirectories.toArray(new String[subdirectories.size()]),
+                        vcardFiles.toArray(new VCardScanIndex.Entry[vcardFiles.size()]));
             }
-            for (File file : directory.listFiles()) {
-                if (mCanceled) {
-                    throw new CanceledException();
+
+            for (int i = 0; i < listing.files.length; i++) {
+                VCardScanIndex.Entry vcardFile = listing.files[i];
+                if (mCheckedPaths.contains(vcardFile.canonicalPath)) {
+                    continue;
+                }
+                mCheckedPaths.add(vcardFile.canonicalPath);
+
+                // Files edited in place do not change the time of their directory.
+                final File file = new File(vcardFile.canonicalPath);
+                final long fileLastModified = file.lastModified();
+                if (fileLastModified != vcardFile.lastModified) {
+                    vcardFile = new VCardScanIndex.Entry(vcardFile.name,
+                            vcardFile.canonicalPath, file.length(), fileLastModified);
+                    listing.files[i] = vcardFile;
                 }
-                String canonicalPath = file.getCanonicalPath();
+                if (file.canRead()) {
+                    mAllVCardFileList.add(new VCardFile(
+                            vcardFile.name, vcardFile.canonicalPath, vcardFile.lastModified));
+                }
+            }
+            for (String canonicalPath : listing.subdirectories) {
                 if (mCheckedPaths.contains(canonicalPath)) {
                     continue;
                 }
-
                 mCheckedPaths.add(canonicalPath);
-
-                if (file.isDirectory()) {
-                    getVCardFileRecursively(file);
-                } else if (canonicalPath.toLowerCase().endsWith(".vcf") &&
-                        file.canRead()){
-                    String fileName = file.getName();
-                    VCardFile vcardFile = new VCardFile(
-                            fileName, canonicalPath, file.lastModified());
-                    mAllVCardFileList.add(vcardFile);
-                }
+                getVCardFileRecursively(new File(canonicalPath), canonicalPath);
             }
         }
 
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.telephony.PhoneNumberUtils;
+
+/**
+ * Compares phone numbers held in char arrays with the same loose semantics as
+ * {@link PhoneNumberUtils#compare(String, String)}, without allocating.  Used to
+ * group adjacent call log rows, which are copied out of the cursor into
+ * reusable {@link android.database.CharArrayBuffer}s.
+ */
+final class PhoneNumberComparator {
+    /** Number of trailing digits that must match, as in PhoneNumberUtils */
+    private static final int MIN_MATCH = 7;
+
+    private static final char PAUSE = ',';
+    private static final char WAIT = ';';
+    private static final char WILD = 'N';
+
+    private PhoneNumberComparator() {
+    }
+
+    /**
+     * Returns true if the first {@code lengthA} chars of {@code a} and the first
+     * {@code lengthB} chars of {@code b} are the same phone number.
+     */
+    public static boolean compare(char[] a, int lengthA, char[] b, int lengthB) {
+        if (lengthA == 0 || lengthB == 0) {
+            return false;
+        }
+
+        int ia = indexOfLastNetworkChar(a, lengthA);
+        int ib = indexOfLastNetworkChar(b, lengthB);
+        int matched = 0;
+        int numNonDialableCharsInA = 0;
+        int numNonDialableCharsInB = 0;
+
+        while (ia >= 0 && ib >= 0) {
+            boolean skipCmp = false;
+
+            char ca = a[ia];
+            if (!isDialable(ca)) {
+                ia--;
+                skipCmp = true;
+                numNonDialableCharsInA++;
+            }
+
+            char cb = b[ib];
+            if (!isDialable(cb)) {
+                ib--;
+                skipCmp = true;
+                numNonDialableCharsInB++;
+            }
+
+            if (!skipCmp) {
+                if (cb != ca && ca != WILD && cb != WILD) {
+                    break;
+                }
+                ia--;
+                ib--;
+                matched++;
+            }
+        }
+
+        if (matched < MIN_MATCH) {
+            // Short numbers are equal if all their dialable chars matched,
+            // e.g. 404-04 and 40404
+            int effectiveALen = lengthA - numNonDialableCharsInA;
+            int effectiveBLen = lengthB - numNonDialableCharsInB;
+            return effectiveALen == effectiveBLen && effectiveALen == matched;
+        }
+
+        // At least one number has matched completely
+        if (ia < 0 || ib < 0) {
+            return true;
+        }
+
+        // What remains must be a '+' on one and a '00' or '011' on the other, or
+        // a trunk '0' on one and an international prefix and country code on the other
+        if (matchIntlPrefix(a, ia + 1) && matchIntlPrefix(b, ib + 1)) {
+            return true;
+        }
+        if (matchTrunkPrefix(a, ia + 1) && matchIntlPrefixAndCC(b, ib + 1)) {
+            return true;
+        }
+        if (matchTrunkPrefix(b, ib + 1) && matchIntlPrefixAndCC(a, ia + 1)) {
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the index of the last char before any pause or wait, or
+     * {@code length - 1} if there is none.
+     */
+    private static int indexOfLastNetworkChar(char[] a, int length) {
+        for (int i = 0; i < length; i++) {
+            char c = a[i];
+            if (c == PAUSE || c == WAIT) {
+                return i - 1;
+            }
+        }
+        return length - 1;
+    }
+
+    private static boolean isDialable(char c) {
+        return (c >= '0' && c <= '9') || c == '*' || c == '#' || c == '+' || c == WILD;
+    }
+
+    private static boolean isNonSeparator(char c) {
+        return (c >= '0' && c <= '9') || c == '*' || c == '#' || c == '+'
+                || c == WILD || c == WAIT || c == PAUSE;
+    }
+
+    private static boolean isISODigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Returns true if the first {@code length} chars are an international prefix
+     * ('+', '00' or '011') and separators.
+     */
+    private static boolean matchIntlPrefix(char[] a, int length) {
+        int state = 0;
+        for (int i = 0; i < length; i++) {
+            char c = a[i];
+            switch (state) {
+                case 0:
+                    if (c == '+') state = 1;
+                    else if (c == '0') state = 2;
+                    else if (isNonSeparator(c)) return false;
+                    break;
+
+                case 2:
+                    if (c == '0') state = 3;
+                    else if (c == '1') state = 4;
+                    else if (isNonSeparator(c)) return false;
+                    break;
+
+                case 4:
+                    if (c == '1') state = 5;
+                    else if (isNonSeparator(c)) return false;
+                    break;
+
+                default:
+                    if (isNonSeparator(c)) return false;
+                    break;
+            }
+        }
+        return state == 1 || state == 3 || state == 5;
+    }
+
+    /**
+     * Returns true if the first {@code length} chars are an international prefix
+     * followed by a country code of one to three digits, and separators.
+     */
+    private static boolean matchIntlPrefixAndCC(char[] a, int length) {
+        int state = 0;
+        for (int i = 0; i < length; i++) {
+            char c = a[i];
+            switch (state) {
+                case 0:
+                    if (c == '+') state = 1;
+                    else if (c == '0') state = 2;
+                    else if (isNonSeparator(c)) return false;
+                    break;
+
+                case 2:
+                    if (c == '0') state = 3;
+                    else if (c == '1') state = 4;
+                    else if (isNonSeparator(c)) return false;
+                    break;
+
+                case 4:
+                    if (c == '1') state = 5;
+                    else if (isNonSeparator(c)) return false;
+                    break;
+
+                case 1:
+                case 3:
+                case 5:
+                    if (isISODigit(c)) state = 6;
+                    else if (isNonSeparator(c)) return false;
+                    break;
+
+                case 6:
+                case 7:
+                    if (isISODigit(c)) state++;
+                    else if (isNonSeparator(c)) return false;
+                    break;
+
+                default:
+                    if (isNonSeparator(c)) return false;
+                    break;
+            }
+        }
+        return state == 6 || state == 7 || state == 8;
+    }
+
+    /**
+     * Returns true if the first {@code length} chars are a single trunk prefix
+     * '0' and separators.
+     */
+    private static boolean matchTrunkPrefix(char[] a, int length) {
+        boolean found = false;
+        for (int i = 0; i < length; i++) {
+            char c = a[i];
+            if (c == '0' && !found) {
+                found = true;
+            } else if (isNonSeparator(c)) {
+                return false;
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Warms the photo cache for the rows a list is about to show.  Fed from
+ * {@link android.widget.AbsListView.OnScrollListener#onScroll}, it estimates the
+ * scroll direction and velocity and queues the photos of the next rows in that
+ * direction with {@link ContactPhotoLoader#prefetchPhoto}.  The faster the list
+ * moves, the further ahead it looks.  Queued work is dropped whenever the
+ * direction changes.
+ */
+class PhotoPrefetcher {
+    private static final String TAG = "PhotoPrefetcher";
+    private static final boolean LOGV = false;
+
+    /**
+     * Rows prefetched ahead of the visible ones even when scrolling slowly.
+     */
+    private static final int MIN_PREFETCH_ROWS = 4;
+
+    /**
+     * Upper bound for the rows prefetched ahead of the visible ones.
+     */
+    private static final int MAX_PREFETCH_ROWS = 48;
+
+    /**
+     * How far ahead, in time, the rows to prefetch are estimated.
+     */
+    private static final int PREFETCH_WINDOW_MS = 500;
+
+    /**
+     * Value of {@link #mPrefetchedUntil} before anything was queued.  Scrolling
+     * up stops at -1, so that cannot be used.
+     */
+    private static final int NOT_PREFETCHED = Integer.MIN_VALUE;
+
+    /**
+     * Supplies photo IDs for list positions.
+     */
+    public interface PhotoIdSource {
+        /**
+         * Returns the photo ID shown at {@code position}, or 0 if there is none
+         * or it is not known yet.
+         */
+        long getPhotoId(int position);
+    }
+
+    private final ContactPhotoLoader mPhotoLoader;
+    private final PhotoIdSource mSource;
+
+    private int mLastFirstVisible = -1;
+    private long mLastScrollTime;
+    private int mDirection;
+    private float mVelocity;
+
+    /**
+     * First position past the rows queued so far, in the scroll direction.
+     */
+    private int mPrefetchedUntil = NOT_PREFETCHED;
+
+    public PhotoPrefetcher(ContactPhotoLoader photoLoader, PhotoIdSource source) {
+        mPhotoLoader = photoLoader;
+        mSource = source;
+    }
+
+    /**
+     * Updates the scroll estimate and queues photos for the rows ahead.
+     */
+    public void onScroll(int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        long now = SystemClock.uptimeMillis();
+        if (mLastFirstVisible == -1 || totalItemCount == 0) {
+            mLastFirstVisible = firstVisibleItem;
+            mLastScrollTime = now;
+            return;
+        }
+
+        int delta = firstVisibleItem - mLastFirstVisible;
+        if (delta == 0) {
+            return;
+        }
+
+        int direction = delta > 0 ? 1 : -1;
+        if (direction != mDirection) {
+            mPhotoLoader.cancelPrefetch();
+            mDirection = direction;
+            mPrefetchedUntil = NOT_PREFETCHED;
+            mVelocity = 0;
+        }
+
+        long elapsed = Math.max(1, now - mLastScrollTime);
+        float velocity = Math.abs(delta) * 1000f / elapsed;
+        // Smooth out the irregular intervals between scroll callbacks
+        mVelocity = mVelocity == 0 ? velocity : (mVelocity + velocity) / 2;
+        mLastFirstVisible = firstVisibleItem;
+        mLastScrollTime = now;
+
+        int rows = MIN_PREFETCH_ROWS + (int) (mVelocity * PREFETCH_WINDOW_MS / 1000);
+        rows = Math.min(rows, MAX_PREFETCH_ROWS);
+
+        int start;
+        int end;
+        if (direction > 0) {
+            start = firstVisibleItem + visibleItemCount;
+            end = Math.min(start + rows, totalItemCount);
+            if (mPrefetchedUntil > start) {
+                start = mPrefetchedUntil;
+            }
+            for (int i = start; i < end; i++) {
+                prefetch(i);
+            }
+            mPrefetchedUntil = Math.max(mPrefetchedUntil, end);
+        } else {
+            start = firstVisibleItem - 1;
+            end = Math.max(start - rows, -1);
+            if (mPrefetchedUntil != NOT_PREFETCHED && mPrefetchedUntil < start) {
+                start = mPrefetchedUntil;
+            }
+            for (int i = start; i > end; i--) {
+                prefetch(i);
+            }
+            mPrefetchedUntil = mPrefetchedUntil == NOT_PREFETCHED
+                    ? end : Math.min(mPrefetchedUntil, end);
+        }
+
+        if (LOGV) {
+            Log.v(TAG, "velocity=" + mVelocity + " rows/s, prefetching " + rows
+                    + " rows, bind hit rate " + mPhotoLoader.getBindHitRate() + "%");
+        }
+    }
+
+    /**
+     * Forgets the scroll estimate and drops queued work, e.g. when the list
+     * contents change.
+     */
+    public void reset() {
+        mPhotoLoader.cancelPrefetch();
+        mLastFirstVisible = -1;
+        mDirection = 0;
+        mVelocity = 0;
+        mPrefetchedUntil = NOT_PREFETCHED;
+    }
+
+    private void prefetch(int position) {
+        long photoId = mSource.getPhotoId(position);
+        if (photoId != 0) {
+            mPhotoLoader.prefetchPhoto(photoId);
+        }
+    }
+}
@@ -31,6 +31,9 @@ public class ProgressShower implements VCardEntryHandler {
     private final ProgressDialog mProgressDialog;
     private final String mProgressMessage;
 
+    // Set when progress is reported by the bytes read instead of the entries
+    private volatile VCardSource mVCardSource;
+
     private long mTime;
     
     private class ShowProgressRunnable implements Runnable {
@@ -43,7 +46,12 @@ public class ProgressShower implements VCardEntryHandler {
         public void run() {
             mProgressDialog.setMessage( mProgressMessage + "\n" + 
                     mContact.getDisplayName());
-            mProgressDialog.incrementProgressBy(1);
+            final VCardSource source = mVCardSource;
+            if (source != null) {
+                mProgressDialog.setProgress((int) (source.getBytesRead() / 1024));
+            } else {
+                mProgressDialog.incrementProgressBy(1);
+            }
         }
     }
     
@@ -57,6 +65,14 @@ public class ProgressShower implements VCardEntryHandler {
         mProgressMessage = progressMessage;
     }
 
+    /**
+     * Reports progress in kilobytes read from the given source rather than
+     * in entries.
+     */
+    public void setVCardSource(VCardSource source) {
+        mVCardSource = source;
+    }
+
     public void onStart() {
     }
 
@@ -24,12 +24,15 @@ import android.app.Dialog;
 import android.app.ListActivity;
 import android.content.ActivityNotFoundException;
 import android.content.AsyncQueryHandler;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.DialogInterface.OnClickListener;
+import android.content.OperationApplicationException;
 import android.database.CharArrayBuffer;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabaseCorruptException;
@@ -48,16 +51,12 @@ import android.os.SystemClock;
 import android.provider.CallLog;
 import android.provider.CallLog.Calls;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
-import android.provider.ContactsContract.CommonDataKinds.SipAddress;
 import android.provider.ContactsContract.Contacts;
-import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.Intents.Insert;
 import android.provider.ContactsContract.PhoneLookup;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.TelephonyManager;
-import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
-import android.text.format.DateUtils;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.KeyEvent;
@@ -77,9 +76,11 @@ import android.widget.ResourceCursorAdapter;
 import android.widget.TextView;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
-import java.util.Locale;
+import java.util.Map;
 
 //Wysie
 import android.app.AlertDialog;
@@ -98,6 +99,7 @@ import android.widget.AbsListView.OnScrollListener;
 import android.widget.QuickContactBadge;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.lang.ref.SoftReference;
 import java.util.HashSet;
 
@@ -162,6 +164,21 @@ public class RecentCallsListActivity extends ListActivity
     private static final int CONTEXT_MENU_CALL_CONTACT = 8;
 
 
+    /** Maximum number of caller info requests resolved together */
+    private static final int CALLER_ID_BATCH_SIZE = 50;
+
+    /** Cached names are written back once no update was queued for this long */
+    private static final long CALL_LOG_UPDATE_QUIET_MS = 1000;
+
+    /** How long change notifications are attributed to our own write-back */
+    private static final long SELF_CHANGE_TIMEOUT_MS = 2000;
+
+    /** Number of calls loaded at first, and added whenever older calls are shown */
+    private static final int CALL_LOG_PAGE_SIZE = 100;
+
+    /** Older calls are loaded once the list is scrolled this close to its end */
+    private static final int CALL_LOG_PAGE_THRESHOLD = 20;
+
     private static final int QUERY_TOKEN = 53;
     private static final int UPDATE_TOKEN = 54;
 
@@ -177,10 +194,6 @@ public class RecentCallsListActivity extends ListActivity
     private static boolean exactTime;
     private static boolean is24hour;
     private static boolean showSeconds;
-    private static final String format24HourSeconds = "MMM d, kk:mm:ss";
-    private static final String format24Hour = "MMM d, kk:mm";
-    private static final String format12HourSeconds = "MMM d, h:mm:ssaa";
-    private static final String format12Hour = "MMM d, h:mmaa";
     private static int mRecordCount = 0;
     
     //Wysie: Contact pictures
@@ -190,6 +203,16 @@ public class RecentCallsListActivity extends ListActivity
     private static boolean showDialButton;
 
     private boolean mScrollToTop;
+
+    /**
+     * Date of the oldest call loaded, 0 until a page was loaded or once the
+     * loaded calls are all gone.  Requeries load the calls up to this date, so
+     * the loaded window only grows.
+     */
+    private long mOldestLoadedDate;
+    /** Whether the last page came back full, so there may be older calls */
+    private boolean mHasOlderCalls;
+    private boolean mLoadingOlderCalls;
     private static final String INSERT_BLACKLIST = "com.android.phone.INSERT_BLACKLIST";
 
     private ContactPhotoLoader mPhotoLoader;
@@ -206,6 +229,22 @@ public class RecentCallsListActivity extends ListActivity
         public String lookupKey;
 
         public static ContactInfo EMPTY = new ContactInfo();
+
+        /**
+         * Returns a copy without the formatted number, which is filled in by
+         * whoever shows it.
+         */
+        public ContactInfo copy() {
+            ContactInfo info = new ContactInfo();
+            info.personId = personId;
+            info.name = name;
+            info.type = type;
+            info.label = label;
+            info.number = number;
+            info.photoId = photoId;
+            info.lookupKey = lookupKey;
+            return info;
+        }
     }
 
     public static final class RecentCallsListItemViews {
@@ -233,22 +272,11 @@ public class RecentCallsListActivity extends ListActivity
         String numberLabel;
     }
 
-    /**
-     * Shared builder used by {@link #formatPhoneNumber(String)} to minimize
-     * allocations when formatting phone numbers.
-     */
-    private static final SpannableStringBuilder sEditable = new SpannableStringBuilder();
-
-    /**
-     * Invalid formatting type constant for {@link #sFormattingType}.
-     */
-    private static final int FORMATTING_TYPE_INVALID = -1;
-
-    /**
-     * Cached formatting type for current {@link Locale}, as provided by
-     * {@link PhoneNumberUtils#getFormatTypeForLocale(Locale)}.
-     */
-    private static int sFormattingType = FORMATTING_TYPE_INVALID;
+    static final class RowFormatQuery {
+        long rowId;
+        String number;
+        long date;
+    }
     
     
     //Wysie: Contact pictures
@@ -267,7 +295,8 @@ public class RecentCallsListActivity extends ListActivity
 
     /** Adapter class to fill in data for the Call Log */
     final class RecentCallsAdapter extends GroupingListAdapter
-            implements Runnable, ViewTreeObserver.OnPreDrawListener, View.OnClickListener, OnScrollListener {
+            implements Runnable, ViewTreeObserver.OnPreDrawListener, View.OnClickListener, OnScrollListener,
+            PhotoPrefetcher.PhotoIdSource {
         HashMap<String,ContactInfo> mContactInfo;
         private final LinkedList<CallerInfoQuery> mRequests;
         private volatile boolean mDone;
@@ -275,8 +304,29 @@ public class RecentCallsListActivity extends ListActivity
         ViewTreeObserver.OnPreDrawListener mPreDrawListener;
         private static final int REDRAW = 1;
         private static final int START_THREAD = 2;
+        /** Rows queued for formatting at a time, ahead of the visible ones */
+        private static final int FORMAT_AHEAD_ROWS = 50;
         private boolean mFirst;
         private Thread mCallerIdThread;
+        private final CallerIdResolver mCallerIdResolver;
+        private final CallerIdCache mCallerIdCache;
+        final CallLogFormatter mFormatter = new CallLogFormatter();
+
+        // Rows to format in the background, guarded by mRequests
+        private final LinkedList<RowFormatQuery> mFormatRequests =
+                new LinkedList<RowFormatQuery>();
+        // Cursor position up to which rows were queued for formatting
+        private int mFormatQueuedEnd;
+
+        // Call log write-back, keyed by number and guarded by itself
+        private final LinkedHashMap<String, ContentValues> mCallLogUpdates =
+                new LinkedHashMap<String, ContentValues>();
+        private long mLastCallLogUpdateTime;
+
+        // Change notifications expected from our own write-back
+        private final AtomicInteger mPendingSelfChanges = new AtomicInteger();
+        private volatile long mSelfChangeDeadline;
+        private final PhotoPrefetcher mPhotoPrefetcher;
 
         private CharSequence[] mLabelArray;
 
@@ -342,6 +392,9 @@ public class RecentCallsListActivity extends ListActivity
             mContactInfo = new HashMap<String,ContactInfo>();
             mRequests = new LinkedList<CallerInfoQuery>();
             mPreDrawListener = null;
+            mPhotoPrefetcher = new PhotoPrefetcher(mPhotoLoader, this);
+            mCallerIdResolver = new CallerIdResolver(getContentResolver());
+            mCallerIdCache = CallerIdCache.getInstance(RecentCallsListActivity.this);
 
             mDrawableIncoming = getResources().getDrawable(
                     R.drawable.ic_call_log_list_incoming_call);
@@ -354,14 +407,42 @@ public class RecentCallsListActivity extends ListActivity
         }
 
         /**
-         * Requery on background thread when {@link Cursor} changes.
+         * Requery on background thread when {@link Cursor} changes, unless the
+         * change was caused by our own write-back of cached names.
          */
         @Override
         protected void onContentChanged() {
+            if (consumeSelfChange()) {
+                return;
+            }
             // Start async requery
             startQuery();
         }
 
+        /**
+         * New calls are added in front of the log, which is ordered by date, and
+         * {@link #addGroups} only looks at the previous row and the group it joins.
+         */
+        @Override
+        protected boolean isIncrementalGroupingSupported() {
+            return true;
+        }
+
+        /**
+         * Returns true if a call log change notification is accounted for by a
+         * write-back that completed recently.
+         */
+        private boolean consumeSelfChange() {
+            int pending;
+            do {
+                pending = mPendingSelfChanges.get();
+                if (pending == 0) {
+                    return false;
+                }
+            } while (!mPendingSelfChanges.compareAndSet(pending, pending - 1));
+            return SystemClock.uptimeMillis() < mSelfChangeDeadline;
+        }
+
         void setLoading(boolean loading) {
             mLoading = loading;
         }
@@ -396,28 +477,97 @@ public class RecentCallsListActivity extends ListActivity
             synchronized (mContactInfo) {
                 mContactInfo.clear();
             }
+            mCallerIdResolver.invalidate();
         }
 
-        private void updateCallLog(CallerInfoQuery ciq, ContactInfo ci) {
+        /**
+         * Queues a write-back of the contact info to the call log if the cached
+         * values differ.  Queued updates are applied together by
+         * {@link #flushCallLogUpdates} once no update has been queued for
+         * {@link #CALL_LOG_UPDATE_QUIET_MS}.
+         *
+         * @return true if an update was queued
+         */
+        private boolean updateCallLog(CallerInfoQuery ciq, ContactInfo ci) {
             // Check if they are different. If not, don't update.
             if (TextUtils.equals(ciq.name, ci.name)
                     && TextUtils.equals(ciq.numberLabel, ci.label)
                     && ciq.numberType == ci.type) {
-                return;
+                return false;
             }
             ContentValues values = new ContentValues(3);
             values.put(Calls.CACHED_NAME, ci.name);
             values.put(Calls.CACHED_NUMBER_TYPE, ci.type);
             values.put(Calls.CACHED_NUMBER_LABEL, ci.label);
 
+            synchronized (mCallLogUpdates) {
+                // A later update for the same number supersedes an earlier one
+                mCallLogUpdates.put(ciq.number, values);
+                mLastCallLogUpdateTime = SystemClock.uptimeMillis();
+            }
+            return true;
+        }
+
+        /**
+         * Returns how long to wait before queued call log updates may be
+         * applied, 0 if they may be applied now, or -1 if there are none.
+         */
+        private long getCallLogUpdateDelay() {
+            synchronized (mCallLogUpdates) {
+                if (mCallLogUpdates.isEmpty()) {
+                    return -1;
+                }
+                long elapsed = SystemClock.uptimeMillis() - mLastCallLogUpdateTime;
+                return Math.max(0, CALL_LOG_UPDATE_QUIET_MS - elapsed);
+            }
+        }
+
+        /**
+         * Applies all queued call log updates in a single batch.
+         */
+        private void flushCallLogUpdates() {
+            ArrayList<ContentProviderOperation> operations;
+            synchronized (mCallLogUpdates) {
+                if (mCallLogUpdates.isEmpty()) {
+                    return;
+                }
+                operations = new ArrayList<ContentProviderOperation>(mCallLogUpdates.size());
+                for (Map.Entry<String, ContentValues> entry : mCallLogUpdates.entrySet()) {
+                    operations.add(ContentProviderOperation.newUpdate(Calls.CONTENT_URI)
+                            .withSelection(Calls.NUMBER + "=?", new String[] { entry.getKey() })
+                            .withValues(entry.getValue())
+                            .build());
+                }
+                mCallLogUpdates.clear();
+            }
+
+            // Every update that touches a row notifies the call log observers;
+            // expect as many notifications and ignore them in onContentChanged()
+            mPendingSelfChanges.set(operations.size());
+            mSelfChangeDeadline = SystemClock.uptimeMillis() + SELF_CHANGE_TIMEOUT_MS;
             try {
-                RecentCallsListActivity.this.getContentResolver().update(Calls.CONTENT_URI, values,
-                        Calls.NUMBER + "='" + ciq.number + "'", null);
+                ContentProviderResult[] results = RecentCallsListActivity.this
+                        .getContentResolver().applyBatch(CallLog.AUTHORITY, operations);
+                for (ContentProviderResult result : results) {
+                    if (result.count != null && result.count == 0) {
+                        mPendingSelfChanges.decrementAndGet();
+                    }
+                }
+                mSelfChangeDeadline = SystemClock.uptimeMillis() + SELF_CHANGE_TIMEOUT_MS;
+            } catch (RemoteException e) {
+                mPendingSelfChanges.set(0);
+                Log.w(TAG, "Exception while updating call info", e);
+            } catch (OperationApplicationException e) {
+                mPendingSelfChanges.set(0);
+                Log.w(TAG, "Exception while updating call info", e);
             } catch (SQLiteDiskIOException e) {
+                mPendingSelfChanges.set(0);
                 Log.w(TAG, "Exception while updating call info", e);
             } catch (SQLiteFullException e) {
+                mPendingSelfChanges.set(0);
                 Log.w(TAG, "Exception while updating call info", e);
             } catch (SQLiteDatabaseCorruptException e) {
+                mPendingSelfChanges.set(0);
                 Log.w(TAG, "Exception while updating call info", e);
             }
         }
@@ -436,158 +586,128 @@ public class RecentCallsListActivity extends ListActivity
             }
         }
 
-        private boolean queryContactInfo(CallerInfoQuery ciq) {
-            // First check if there was a prior request for the same number
-            // that was already satisfied
-            ContactInfo info = mContactInfo.get(ciq.number);
-            boolean needNotify = false;
-            if (info != null && info != ContactInfo.EMPTY) {
-                return true;
-            } else {
-                // Ok, do a fresh Contacts lookup for ciq.number.
-                boolean infoUpdated = false;
-
-                if (PhoneNumberUtils.isUriNumber(ciq.number)) {
-                    // This "number" is really a SIP address.
-
-                    // TODO: This code is duplicated from the
-                    // CallerInfoAsyncQuery class.  To avoid that, could the
-                    // code here just use CallerInfoAsyncQuery, rather than
-                    // manually running ContentResolver.query() itself?
-
-                    // We look up SIP addresses directly in the Data table:
-                    Uri contactRef = Data.CONTENT_URI;
-
-                    // Note Data.DATA1 and SipAddress.SIP_ADDRESS are equivalent.
-                    //
-                    // Also note we use "upper(data1)" in the WHERE clause, and
-                    // uppercase the incoming SIP address, in order to do a
-                    // case-insensitive match.
-                    //
-                    // TODO: May also need to normalize by adding "sip:" as a
-                    // prefix, if we start storing SIP addresses that way in the
-                    // database.
-                    String selection = "upper(" + Data.DATA1 + ")=?"
-                            + " AND "
-                            + Data.MIMETYPE + "='" + SipAddress.CONTENT_ITEM_TYPE + "'";
-                    String[] selectionArgs = new String[] { ciq.number.toUpperCase() };
-
-                    Cursor dataTableCursor =
-                            RecentCallsListActivity.this.getContentResolver().query(
-                                    contactRef,
-                                    null,  // projection
-                                    selection,  // selection
-                                    selectionArgs,  // selectionArgs
-                                    null);  // sortOrder
-
-                    if (dataTableCursor != null) {
-                        if (dataTableCursor.moveToFirst()) {
-                            info = new ContactInfo();
-
-                            // TODO: we could slightly speed this up using an
-                            // explicit projection (and thus not have to do
-                            // those getColumnIndex() calls) but the benefit is
-                            // very minimal.
-
-                            // Note the Data.CONTACT_ID column here is
-                            // equivalent to the PERSON_ID_COLUMN_INDEX column
-                            // we use with "phonesCursor" below.
-                            info.personId = dataTableCursor.getLong(
-                                    dataTableCursor.getColumnIndex(Data.CONTACT_ID));
-                            info.name = dataTableCursor.getString(
-                                    dataTableCursor.getColumnIndex(Data.DISPLAY_NAME));
-                            // "type" and "label" are currently unused for SIP addresses
-                            info.type = SipAddress.TYPE_OTHER;
-                            info.label = null;
-
-                            // And "number" is the SIP address.
-                            // Note Data.DATA1 and SipAddress.SIP_ADDRESS are equivalent.
-                            info.number = dataTableCursor.getString(
-                                    dataTableCursor.getColumnIndex(Data.DATA1));
-
-							//Wysie: Contact pictures
-							info.photoId = dataTableCursor.getLong(dataTableCursor.getColumnIndex(Data.PHOTO_ID));
-							info.lookupKey = dataTableCursor.getString(dataTableCursor.getColumnIndex(Data.LOOKUP_KEY));
-
-                            infoUpdated = true;
-                        }
-                        dataTableCursor.close();
-                    }
-                } else {
-                    // "number" is a regular phone number, so use the
-                    // PhoneLookup table:
-                    Cursor phonesCursor =
-                            RecentCallsListActivity.this.getContentResolver().query(
-                                Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
-                                                     Uri.encode(ciq.number)),
-                                PHONES_PROJECTION, null, null, null);
-                    if (phonesCursor != null) {
-                        if (phonesCursor.moveToFirst()) {
-                            info = new ContactInfo();
-                            info.personId = phonesCursor.getLong(PERSON_ID_COLUMN_INDEX);
-                            info.name = phonesCursor.getString(NAME_COLUMN_INDEX);
-                            info.type = phonesCursor.getInt(PHONE_TYPE_COLUMN_INDEX);
-                            info.label = phonesCursor.getString(LABEL_COLUMN_INDEX);
-                            info.number = phonesCursor.getString(MATCHED_NUMBER_COLUMN_INDEX);
-                        	
-                        	//Wysie: Contact pictures
-                        	info.photoId = phonesCursor.getLong(PHOTO_ID_COLUMN_INDEX);
-                        	info.lookupKey = phonesCursor.getString(LOOKUP_KEY_COLUMN_INDEX);
-
-                        	//Wysie: Contact pictures
-                        	info.photoId = phonesCursor.getLong(PHOTO_ID_COLUMN_INDEX);
-                        	info.lookupKey = phonesCursor.getString(LOOKUP_KEY_COLUMN_INDEX);
-
-                            infoUpdated = true;
-                        }
-                        phonesCursor.close();
+        /**
+         * Resolves a batch of requests, looking up each distinct number once.
+         *
+         * @return true if new contact info was found and the list should redraw
+         */
+        private boolean queryContactInfo(ArrayList<CallerInfoQuery> batch) {
+            // Group requests by number, skipping numbers satisfied by a prior request
+            LinkedHashMap<String, ArrayList<CallerInfoQuery>> requestsByNumber =
+                    new LinkedHashMap<String, ArrayList<CallerInfoQuery>>();
+            ArrayList<String> numbersToResolve = new ArrayList<String>();
+            for (CallerInfoQuery ciq : batch) {
+                ArrayList<CallerInfoQuery> requests = requestsByNumber.get(ciq.number);
+                if (requests == null) {
+                    requests = new ArrayList<CallerInfoQuery>(1);
+                    requestsByNumber.put(ciq.number, requests);
+                    ContactInfo info = mContactInfo.get(ciq.number);
+                    if (info == null || info == ContactInfo.EMPTY
+                            || !mCallerIdCache.isVerified(ciq.number)) {
+                        numbersToResolve.add(ciq.number);
                     }
                 }
+                requests.add(ciq);
+            }
+
+            HashMap<String, ContactInfo> resolved = numbersToResolve.isEmpty()
+                    ? new HashMap<String, ContactInfo>()
+                    : mCallerIdResolver.resolve(numbersToResolve);
+
+            boolean needNotify = false;
+            for (Map.Entry<String, ArrayList<CallerInfoQuery>> entry
+                    : requestsByNumber.entrySet()) {
+                String number = entry.getKey();
+                ContactInfo info = resolved.get(number);
+                if (info != null) {
+                    mCallerIdCache.put(number, info);
 
-                if (infoUpdated) {
-                    // New incoming phone number invalidates our formatted
-                    // cache. Any cache fills happen only on the GUI thread.
-                    info.formattedNumber = null;
+                    // Format the contact's number here rather than when binding
+                    info.formattedNumber = mFormatter.formatNumber(info.number);
 
-                    mContactInfo.put(ciq.number, info);
+                    mContactInfo.put(number, info);
 
                     // Inform list to update this item, if in view
                     needNotify = true;
+                } else {
+                    if (numbersToResolve.contains(number)) {
+                        mCallerIdCache.put(number, null);
+                        ContactInfo previous = mContactInfo.put(number, ContactInfo.EMPTY);
+                        if (previous != null && previous != ContactInfo.EMPTY) {
+                            // A persisted entry turned out to be stale
+                            needNotify = true;
+                        }
+                        continue;
+                    }
+                    info = mContactInfo.get(number);
+                    if (info == null || info == ContactInfo.EMPTY) {
+                        continue;
+                    }
+                }
+
+                // All rows of a number are updated at once, so one stale request is enough
+                for (CallerInfoQuery ciq : entry.getValue()) {
+                    if (updateCallLog(ciq, info)) {
+                        break;
+                    }
                 }
-            }
-            if (info != null) {
-                updateCallLog(ciq, info);
             }
             return needNotify;
         }
 
         /*
-         * Handles requests for contact name and number type
+         * Handles requests for contact name and number type, a batch at a time
          * @see java.lang.Runnable#run()
          */
         public void run() {
             boolean needNotify = false;
+            ArrayList<CallerInfoQuery> batch = new ArrayList<CallerInfoQuery>(CALLER_ID_BATCH_SIZE);
+            ArrayList<RowFormatQuery> formatBatch =
+                    new ArrayList<RowFormatQuery>(CALLER_ID_BATCH_SIZE);
             while (!mDone) {
-                CallerInfoQuery ciq = null;
+                batch.clear();
+                formatBatch.clear();
+                boolean flush = false;
                 synchronized (mRequests) {
                     if (!mRequests.isEmpty()) {
-                        ciq = mRequests.removeFirst();
+                        while (!mRequests.isEmpty() && batch.size() < CALLER_ID_BATCH_SIZE) {
+                            batch.add(mRequests.removeFirst());
+                        }
+                    } else if (!mFormatRequests.isEmpty()) {
+                        // Caller info goes first, rows are formatted in between
+                        while (!mFormatRequests.isEmpty()
+                                && formatBatch.size() < CALLER_ID_BATCH_SIZE) {
+                            formatBatch.add(mFormatRequests.removeFirst());
+                        }
                     } else {
                         if (needNotify) {
                             needNotify = false;
                             mHandler.sendEmptyMessage(REDRAW);
                         }
-                        try {
-                            mRequests.wait(1000);
-                        } catch (InterruptedException ie) {
-                            // Ignore and continue processing requests
+                        long delay = getCallLogUpdateDelay();
+                        if (delay == 0) {
+                            flush = true;
+                        } else {
+                            try {
+                                mRequests.wait(delay > 0 ? delay : 1000);
+                            } catch (InterruptedException ie) {
+                                // Ignore and continue processing requests
+                            }
                         }
                     }
                 }
-                if (ciq != null && queryContactInfo(ciq)) {
+                if (flush) {
+                    flushCallLogUpdates();
+                }
+                if (!batch.isEmpty() && queryContactInfo(batch)) {
                     needNotify = true;
                 }
+                if (!formatBatch.isEmpty()) {
+                    formatRows(formatBatch);
+                }
             }
+            // Do not lose updates queued right before the list was left
+            flushCallLogUpdates();
         }
 
         @Override
@@ -643,11 +763,8 @@ public class RecentCallsListActivity extends ListActivity
         }
 
         protected boolean equalPhoneNumbers(CharArrayBuffer buffer1, CharArrayBuffer buffer2) {
-
-            // TODO add PhoneNumberUtils.compare(CharSequence, CharSequence) to avoid
-            // string allocation
-            return PhoneNumberUtils.compare(new String(buffer1.data, 0, buffer1.sizeCopied),
-                    new String(buffer2.data, 0, buffer2.sizeCopied));
+            return PhoneNumberComparator.compare(buffer1.data, buffer1.sizeCopied,
+                    buffer2.data, buffer2.sizeCopied);
         }
 
 
@@ -728,6 +845,8 @@ public class RecentCallsListActivity extends ListActivity
             final RecentCallsListItemViews views = (RecentCallsListItemViews) view.getTag();
 
             String number = c.getString(NUMBER_COLUMN_INDEX);
+            CallLogFormatter.Row row = mFormatter.obtain(c.getLong(ID_COLUMN_INDEX), number,
+                    c.getLong(DATE_COLUMN_INDEX));
             String formattedNumber = null;
             String callerName = c.getString(CALLER_NAME_COLUMN_INDEX);
             int callerNumberType = c.getInt(CALLER_NUMBERTYPE_COLUMN_INDEX);
@@ -752,20 +871,30 @@ public class RecentCallsListActivity extends ListActivity
 
             // Lookup contacts with this number
             ContactInfo info = mContactInfo.get(number);
+            boolean queued = false;
             if (info == null) {
-                // Mark it as empty and queue up a request to find the name
+                // Paint from the shared cache if possible, but queue up a request
+                // to find the name unless the cached entry has been verified.
                 // The db request should happen on a non-UI thread
-                info = ContactInfo.EMPTY;
+                info = mCallerIdCache.get(number);
+                boolean verified = info != null && mCallerIdCache.isVerified(number);
+                if (info == null) {
+                    info = ContactInfo.EMPTY;
+                }
                 mContactInfo.put(number, info);
-                enqueueRequest(number, c.getPosition(),
-                        callerName, callerNumberType, callerNumberLabel);
-            } else if (info != ContactInfo.EMPTY) { // Has been queried
+                if (!verified) {
+                    enqueueRequest(number, c.getPosition(),
+                            callerName, callerNumberType, callerNumberLabel);
+                    queued = true;
+                }
+            }
+            if (info != ContactInfo.EMPTY) { // Has been queried
                 // Check if any data is different from the data cached in the
                 // calls db. If so, queue the request so that we can update
                 // the calls db.
-                if (!TextUtils.equals(info.name, callerName)
+                if (!queued && (!TextUtils.equals(info.name, callerName)
                         || info.type != callerNumberType
-                        || !TextUtils.equals(info.label, callerNumberLabel)) {
+                        || !TextUtils.equals(info.label, callerNumberLabel))) {
                     // Something is amiss, so sync up.
                     enqueueRequest(number, c.getPosition(),
                             callerName, callerNumberType, callerNumberLabel);
@@ -773,7 +902,7 @@ public class RecentCallsListActivity extends ListActivity
 
                 // Format and cache phone number for found contact
                 if (info.formattedNumber == null) {
-                    info.formattedNumber = formatPhoneNumber(info.number);
+                    info.formattedNumber = mFormatter.formatNumber(info.number);
                 }
                 formattedNumber = info.formattedNumber;
             }
@@ -789,8 +918,8 @@ public class RecentCallsListActivity extends ListActivity
                 ntype = callerNumberType;
                 label = callerNumberLabel;
 
-                // Format the cached call_log phone number
-                formattedNumber = formatPhoneNumber(number);
+                // Use the formatted call_log phone number
+                formattedNumber = row.formattedNumber;
             }
             // Set the text lines and call icon.
             // Assumes the call back feature is on most of the
@@ -853,8 +982,8 @@ public class RecentCallsListActivity extends ListActivity
                                 .equals(mVoiceMailNumber)) {
                     number = getString(R.string.voicemail);
                 } else {
-                    // Just a raw number, and no cache, so format it nicely
-                    number = formatPhoneNumber(number);
+                    // Just a raw number, and no cache, so show it formatted nicely
+                    number = row.formattedNumber;
                 }
                 
                 //Wysie
@@ -896,35 +1025,7 @@ public class RecentCallsListActivity extends ListActivity
                 views.nonQuickContactPhotoView.setVisibility(View.GONE);
             }
 
-            long date = c.getLong(DATE_COLUMN_INDEX);
-            
-            if (!exactTime) {
-                // Set the date/time field by mixing relative and absolute times.
-                int flags = DateUtils.FORMAT_ABBREV_RELATIVE;
-
-                views.dateView.setText(
-                        DateUtils.getRelativeTimeSpanString(date,
-                        System.currentTimeMillis(), DateUtils.MINUTE_IN_MILLIS,
-                        flags));
-            } else {
-                String format = null;
-
-                if (is24hour) {
-                    if (showSeconds) {
-                        format = format24HourSeconds;
-                    } else {
-                        format = format24Hour;
-                    }
-                } else {
-                    if (showSeconds) {
-                        format = format12HourSeconds;
-                    } else {
-                        format = format12Hour;
-                    }                  	
-                }
-                
-                views.dateView.setText(DateFormat.format(format, date));                         
-            }
+            views.dateView.setText(row.date);
 
             if (showDialButton) {
                 views.dividerView.setVisibility(View.VISIBLE);
@@ -963,9 +1064,90 @@ public class RecentCallsListActivity extends ListActivity
         //Wysie: Contact pictures
         public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
                 int totalItemCount) {
-            // no op
+            if (mDisplayPhotos) {
+                mPhotoPrefetcher.onScroll(firstVisibleItem, visibleItemCount, totalItemCount);
+            }
+            if (totalItemCount > 0 && firstVisibleItem + visibleItemCount
+                    + CALL_LOG_PAGE_THRESHOLD >= totalItemCount) {
+                loadOlderCalls();
+            }
+            int lastVisibleItem = firstVisibleItem + visibleItemCount - 1;
+            if (lastVisibleItem >= 0 && lastVisibleItem < getCount()) {
+                Cursor c = (Cursor) getItem(lastVisibleItem);
+                if (c != null && mFormatQueuedEnd < c.getCount()
+                        && c.getPosition() + FORMAT_AHEAD_ROWS / 2 >= mFormatQueuedEnd) {
+                    enqueueFormatRequests(c, Math.max(mFormatQueuedEnd, c.getPosition() + 1));
+                }
+            }
         }
-        
+
+        /**
+         * Returns the photo of the caller at {@code position} if it has been
+         * looked up already.
+         */
+        public long getPhotoId(int position) {
+            Cursor c = (Cursor) getItem(position);
+            if (c == null) {
+                return 0;
+            }
+            ContactInfo info = mContactInfo.get(c.getString(NUMBER_COLUMN_INDEX));
+            return info != null ? info.photoId : 0;
+        }
+
+        @Override
+        public void changeCursor(Cursor cursor) {
+            mPhotoPrefetcher.reset();
+            super.changeCursor(cursor);
+            synchronized (mRequests) {
+                // Rows of an older cursor are not worth formatting anymore
+                mFormatRequests.clear();
+            }
+            mFormatQueuedEnd = 0;
+            if (cursor != null) {
+                int firstVisibleItem = getListView().getFirstVisiblePosition();
+                Cursor c = firstVisibleItem < getCount() ? (Cursor) getItem(firstVisibleItem) : null;
+                enqueueFormatRequests(cursor, c != null ? c.getPosition() : 0);
+            }
+        }
+
+        /**
+         * Queues up to {@link #FORMAT_AHEAD_ROWS} rows from cursor position
+         * {@code start} whose number and date have not been formatted yet, to be
+         * formatted by the request thread once it has no caller info to look up.
+         * Only rows about to be scrolled in are queued, so that the UI thread never
+         * walks the whole cursor.
+         */
+        private void enqueueFormatRequests(Cursor cursor, int start) {
+            int end = Math.min(start + FORMAT_AHEAD_ROWS, cursor.getCount());
+            ArrayList<RowFormatQuery> queries = new ArrayList<RowFormatQuery>(Math.max(end - start, 0));
+            for (int i = start; i < end && cursor.moveToPosition(i); i++) {
+                long rowId = cursor.getLong(ID_COLUMN_INDEX);
+                if (mFormatter.contains(rowId)) {
+                    continue;
+                }
+                RowFormatQuery query = new RowFormatQuery();
+                query.rowId = rowId;
+                query.number = cursor.getString(NUMBER_COLUMN_INDEX);
+                query.date = cursor.getLong(DATE_COLUMN_INDEX);
+                queries.add(query);
+            }
+            mFormatQueuedEnd = Math.max(mFormatQueuedEnd, end);
+            synchronized (mRequests) {
+                mFormatRequests.addAll(queries);
+                mRequests.notifyAll();
+            }
+        }
+
+        /**
+         * Formats a batch of queued rows.  Rows on screen were formatted when they
+         * were bound, so there is nothing to redraw.
+         */
+        private void formatRows(ArrayList<RowFormatQuery> batch) {
+            for (RowFormatQuery query : batch) {
+                mFormatter.prefetch(query.rowId, query.number, query.date);
+            }
+        }
+
         public void onScrollStateChanged(AbsListView view, int scrollState) {
             if (scrollState == OnScrollListener.SCROLL_STATE_FLING) {
                 mPhotoLoader.pause();
@@ -1021,6 +1203,23 @@ public class RecentCallsListActivity extends ListActivity
             if (activity != null && !activity.isFinishing()) {
                 final RecentCallsListActivity.RecentCallsAdapter callsAdapter = activity.mAdapter;
                 callsAdapter.setLoading(false);
+                if (cookie != null) {
+                    // A page query, which is full unless it reached the end of the log
+                    activity.mHasOlderCalls = cursor.getCount() >= (Integer) cookie;
+                }
+                activity.mLoadingOlderCalls = false;
+                if (cursor.moveToLast()) {
+                    activity.mOldestLoadedDate = cursor.getLong(DATE_COLUMN_INDEX);
+                } else if (cookie == null) {
+                    // Every loaded call is gone, e.g. the log was cleared: start over
+                    // from the first page instead of staying pinned to that date
+                    cursor.close();
+                    activity.mOldestLoadedDate = 0;
+                    activity.startQuery();
+                    return;
+                } else {
+                    activity.mOldestLoadedDate = 0;
+                }
                 callsAdapter.changeCursor(cursor);
                 if (activity.mScrollToTop) {
                     if (activity.mList.getFirstVisiblePosition() > 5) {
@@ -1053,14 +1252,12 @@ public class RecentCallsListActivity extends ListActivity
 
         mAdapter = new RecentCallsAdapter();
         getListView().setOnCreateContextMenuListener(this);
+        getListView().setOnScrollListener(mAdapter);
         setListAdapter(mAdapter);
 
         mVoiceMailNumber = ((TelephonyManager)getSystemService(Context.TELEPHONY_SERVICE))
                 .getVoiceMailNumber();
         mQueryHandler = new QueryHandler(this);
-
-        // Reset locale-based formatting cache
-        sFormattingType = FORMATTING_TYPE_INVALID;
     }
 
     @Override
@@ -1084,6 +1281,7 @@ public class RecentCallsListActivity extends ListActivity
             exactTime = ePrefs.getBoolean("cl_exact_time", true);
             is24hour = DateFormat.is24HourFormat(this);
             showSeconds = ePrefs.getBoolean("cl_show_seconds", true);
+            mAdapter.mFormatter.setDateOptions(exactTime, is24hour, showSeconds);
             mDisplayPhotos = ePrefs.getBoolean("cl_show_pic", true);
             showDialButton = ePrefs.getBoolean("cl_show_dial_button", false);
             
@@ -1103,6 +1301,7 @@ public class RecentCallsListActivity extends ListActivity
 
         // Kill the requests thread
         mAdapter.stopRequestProcessing();
+        CallerIdCache.getInstance(this).persist();
     }
 
     @Override
@@ -1135,39 +1334,6 @@ public class RecentCallsListActivity extends ListActivity
         }
     }
 
-    /**
-     * Format the given phone number using
-     * {@link PhoneNumberUtils#formatNumber(android.text.Editable, int)}. This
-     * helper method uses {@link #sEditable} and {@link #sFormattingType} to
-     * prevent allocations between multiple calls.
-     * <p>
-     * Because of the shared {@link #sEditable} builder, <b>this method is not
-     * thread safe</b>, and should only be called from the GUI thread.
-     * <p>
-     * If the given String object is null or empty, return an empty String.
-     */
-    private String formatPhoneNumber(String number) {
-        if (TextUtils.isEmpty(number)) {
-            return "";
-        }
-
-        // If "number" is really a SIP address, don't try to do any formatting at all.
-        if (PhoneNumberUtils.isUriNumber(number)) {
-            return number;
-        }
-
-        // Cache formatting type if not already present
-        if (sFormattingType == FORMATTING_TYPE_INVALID) {
-            sFormattingType = PhoneNumberUtils.getFormatTypeForLocale(Locale.getDefault());
-        }
-
-        sEditable.clear();
-        sEditable.append(number);
-
-        PhoneNumberUtils.formatNumber(sEditable, sFormattingType);
-        return sEditable.toString();
-    }
-
     private void resetNewCallsFlag() {
         // Mark all "new" missed calls as not new anymore
         StringBuilder where = new StringBuilder("type=");
@@ -1185,8 +1351,45 @@ public class RecentCallsListActivity extends ListActivity
 
         // Cancel any pending queries
         mQueryHandler.cancelOperation(QUERY_TOKEN);
-        mQueryHandler.startQuery(QUERY_TOKEN, null, Calls.CONTENT_URI,
-                CALL_LOG_PROJECTION, null, null, Calls.DEFAULT_SORT_ORDER);
+        if (mOldestLoadedDate == 0) {
+            startPageQuery(CALL_LOG_PAGE_SIZE);
+        } else {
+            // Calls made since only add rows in front of the loaded ones
+            mQueryHandler.startQuery(QUERY_TOKEN, null, Calls.CONTENT_URI,
+                    CALL_LOG_PROJECTION, Calls.DATE + ">=?",
+                    new String[] { String.valueOf(mOldestLoadedDate) },
+                    Calls.DEFAULT_SORT_ORDER);
+        }
+    }
+
+    /**
+     * Extends the loaded calls by another page of older ones, unless the end of
+     * the call log was reached or a page is being loaded.
+     */
+    void loadOlderCalls() {
+        if (!mHasOlderCalls || mLoadingOlderCalls) {
+            return;
+        }
+        mLoadingOlderCalls = true;
+
+        Cursor cursor = mAdapter.getCursor();
+        int loaded = cursor != null ? cursor.getCount() : 0;
+        mQueryHandler.cancelOperation(QUERY_TOKEN);
+        startPageQuery(loaded + CALL_LOG_PAGE_SIZE);
+    }
+
+    /**
+     * Queries the {@code limit} most recent calls.  The limit is passed as the
+     * cookie, to tell whether the end of the call log was reached.
+     *
+     * Every page reloads the whole window rather than just the new calls, so
+     * that the adapter keeps a single cursor; loading k pages reads on the order
+     * of k * k * {@link #CALL_LOG_PAGE_SIZE} rows in total.  That stays cheap
+     * because the call log provider keeps no more than 500 calls.
+     */
+    private void startPageQuery(int limit) {
+        mQueryHandler.startQuery(QUERY_TOKEN, limit, Calls.CONTENT_URI,
+                CALL_LOG_PROJECTION, null, null, Calls.DEFAULT_SORT_ORDER + " LIMIT " + limit);
     }
 
     @Override
@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import com.android.contacts.T9Search.ContactItem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Substring index over the normalized names and numbers of the T9 contact list.
+ * Every suffix of every {@link ContactItem#normalName} and
+ * {@link ContactItem#normalNumber} is kept in a sorted suffix array, so that a
+ * query only needs a binary search for the first suffix starting with the
+ * digits plus a walk over the matching range. The cost of a keystroke is
+ * therefore proportional to the number of hits rather than to the number of
+ * contacts.
+ *
+ * Names with several words additionally get word-boundary keys: the initials
+ * ("57" for John Smith), the words typed without the separating zero
+ * ("564676484"), and both of those with one middle name skipped.  Such keys only
+ * match as prefixes and carry a score that is computed once at build time, so
+ * the richer matching is again a single binary search per keystroke.
+ *
+ * The index is immutable once built; the owner rebuilds it when the contact
+ * list changes.  Queries must all come from the same thread.
+ */
+class T9Index {
+
+    /**
+     * Longest key that gets indexed. Offsets are packed into the low bits of a
+     * suffix entry, anything beyond this can't be matched.
+     */
+    private static final int MAX_KEY_LENGTH = 0xffff;
+
+    /**
+     * Names with more words than this get no word-boundary keys beyond the
+     * ones starting at each word.
+     */
+    private static final int MAX_SKIP_TOKENS = 6;
+
+    /**
+     * Separator between the words of a normalized name; spaces map to the 0 key.
+     */
+    private static final char TOKEN_SEPARATOR = '0';
+
+    private final ContactItem[] mItems;
+
+    /**
+     * Sorted suffixes of the normalized names. Each entry packs the item
+     * index in the upper bits and the suffix offset in the lower 16 bits; a
+     * long, so that the item index is not limited to 16 bits as well.
+     */
+    private final long[] mNameSuffixes;
+
+    /**
+     * Sorted suffixes of the normalized numbers, packed like {@link #mNameSuffixes}.
+     */
+    private final long[] mNumberSuffixes;
+
+    /**
+     * Word-boundary keys, sorted, with the item index and the precomputed score
+     * of each key in the parallel arrays.
+     */
+    private final String[] mTokenKeys;
+    private final int[] mTokenKeyItems;
+    private final byte[] mTokenKeyScores;
+
+    /**
+     * Incremented for every query; items carrying a different stamp have not
+     * been touched by the current query yet.  Static because items outlive an
+     * index when the contact list is refreshed.
+     */
+    private static int sGeneration;
+
+    public T9Index(List<ContactItem> items) {
+        mItems = items.toArray(new ContactItem[items.size()]);
+        mNameSuffixes = buildSuffixArray(true);
+        mNumberSuffixes = buildSuffixArray(false);
+
+        ArrayList<TokenKey> keys = new ArrayList<TokenKey>();
+        ArrayList<String> tokens = new ArrayList<String>();
+        for (int i = 0; i < mItems.length; i++) {
+            addTokenKeys(i, mItems[i].normalName, tokens, keys);
+        }
+        TokenKey[] sorted = keys.toArray(new TokenKey[keys.size()]);
+        Arrays.sort(sorted);
+        mTokenKeys = new String[sorted.length];
+        mTokenKeyItems = new int[sorted.length];
+        mTokenKeyScores = new byte[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            mTokenKeys[i] = sorted[i].key;
+            mTokenKeyItems[i] = sorted[i].item;
+            mTokenKeyScores[i] = sorted[i].score;
+        }
+    }
+
+    /**
+     * A word-boundary key while the index is being built.
+     */
+    private static class TokenKey implements Comparable<TokenKey> {
+        final String key;
+        final int item;
+        final byte score;
+
+        TokenKey(String key, int item, int score) {
+            this.key = key;
+            this.item = item;
+            this.score = (byte) score;
+        }
+
+        public int compareTo(TokenKey another) {
+            return key.compareTo(another.key);
+        }
+    }
+
+    public int size() {
+        return mItems.length;
+    }
+
+    public ContactItem get(int index) {
+        return mItems[index];
+    }
+
+    /**
+     * Finds every item whose normalized name or number contains {@code query},
+     * or one of whose word-boundary keys starts with it. Matching items get
+     * {@link ContactItem#nameMatchId} and {@link ContactItem#numberMatchId} set
+     * to their best score, lower is better, and are appended to the respective
+     * result list, unsorted.
+     */
+    public void search(String query, ArrayList<ContactItem> nameResults,
+            ArrayList<ContactItem> numberResults) {
+        final int generation = ++sGeneration;
+
+        // Collect the smallest hit offset per item, mirroring String.indexOf()
+        int start = lowerBound(mNumberSuffixes, false, query);
+        for (int i = start; i < mNumberSuffixes.length; i++) {
+            final long suffix = mNumberSuffixes[i];
+            final ContactItem item = mItems[(int) (suffix >>> 16)];
+            final int offset = (int) suffix & 0xffff;
+            if (!item.normalNumber.startsWith(query, offset)) {
+                break;
+            }
+            touch(item, generation);
+            if (item.numberMatchId == -1) {
+                item.numberMatchId = offset;
+                numberResults.add(item);
+            } else if (offset < item.numberMatchId) {
+                item.numberMatchId = offset;
+            }
+        }
+
+        final int firstName = nameResults.size();
+        start = lowerBound(mNameSuffixes, true, query);
+        for (int i = start; i < mNameSuffixes.length; i++) {
+            final long suffix = mNameSuffixes[i];
+            final ContactItem item = mItems[(int) (suffix >>> 16)];
+            final int offset = (int) suffix & 0xffff;
+            if (!item.normalName.startsWith(query, offset)) {
+                break;
+            }
+            touch(item, generation);
+            if (item.nameMatchId == -1) {
+                item.nameMatchId = offset;
+                nameResults.add(item);
+            } else if (offset < item.nameMatchId) {
+                item.nameMatchId = offset;
+            }
+        }
+
+        // Name hits are ranked by their distance from the start of the word
+        final int count = nameResults.size();
+        for (int i = firstName; i < count; i++) {
+            final ContactItem item = nameResults.get(i);
+            final int pos = item.nameMatchId;
+            int lastSpace = item.normalName.lastIndexOf('0', pos);
+            if (lastSpace == -1) {
+                lastSpace = 0;
+            }
+            item.nameMatchId = pos - lastSpace;
+        }
+
+        // Word-boundary keys only match from their start
+        start = lowerBound(mTokenKeys, query);
+        for (int i = start; i < mTokenKeys.length; i++) {
+            if (!mTokenKeys[i].startsWith(query)) {
+                break;
+            }
+            final ContactItem item = mItems[mTokenKeyItems[i]];
+            final int score = mTokenKeyScores[i];
+            touch(item, generation);
+            if (item.nameMatchId == -1) {
+                item.nameMatchId = score;
+                nameResults.add(item);
+            } else if (score < item.nameMatchId) {
+                item.nameMatchId = score;
+            }
+        }
+    }
+
+    /**
+     * Adds the word-boundary keys of one name. A key starting at the first word
+     * scores 0 like a substring hit at the start of the name, one starting at a
+     * later word scores 1 like a hit right after a space, and skipping a middle
+     * name costs one more.
+     */
+    private static void addTokenKeys(int item, String normalName, ArrayList<String> tokens,
+            ArrayList<TokenKey> keys) {
+        if (normalName == null) {
+            return;
+        }
+        tokens.clear();
+        int start = 0;
+        final int length = normalName.length();
+        for (int i = 0; i <= length; i++) {
+            if (i == length || normalName.charAt(i) == TOKEN_SEPARATOR) {
+                if (i > start) {
+                    tokens.add(normalName.substring(start, i));
+                }
+                start = i + 1;
+            }
+        }
+        final int count = tokens.size();
+        if (count < 2) {
+            return;
+        }
+
+        StringBuilder initials = new StringBuilder(count);
+        StringBuilder compact = new StringBuilder(length);
+        for (int first = 0; first < count - 1; first++) {
+            initials.setLength(0);
+            compact.setLength(0);
+            for (int i = first; i < count; i++) {
+                initials.append(tokens.get(i).charAt(0));
+                compact.append(tokens.get(i));
+            }
+            final int score = first == 0 ? 0 : 1;
+            keys.add(new TokenKey(initials.toString(), item, score));
+            keys.add(new TokenKey(compact.toString(), item, score));
+        }
+
+        if (count > MAX_SKIP_TOKENS) {
+            return;
+        }
+        for (int skipped = 1; skipped < count - 1; skipped++) {
+            initials.setLength(0);
+            compact.setLength(0);
+            for (int i = 0; i < count; i++) {
+                if (i != skipped) {
+                    initials.append(tokens.get(i).charAt(0));
+                    compact.append(tokens.get(i));
+                }
+            }
+            keys.add(new TokenKey(initials.toString(), item, 1));
+            keys.add(new TokenKey(compact.toString(), item, 1));
+        }
+    }
+
+    private static void touch(ContactItem item, int generation) {
+        if (item.matchGeneration != generation) {
+            item.matchGeneration = generation;
+            item.nameMatchId = -1;
+            item.numberMatchId = -1;
+        }
+    }
+
+    private String key(long suffix, boolean name) {
+        final ContactItem item = mItems[(int) (suffix >>> 16)];
+        return name ? item.normalName : item.normalNumber;
+    }
+
+    private long[] buildSuffixArray(boolean name) {
+        int total = 0;
+        for (ContactItem item : mItems) {
+            total += indexedLength(name ? item.normalName : item.normalNumber);
+        }
+
+        long[] suffixes = new long[total];
+        int n = 0;
+        for (int i = 0; i < mItems.length; i++) {
+            final int length = indexedLength(name ? mItems[i].normalName : mItems[i].normalNumber);
+            for (int offset = 0; offset < length; offset++) {
+                suffixes[n++] = ((long) i << 16) | offset;
+            }
+        }
+
+        sort(suffixes, new long[total], 0, total, name);
+        return suffixes;
+    }
+
+    private static int indexedLength(String key) {
+        return key == null ? 0 : Math.min(key.length(), MAX_KEY_LENGTH);
+    }
+
+    /**
+     * Merge sort of packed suffixes; avoids boxing every suffix into an Integer
+     * just to be able to use a Comparator.
+     */
+    private void sort(long[] a, long[] scratch, int from, int to, boolean name) {
+        if (to - from < 8) {
+            for (int i = from + 1; i < to; i++) {
+                final long value = a[i];
+                int j = i - 1;
+                while (j >= from && compareSuffixes(a[j], value, name) > 0) {
+                    a[j + 1] = a[j];
+                    j--;
+                }
+                a[j + 1] = value;
+            }
+            return;
+        }
+
+        final int mid = (from + to) >>> 1;
+        sort(a, scratch, from, mid, name);
+        sort(a, scratch, mid, to, name);
+        if (compareSuffixes(a[mid - 1], a[mid], name) <= 0) {
+            return;
+        }
+
+        System.arraycopy(a, from, scratch, from, to - from);
+        int left = from;
+        int right = mid;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < mid && compareSuffixes(scratch[left], scratch[right], name) <= 0)) {
+                a[i] = scratch[left++];
+            } else {
+                a[i] = scratch[right++];
+            }
+        }
+    }
+
+    private int compareSuffixes(long lhs, long rhs, boolean name) {
+        final String lhsKey = key(lhs, name);
+        final String rhsKey = key(rhs, name);
+        int i = (int) lhs & 0xffff;
+        int j = (int) rhs & 0xffff;
+        final int lhsLength = lhsKey.length();
+        final int rhsLength = rhsKey.length();
+        while (i < lhsLength && j < rhsLength) {
+            final char a = lhsKey.charAt(i++);
+            final char b = rhsKey.charAt(j++);
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return (lhsLength - i) - (rhsLength - j);
+    }
+
+    /**
+     * Returns the position of the first suffix that is not smaller than the query.
+     */
+    private int lowerBound(long[] suffixes, boolean name, String query) {
+        int low = 0;
+        int high = suffixes.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (compareToQuery(suffixes[mid], name, query) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the position of the first key that is not smaller than the query.
+     */
+    private static int lowerBound(String[] keys, String query) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(query) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int compareToQuery(long suffix, boolean name, String query) {
+        final String key = key(suffix, name);
+        int i = (int) suffix & 0xffff;
+        int j = 0;
+        final int keyLength = key.length();
+        final int queryLength = query.length();
+        while (i < keyLength && j < queryLength) {
+            final char a = key.charAt(i++);
+            final char b = query.charAt(j++);
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return (keyLength - i) - (queryLength - j);
+    }
+}
@@ -16,24 +16,28 @@
 
 package com.android.contacts;
 
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.File;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Comparator;
-import java.util.LinkedHashSet;
-import java.util.Set;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-import android.content.ContentUris;
 import android.content.Context;
+import android.content.res.Resources;
 import android.graphics.Color;
+import android.database.ContentObserver;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.RawContacts;
 import android.telephony.PhoneNumberUtils;
 import android.text.Spannable;
 import android.text.style.ForegroundColorSpan;
@@ -44,6 +48,8 @@ import android.widget.ArrayAdapter;
 import android.widget.QuickContactBadge;
 import android.widget.TextView;
 
+import com.android.contacts.RecentCallsListActivity.ContactInfo;
+
 /**
  * @author shade, Danesh, pawitp
  */
@@ -53,64 +59,371 @@ class T9Search {
     private static final int NAME_FIRST = 1;
     private static final int NUMBER_FIRST = 2;
 
+    // Number of matches ranked per page of results
+    private static final int DEFAULT_PAGE_SIZE = 20;
+
+    private static final Comparator<T9Match> sNameComparator = new NameComparator();
+    private static final Comparator<T9Match> sNumberComparator = new NumberComparator();
+
     // Phone number queries
     private static final String[] PHONE_PROJECTION = new String[] {Phone.NUMBER, Phone.CONTACT_ID, Phone.IS_SUPER_PRIMARY, Phone.TYPE, Phone.LABEL};
     private static final String PHONE_ID_SELECTION = Contacts.Data.MIMETYPE + " = ? ";
     private static final String[] PHONE_ID_SELECTION_ARGS = new String[] {Phone.CONTENT_ITEM_TYPE};
     private static final String PHONE_SORT = Phone.CONTACT_ID + " ASC";
-    private static final String[] CONTACT_PROJECTION = new String[] {Contacts._ID, Contacts.DISPLAY_NAME, Contacts.TIMES_CONTACTED};
+    private static final String[] CONTACT_PROJECTION = new String[] {Contacts._ID, Contacts.DISPLAY_NAME, Contacts.TIMES_CONTACTED, Contacts.PHOTO_ID};
     private static final String CONTACT_QUERY = Contacts.HAS_PHONE_NUMBER + " > 0";
     private static final String CONTACT_SORT = Contacts._ID + " ASC";
 
+    // Raw contact versions, used to find contacts that changed since the snapshot
+    private static final String[] VERSION_PROJECTION = new String[] {RawContacts.CONTACT_ID, RawContacts._ID, RawContacts.VERSION, RawContacts.TIMES_CONTACTED};
+    private static final String VERSION_SELECTION = RawContacts.DELETED + " = 0 AND " + RawContacts.CONTACT_ID + " IS NOT NULL";
+    private static final String VERSION_SORT = RawContacts.CONTACT_ID + " ASC, " + RawContacts._ID + " ASC";
+
+    // FNV-1a parameters for the version fingerprints
+    private static final long FINGERPRINT_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FINGERPRINT_PRIME = 0x100000001b3L;
+
+    // Snapshot of the contact list kept across process restarts
+    private static final String SNAPSHOT_FILE = "t9_index";
+
+    /**
+     * Changed contacts are re-queried with an IN(...) clause; past this many
+     * it is cheaper to reload everything.
+     */
+    private static final int MAX_DELTA_CONTACTS = 500;
+
+    /**
+     * How long the snapshot write after a refresh is delayed, so that the
+     * refreshes of a burst of changes, such as a sync, write it once.
+     */
+    private static final long SNAPSHOT_WRITE_DELAY_MS = 10000;
+
     // Local variables
     private Context mContext;
     private int mSortMode;
     private ArrayList<ContactItem> mNameResults = new ArrayList<ContactItem>();
     private ArrayList<ContactItem> mNumberResults = new ArrayList<ContactItem>();
-    private Set<ContactItem> mAllResults = new LinkedHashSet<ContactItem>();
-    private ArrayList<ContactItem> mContacts = new ArrayList<ContactItem>();
-    private String mPrevInput;
+    private int mPageSize = DEFAULT_PAGE_SIZE;
+    private volatile ContactState mState;
+    private boolean mRefreshRunning;
+    private boolean mRefreshPending;
+    private final ScheduledExecutorService mSnapshotExecutor = Executors.newSingleThreadScheduledExecutor();
+    private boolean mSnapshotWriteScheduled; // Guarded by "this"
+    private char[] mNormalizeBuffer = new char[64];
     private static char[][] sT9Map;
+    private static int sT9MapHash;
+
+    // Normalization tables: direct lookup below 256, sorted chars above
+    private static char[] sT9Table;
+    private static char[] sT9ExtraChars;
+    private static char[] sT9ExtraDigits;
+
+    private final ContentObserver mContactsObserver = new ContentObserver(new Handler(Looper.getMainLooper())) {
+        @Override
+        public void onChange(boolean selfChange) {
+            requestRefresh();
+        }
+    };
+
+    /**
+     * The contact list, the version fingerprints it was built from and its
+     * index.  Loading and refreshing happen on background threads while the
+     * search worker reads, so the three are only ever replaced together.
+     *
+     * The suffix arrays of {@link T9Index} cannot be patched in place, so every
+     * change builds a new index over the whole list.  That happens on the
+     * refresh thread, and searches keep using the previous state meanwhile.
+     */
+    private static class ContactState {
+        final ArrayList<ContactItem> contacts;
+        final HashMap<Long, Long> versions;
+        final T9Index index;
+
+        ContactState(ArrayList<ContactItem> contacts, HashMap<Long, Long> versions) {
+            this.contacts = contacts;
+            this.versions = versions;
+            this.index = new T9Index(contacts);
+        }
+    }
 
     public T9Search(Context context) {
-        mContext = context;
+        mContext = context.getApplicationContext();
         getAll();
     }
 
     private void getAll() {
-        if (sT9Map == null)
-            initT9Map();
+        initT9Map(mContext.getResources());
+
+        T9Snapshot.Contents snapshot = T9Snapshot.read(getSnapshotFile(), sT9MapHash, mContext.getResources());
+        if (snapshot != null) {
+            setContacts(snapshot.items, snapshot.versions);
+        } else {
+            reloadAll();
+        }
+
+        mContext.getContentResolver().registerContentObserver(Contacts.CONTENT_URI, true, mContactsObserver);
+        if (snapshot != null) {
+            // Catch up with whatever changed while the process was not running
+            requestRefresh();
+        }
+    }
+
+    private File getSnapshotFile() {
+        return new File(mContext.getCacheDir(), SNAPSHOT_FILE);
+    }
 
-        Cursor contact = mContext.getContentResolver().query(Contacts.CONTENT_URI, CONTACT_PROJECTION, CONTACT_QUERY, null, CONTACT_SORT);
-        Cursor phone = mContext.getContentResolver().query(Phone.CONTENT_URI, PHONE_PROJECTION, PHONE_ID_SELECTION, PHONE_ID_SELECTION_ARGS, PHONE_SORT);
+    private void setContacts(ArrayList<ContactItem> contacts, HashMap<Long, Long> versions) {
+        mState = new ContactState(contacts, versions);
+        seedCallerIdCache(contacts);
+    }
+
+    /**
+     * Offers the numbers of the contact list to the shared caller ID cache, so
+     * the call log can paint names before its own lookups complete.
+     */
+    private void seedCallerIdCache(ArrayList<ContactItem> contacts) {
+        CallerIdCache cache = CallerIdCache.getInstance(mContext);
+        for (ContactItem item : contacts) {
+            ContactInfo info = new ContactInfo();
+            info.personId = item.id;
+            info.name = item.name;
+            info.type = item.type;
+            info.label = item.label;
+            info.number = item.number;
+            info.photoId = item.photoId;
+            cache.seed(item.number, info);
+        }
+    }
+
+    private void reloadAll() {
+        HashMap<Long, Long> versions = queryVersions();
+        ArrayList<ContactItem> contacts = new ArrayList<ContactItem>();
+        queryContacts(null, null, versions, contacts);
+        setContacts(contacts, versions);
+        T9Snapshot.write(getSnapshotFile(), sT9MapHash, contacts, versions);
+    }
+
+    /**
+     * Schedules a delta refresh on a background thread. Requests arriving while
+     * a refresh is running are coalesced into a single follow-up pass.
+     */
+    private void requestRefresh() {
+        synchronized (this) {
+            if (mRefreshRunning) {
+                mRefreshPending = true;
+                return;
+            }
+            mRefreshRunning = true;
+        }
+
+        Thread refresh = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    refresh();
+                    synchronized (T9Search.this) {
+                        if (!mRefreshPending) {
+                            mRefreshRunning = false;
+                            return;
+                        }
+                        mRefreshPending = false;
+                    }
+                }
+            }
+        });
+        refresh.start();
+    }
+
+    /**
+     * Compares the raw contact versions against the ones the current list was
+     * built from, and re-queries only the contacts that were added, changed or
+     * removed.
+     */
+    private void refresh() {
+        ContactState state = mState;
+        HashMap<Long, Long> versions = queryVersions();
+        HashMap<Long, Long> oldVersions = state.versions;
+
+        ArrayList<Long> changed = new ArrayList<Long>();
+        for (Map.Entry<Long, Long> entry : versions.entrySet()) {
+            if (!entry.getValue().equals(oldVersions.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        boolean removed = false;
+        for (Long id : oldVersions.keySet()) {
+            if (!versions.containsKey(id)) {
+                removed = true;
+                break;
+            }
+        }
+        if (changed.isEmpty() && !removed) {
+            return;
+        }
+        if (changed.size() > MAX_DELTA_CONTACTS) {
+            reloadAll();
+            return;
+        }
+
+        ArrayList<ContactItem> contacts = new ArrayList<ContactItem>(state.contacts.size() + changed.size());
+        for (ContactItem item : state.contacts) {
+            Long version = versions.get(item.id);
+            if (version != null && version.longValue() == item.version) {
+                contacts.add(item);
+            }
+        }
+
+        if (!changed.isEmpty()) {
+            ArrayList<ContactItem> updated = new ArrayList<ContactItem>(changed.size());
+            StringBuilder sb = new StringBuilder(" IN(");
+            String[] args = new String[changed.size()];
+            for (int i = 0; i < args.length; i++) {
+                if (i != 0) {
+                    sb.append(',');
+                }
+                sb.append('?');
+                args[i] = changed.get(i).toString();
+            }
+            sb.append(')');
+            queryContacts(sb.toString(), args, versions, updated);
+            contacts = mergeById(contacts, updated);
+        }
+
+        setContacts(contacts, versions);
+        scheduleSnapshotWrite();
+    }
+
+    /**
+     * Merges two lists sorted by contact id, none of which is in both.
+     */
+    private static ArrayList<ContactItem> mergeById(ArrayList<ContactItem> a, ArrayList<ContactItem> b) {
+        ArrayList<ContactItem> merged = new ArrayList<ContactItem>(a.size() + b.size());
+        int i = 0;
+        int j = 0;
+        while (i < a.size() && j < b.size()) {
+            merged.add(a.get(i).id <= b.get(j).id ? a.get(i++) : b.get(j++));
+        }
+        merged.addAll(a.subList(i, a.size()));
+        merged.addAll(b.subList(j, b.size()));
+        return merged;
+    }
+
+    /**
+     * Writes the current contact list to the snapshot after
+     * {@link #SNAPSHOT_WRITE_DELAY_MS}, unless a write is scheduled already.
+     */
+    private void scheduleSnapshotWrite() {
+        synchronized (this) {
+            if (mSnapshotWriteScheduled) {
+                return;
+            }
+            mSnapshotWriteScheduled = true;
+        }
+        mSnapshotExecutor.schedule(new Runnable() {
+            public void run() {
+                synchronized (T9Search.this) {
+                    mSnapshotWriteScheduled = false;
+                }
+                ContactState state = mState;
+                T9Snapshot.write(getSnapshotFile(), sT9MapHash, state.contacts, state.versions);
+            }
+        }, SNAPSHOT_WRITE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns a fingerprint per aggregate contact built from the ids, versions and
+     * contact counts of its raw contacts. The provider bumps the version on every
+     * edit, and the ids change when contacts are joined or split.  Marking a
+     * contact as contacted leaves the version alone, so the count is hashed too,
+     * as results are ranked by it.  The raw contacts are hashed in id order with
+     * 64-bit FNV-1a, so that different sets do not simply add up to the same
+     * value.
+     */
+    private HashMap<Long, Long> queryVersions() {
+        HashMap<Long, Long> versions = new HashMap<Long, Long>();
+        Cursor cursor = mContext.getContentResolver().query(RawContacts.CONTENT_URI, VERSION_PROJECTION, VERSION_SELECTION, null, VERSION_SORT);
+        if (cursor == null) {
+            return versions;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                long contactId = cursor.getLong(0);
+                Long previous = versions.get(contactId);
+                long fingerprint = previous == null ? FINGERPRINT_OFFSET_BASIS : previous;
+                fingerprint = hash(fingerprint, cursor.getLong(1));
+                fingerprint = hash(fingerprint, cursor.getLong(2));
+                fingerprint = hash(fingerprint, cursor.getLong(3));
+                versions.put(contactId, fingerprint);
+            }
+        } finally {
+            cursor.close();
+        }
+        return versions;
+    }
+
+    private static long hash(long hash, long value) {
+        for (int i = 0; i < 64; i += 8) {
+            hash ^= (value >>> i) & 0xff;
+            hash *= FINGERPRINT_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Loads the phone rows of the contacts matching {@code idSelection}, or of all
+     * contacts if it is null, and appends them to {@code contacts}.
+     *
+     * @param idSelection an {@code IN(...)} clause applied to the contact id
+     */
+    private void queryContacts(String idSelection, String[] idArgs, HashMap<Long, Long> versions,
+            ArrayList<ContactItem> contacts) {
+        String contactSelection = CONTACT_QUERY;
+        String phoneSelection = PHONE_ID_SELECTION;
+        String[] phoneArgs = PHONE_ID_SELECTION_ARGS;
+        if (idSelection != null) {
+            contactSelection += " AND " + Contacts._ID + idSelection;
+            phoneSelection += " AND " + Phone.CONTACT_ID + idSelection;
+            phoneArgs = new String[idArgs.length + 1];
+            phoneArgs[0] = PHONE_ID_SELECTION_ARGS[0];
+            System.arraycopy(idArgs, 0, phoneArgs, 1, idArgs.length);
+        }
+
+        Cursor contact = mContext.getContentResolver().query(Contacts.CONTENT_URI, CONTACT_PROJECTION, contactSelection, idArgs, CONTACT_SORT);
+        Cursor phone = mContext.getContentResolver().query(Phone.CONTENT_URI, PHONE_PROJECTION, phoneSelection, phoneArgs, PHONE_SORT);
+        if (contact == null || phone == null) {
+            if (contact != null) contact.close();
+            if (phone != null) phone.close();
+            return;
+        }
         phone.moveToFirst();
 
         while (contact.moveToNext()) {
             long contactId = contact.getLong(0);
+            // Skip numbers of contacts the contact query did not return
+            while (!phone.isAfterLast() && phone.getLong(1) < contactId) {
+                phone.moveToNext();
+            }
             if (phone.isAfterLast()) {
                 break;
             }
+            Long version = versions.get(contactId);
             while (phone.getLong(1) == contactId) {
                 String num = phone.getString(0);
+                String name = contact.getString(1);
                 ContactItem contactInfo = new ContactItem();
                 contactInfo.id = contactId;
-                contactInfo.name = contact.getString(1);
+                contactInfo.version = version != null ? version : 0;
+                contactInfo.name = name;
                 contactInfo.number = PhoneNumberUtils.formatNumber(num);
-                contactInfo.normalNumber = removeNonDigits(num);
-                contactInfo.normalName = nameToNumber(contact.getString(1));
+                contactInfo.normalNumber = normalizeNumber(num, getNormalizeBuffer(num.length()));
+                char[] buffer = getNormalizeBuffer(name.length());
+                contactInfo.normalName = new String(buffer, 0, nameToNumber(name, buffer));
                 contactInfo.timesContacted = contact.getInt(2);
                 contactInfo.isSuperPrimary = phone.getInt(2) > 0;
-                contactInfo.groupType = Phone.getTypeLabel(mContext.getResources(), phone.getInt(3), phone.getString(4));
-                Uri contactUri = ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId);
-                InputStream photoStream = Contacts.openContactPhotoInputStream(mContext.getContentResolver(), contactUri);
-                if (photoStream != null) {
-                    contactInfo.photo = BitmapFactory.decodeStream(photoStream);
-                    try {
-                        photoStream.close();
-                    } catch (IOException e) {
-                    }
-                }
-                mContacts.add(contactInfo);
+                contactInfo.type = phone.getInt(3);
+                contactInfo.label = phone.getString(4);
+                contactInfo.groupType = Phone.getTypeLabel(mContext.getResources(), contactInfo.type, contactInfo.label);
+                contactInfo.photoId = contact.getLong(3);
+                contacts.add(contactInfo);
                 if (!phone.moveToNext()) {
                     break;
                 }
@@ -120,32 +433,174 @@ class T9Search {
         phone.close();
     }
 
+    /**
+     * Result of a T9 query. Matches are ranked lazily: only the page that is
+     * about to be shown gets selected and sorted, the remaining matches stay
+     * unsorted until {@link #nextPage()} asks for them.
+     */
     public static class T9SearchResult {
 
-        private final ArrayList<ContactItem> mResults;
-        private ContactItem mTopContact = new ContactItem();
-
-        public T9SearchResult (final ArrayList<ContactItem> results, final Context mContext) {
-            mTopContact = results.get(0);
-            mResults = results;
-            mResults.remove(0);
+        private final ArrayList<T9Match> mResults = new ArrayList<T9Match>();
+        private final T9Match mTopContact;
+        private final RankedMatches mPrimary;
+        private final RankedMatches mSecondary;
+        private final int mPageSize;
+
+        T9SearchResult(RankedMatches primary, RankedMatches secondary, int pageSize) {
+            mPrimary = primary;
+            mSecondary = secondary;
+            mPageSize = pageSize;
+            mTopContact = next();
+            nextPage();
         }
 
+        /**
+         * Returns the total number of distinct matches, including the top contact.
+         */
         public int getNumResults() {
-            return mResults.size() + 1;
+            return mPrimary.size() + mSecondary.size();
         }
 
-        public ContactItem getTopContact() {
+        public T9Match getTopContact() {
             return mTopContact;
         }
 
-        public ArrayList<ContactItem> getResults() {
+        /**
+         * Returns the ranked matches following the top contact that have been
+         * paged in so far.
+         */
+        public ArrayList<T9Match> getResults() {
             return mResults;
         }
+
+        public boolean hasMoreResults() {
+            return mResults.size() + 1 < getNumResults();
+        }
+
+        /**
+         * Ranks the next page of matches and appends it to {@link #getResults()}.
+         *
+         * @return the newly ranked matches
+         */
+        public List<T9Match> nextPage() {
+            int start = mResults.size();
+            for (int i = 0; i < mPageSize; i++) {
+                T9Match item = next();
+                if (item == null) {
+                    break;
+                }
+                mResults.add(item);
+            }
+            return mResults.subList(start, mResults.size());
+        }
+
+        private T9Match next() {
+            if (mPrimary.hasNext()) {
+                return mPrimary.next(mPageSize);
+            }
+            if (mSecondary.hasNext()) {
+                return mSecondary.next(mPageSize);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Matches of one kind (name or number) that are sorted incrementally. Every
+     * time the sorted prefix runs out, the next {@code pageSize} best matches are
+     * moved to the front with a quickselect and only those are sorted, so a
+     * query matching most of the address book costs O(n) for the first screen
+     * instead of O(n log n).
+     */
+    static class RankedMatches {
+        private final T9Match[] mItems;
+        private final int mCount;
+        private final Comparator<T9Match> mComparator;
+        private int mSorted;
+        private int mNext;
+
+        RankedMatches(ArrayList<T9Match> matches, Comparator<T9Match> comparator,
+                boolean skipNameMatches, boolean skipNumberMatches) {
+            mItems = new T9Match[matches.size()];
+            int count = 0;
+            for (T9Match item : matches) {
+                // Drop items that are already listed by the other kind of match
+                if ((skipNameMatches && item.nameMatchId != -1)
+                        || (skipNumberMatches && item.numberMatchId != -1)) {
+                    continue;
+                }
+                mItems[count++] = item;
+            }
+            mCount = count;
+            mComparator = comparator;
+        }
+
+        int size() {
+            return mCount;
+        }
+
+        boolean hasNext() {
+            return mNext < mCount;
+        }
+
+        T9Match next(int pageSize) {
+            if (mNext == mSorted) {
+                int end = Math.min(mSorted + pageSize, mCount);
+                select(mSorted, mCount, end);
+                Arrays.sort(mItems, mSorted, end, mComparator);
+                mSorted = end;
+            }
+            return mItems[mNext++];
+        }
+
+        /**
+         * Partially orders {@code [from, to)} so that the elements before
+         * {@code k} are the smallest ones, in no particular order.
+         */
+        private void select(int from, int to, int k) {
+            while (to - from > 1 && k > from && k < to) {
+                int pivot = partition(from, to);
+                if (pivot < k) {
+                    from = pivot + 1;
+                } else if (pivot > k) {
+                    to = pivot;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private int partition(int from, int to) {
+            int mid = (from + to) >>> 1;
+            int last = to - 1;
+            // Median of three, parked at the end
+            if (mComparator.compare(mItems[mid], mItems[from]) < 0) swap(mid, from);
+            if (mComparator.compare(mItems[last], mItems[from]) < 0) swap(last, from);
+            if (mComparator.compare(mItems[mid], mItems[last]) < 0) swap(mid, last);
+
+            T9Match pivot = mItems[last];
+            int store = from;
+            for (int i = from; i < last; i++) {
+                if (mComparator.compare(mItems[i], pivot) < 0) {
+                    swap(i, store++);
+                }
+            }
+            swap(store, last);
+            return store;
+        }
+
+        private void swap(int i, int j) {
+            T9Match tmp = mItems[i];
+            mItems[i] = mItems[j];
+            mItems[j] = tmp;
+        }
     }
 
     public static class ContactItem {
-        Bitmap photo;
+        long photoId;
+        long version;
+        int type;
+        String label;
         String name;
         String number;
         String normalNumber;
@@ -153,72 +608,93 @@ class T9Search {
         int timesContacted;
         int nameMatchId;
         int numberMatchId;
+        int matchGeneration;
         CharSequence groupType;
         long id;
         boolean isSuperPrimary;
     }
 
+    /**
+     * A contact matching a query.  The match state is copied from the
+     * {@link ContactItem}, where the index leaves it and the next query on the
+     * worker thread overwrites it, so that the UI thread can bind a match while
+     * the worker moves on.
+     */
+    public static class T9Match {
+        final ContactItem item;
+        final String query;
+        final int nameMatchId;
+        final int numberMatchId;
+
+        T9Match(ContactItem item, String query) {
+            this.item = item;
+            this.query = query;
+            this.nameMatchId = item.nameMatchId;
+            this.numberMatchId = item.numberMatchId;
+        }
+    }
+
+    /**
+     * Copies the match state the index just left in {@code items} for
+     * {@code query}.
+     */
+    static ArrayList<T9Match> toMatches(ArrayList<ContactItem> items, String query) {
+        ArrayList<T9Match> matches = new ArrayList<T9Match>(items.size());
+        for (ContactItem item : items) {
+            matches.add(new T9Match(item, query));
+        }
+        return matches;
+    }
+
+    /**
+     * Sets how many matches are ranked at a time. The first page also provides
+     * the top contact.
+     */
+    public void setPageSize(int pageSize) {
+        mPageSize = Math.max(1, pageSize);
+    }
+
     public T9SearchResult search(String number) {
         mNameResults.clear();
         mNumberResults.clear();
         number = removeNonDigits(number);
-        int pos = 0;
         mSortMode = Integer.parseInt(PreferenceManager.getDefaultSharedPreferences(mContext).getString("t9_sort", "1"));
-        boolean newQuery = mPrevInput == null || number.length() <= mPrevInput.length();
-        // Go through each contact
-        for (ContactItem item : (newQuery ? mContacts : mAllResults)) {
-            item.numberMatchId = -1;
-            item.nameMatchId = -1;
-            pos = item.normalNumber.indexOf(number);
-            if (pos != -1) {
-                item.numberMatchId = pos;
-                mNumberResults.add(item);
-            }
-            pos = item.normalName.indexOf(number);
-            if (pos != -1) {
-                int last_space = item.normalName.lastIndexOf("0", pos);
-                if (last_space == -1) {
-                    last_space = 0;
-                }
-                item.nameMatchId = pos - last_space;
-                mNameResults.add(item);
-            }
-        }
-        mAllResults.clear();
-        mPrevInput = number;
-        Collections.sort(mNumberResults, new NumberComparator());
-        Collections.sort(mNameResults, new NameComparator());
+        mState.index.search(number, mNameResults, mNumberResults);
         if (mNameResults.size() > 0 || mNumberResults.size() > 0) {
-            switch (mSortMode) {
-            case NAME_FIRST:
-                mAllResults.addAll(mNameResults);
-                mAllResults.addAll(mNumberResults);
-                break;
-            case NUMBER_FIRST:
-                mAllResults.addAll(mNumberResults);
-                mAllResults.addAll(mNameResults);
+            ArrayList<T9Match> nameMatches = toMatches(mNameResults, number);
+            ArrayList<T9Match> numberMatches = toMatches(mNumberResults, number);
+            RankedMatches names;
+            RankedMatches numbers;
+            if (mSortMode == NUMBER_FIRST) {
+                numbers = new RankedMatches(numberMatches, sNumberComparator, false, false);
+                names = new RankedMatches(nameMatches, sNameComparator, false, true);
+                return new T9SearchResult(numbers, names, mPageSize);
             }
-            return new T9SearchResult(new ArrayList<ContactItem>(mAllResults), mContext);
+            names = new RankedMatches(nameMatches, sNameComparator, false, false);
+            numbers = new RankedMatches(numberMatches, sNumberComparator, true, false);
+            return new T9SearchResult(names, numbers, mPageSize);
         }
         return null;
     }
 
-    public static class NameComparator implements Comparator<ContactItem> {
+    public static class NameComparator implements Comparator<T9Match> {
         @Override
-        public int compare(ContactItem lhs, ContactItem rhs) {
+        public int compare(T9Match lhs, T9Match rhs) {
             int ret = compareInt(lhs.nameMatchId, rhs.nameMatchId);
-            if (ret == 0) ret = compareInt(rhs.timesContacted, lhs.timesContacted);
-            if (ret == 0) ret = compareBool(rhs.isSuperPrimary, lhs.isSuperPrimary);
+            if (ret == 0) ret = compareInt(rhs.item.timesContacted, lhs.item.timesContacted);
+            if (ret == 0) ret = compareBool(rhs.item.isSuperPrimary, lhs.item.isSuperPrimary);
+            if (ret == 0) ret = compareLong(lhs.item.id, rhs.item.id);
             return ret;
         }
     }
 
-    public static class NumberComparator implements Comparator<ContactItem> {
+    public static class NumberComparator implements Comparator<T9Match> {
         @Override
-        public int compare(ContactItem lhs, ContactItem rhs) {
+        public int compare(T9Match lhs, T9Match rhs) {
             int ret = compareInt(lhs.numberMatchId, rhs.numberMatchId);
-            if (ret == 0) ret = compareInt(rhs.timesContacted, lhs.timesContacted);
-            if (ret == 0) ret = compareBool(rhs.isSuperPrimary, lhs.isSuperPrimary);
+            if (ret == 0) ret = compareInt(rhs.item.timesContacted, lhs.item.timesContacted);
+            if (ret == 0) ret = compareBool(rhs.item.isSuperPrimary, lhs.item.isSuperPrimary);
+            if (ret == 0) ret = compareLong(lhs.item.id, rhs.item.id);
             return ret;
         }
     }
@@ -227,73 +703,153 @@ class T9Search {
         return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
     }
 
+    public static int compareLong (long lhs, long rhs) {
+        return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+    }
+
     public static int compareBool (boolean lhs, boolean rhs) {
         return lhs == rhs ? 0 : lhs ? 1 : -1;
     }
 
-    private void initT9Map() {
-        String[] t9Array = mContext.getResources().getStringArray(R.array.t9_map);
-        sT9Map = new char[t9Array.length][];
-        int rc = 0;
-        for (String item : t9Array) {
-            int cc = 0;
-            sT9Map[rc] = new char[item.length()];
-            for (char ch : item.toCharArray()) {
-                sT9Map[rc][cc] = ch;
-                cc++;
+    /**
+     * Builds the normalization tables from R.array.t9_map. Every row starts with
+     * its digit followed by the characters mapped to it; the first row containing
+     * a character wins.
+     */
+    static synchronized void initT9Map(Resources res) {
+        if (sT9Map != null) {
+            return;
+        }
+        String[] t9Array = res.getStringArray(R.array.t9_map);
+        char[][] map = new char[t9Array.length][];
+        for (int i = 0; i < t9Array.length; i++) {
+            map[i] = t9Array[i].toCharArray();
+        }
+
+        char[] table = new char[256];
+        for (int ch = 0; ch < table.length; ch++) {
+            table[ch] = lookupT9Digit(map, Character.toLowerCase((char) ch));
+        }
+
+        // Characters outside Latin-1 are looked up by binary search instead
+        StringBuilder extraChars = new StringBuilder();
+        StringBuilder extraDigits = new StringBuilder();
+        for (char[] row : map) {
+            for (char ch : row) {
+                if (ch >= table.length && extraChars.indexOf(String.valueOf(ch)) == -1) {
+                    extraChars.append(ch);
+                    extraDigits.append(row[0]);
+                }
             }
-            rc++;
         }
+        int extraCount = extraChars.length();
+        long[] packed = new long[extraCount];
+        for (int i = 0; i < extraCount; i++) {
+            packed[i] = ((long) extraChars.charAt(i) << 16) | extraDigits.charAt(i);
+        }
+        Arrays.sort(packed);
+        sT9ExtraChars = new char[extraCount];
+        sT9ExtraDigits = new char[extraCount];
+        for (int i = 0; i < extraCount; i++) {
+            sT9ExtraChars[i] = (char) (packed[i] >>> 16);
+            sT9ExtraDigits[i] = (char) packed[i];
+        }
+
+        sT9Table = table;
+        sT9MapHash = Arrays.hashCode(t9Array);
+        sT9Map = map;
     }
 
-    private static String nameToNumber(String name) {
-        StringBuilder sb = new StringBuilder();
-        int len = name.length();
-        for (int i = 0; i < len; i++) {
-            boolean matched = false;
-            char ch = Character.toLowerCase(name.charAt(i));
-            for (char[] row : sT9Map) {
-                for (char a : row) {
-                    if (ch == a) {
-                        matched = true;
-                        sb.append(row[0]);
-                        break;
-                    }
-                }
-                if (matched) {
-                    break;
+    private static char lookupT9Digit(char[][] map, char ch) {
+        for (char[] row : map) {
+            for (char a : row) {
+                if (ch == a) {
+                    return row[0];
                 }
             }
-            if (!matched) {
-                sb.append(sT9Map[0][0]);
-            }
         }
-        return sb.toString();
+        return map[0][0];
     }
 
-    public static String removeNonDigits(String number) {
+    private static char toT9Digit(char ch) {
+        if (ch < 256) {
+            return sT9Table[ch];
+        }
+        char lower = Character.toLowerCase(ch);
+        if (lower < 256) {
+            return sT9Table[lower];
+        }
+        int index = Arrays.binarySearch(sT9ExtraChars, lower);
+        return index >= 0 ? sT9ExtraDigits[index] : sT9Map[0][0];
+    }
+
+    /**
+     * Writes the dial pad digits for {@code name} into {@code out}, which must
+     * hold at least {@code name.length()} chars.
+     *
+     * @return the number of chars written
+     */
+    static int nameToNumber(CharSequence name, char[] out) {
+        int len = name.length();
+        for (int i = 0; i < len; i++) {
+            out[i] = toT9Digit(name.charAt(i));
+        }
+        return len;
+    }
+
+    /**
+     * Copies the dialable characters of {@code number} into {@code out}, which
+     * must hold at least {@code number.length()} chars.
+     *
+     * @return the number of chars written
+     */
+    static int removeNonDigits(CharSequence number, char[] out) {
         int len = number.length();
-        StringBuilder sb = new StringBuilder(len);
+        int n = 0;
         for (int i = 0; i < len; i++) {
             char ch = number.charAt(i);
             if ((ch >= '0' && ch <= '9') || ch == '*' || ch == '#' || ch == '+') {
-                sb.append(ch);
+                out[n++] = ch;
             }
         }
-        return sb.toString();
+        return n;
+    }
+
+    public static String removeNonDigits(String number) {
+        return normalizeNumber(number, new char[number.length()]);
+    }
+
+    private static String normalizeNumber(String number, char[] buffer) {
+        int len = removeNonDigits(number, buffer);
+        if (len == number.length()) {
+            // Nothing was stripped, no need for a copy
+            return number;
+        }
+        return new String(buffer, 0, len);
     }
 
-    protected class T9Adapter extends ArrayAdapter<ContactItem> {
+    /**
+     * Returns a buffer of at least {@code length} chars for normalizing a value
+     * on the loading thread.
+     */
+    private char[] getNormalizeBuffer(int length) {
+        if (mNormalizeBuffer.length < length) {
+            mNormalizeBuffer = new char[Math.max(length, mNormalizeBuffer.length * 2)];
+        }
+        return mNormalizeBuffer;
+    }
+
+    protected class T9Adapter extends ArrayAdapter<T9Match> {
 
-        private ArrayList<ContactItem> mItems;
+        private ArrayList<T9Match> mItems;
         private LayoutInflater mMenuInflate;
-        //private ContactPhotoManager mPhotoLoader;
+        private ContactPhotoLoader mPhotoLoader;
 
-        public T9Adapter(Context context, int textViewResourceId, ArrayList<ContactItem> items, LayoutInflater menuInflate) {
+        public T9Adapter(Context context, int textViewResourceId, ArrayList<T9Match> items, LayoutInflater menuInflate, ContactPhotoLoader photoLoader) {
             super(context, textViewResourceId, items);
             mItems = items;
             mMenuInflate = menuInflate;
-            //mPhotoLoader = photoLoader;
+            mPhotoLoader = photoLoader;
         }
 
         @Override
@@ -311,28 +867,30 @@ class T9Search {
                 holder = (ViewHolder) convertView.getTag();
             }
 
-            ContactItem o = mItems.get(position);
+            // Bind from the match only, the worker may be running the next query
+            T9Match match = mItems.get(position);
+            ContactItem o = match.item;
 
             holder.name.setText(o.name, TextView.BufferType.SPANNABLE);
             holder.number.setText(o.normalNumber + " (" + o.groupType + ")", TextView.BufferType.SPANNABLE);
-            if (o.nameMatchId != -1) {
-                Spannable s = (Spannable) holder.name.getText();
-                int nameStart = o.normalName.indexOf(mPrevInput);
-                s.setSpan(new ForegroundColorSpan(Color.WHITE),
-                        nameStart, nameStart + mPrevInput.length(), Spannable.SPAN_INCLUSIVE_INCLUSIVE);
-                holder.name.setText(s);
+            if (match.nameMatchId != -1) {
+                // Initials and skipped-word matches have no contiguous range to highlight
+                int nameStart = o.normalName.indexOf(match.query);
+                if (nameStart != -1) {
+                    Spannable s = (Spannable) holder.name.getText();
+                    s.setSpan(new ForegroundColorSpan(Color.WHITE),
+                            nameStart, nameStart + match.query.length(), Spannable.SPAN_INCLUSIVE_INCLUSIVE);
+                    holder.name.setText(s);
+                }
             }
-            if (o.numberMatchId != -1) {
+            if (match.numberMatchId != -1) {
                 Spannable s = (Spannable) holder.number.getText();
-                int numberStart = o.numberMatchId;
+                int numberStart = match.numberMatchId;
                 s.setSpan(new ForegroundColorSpan(Color.WHITE),
-                        numberStart, numberStart + mPrevInput.length(), Spannable.SPAN_INCLUSIVE_INCLUSIVE);
+                        numberStart, numberStart + match.query.length(), Spannable.SPAN_INCLUSIVE_INCLUSIVE);
                 holder.number.setText(s);
             }
-            if (o.photo != null)
-                holder.icon.setImageBitmap(o.photo);
-            else
-                holder.icon.setImageResource(R.drawable.ic_contact_list_picture);
+            mPhotoLoader.loadPhoto(holder.icon, o.photoId);
 
             holder.icon.assignContactFromPhone(o.number, true);
             return convertView;
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import com.android.contacts.T9Search.ContactItem;
+import com.android.contacts.T9Search.T9Match;
+import com.android.contacts.T9Search.T9SearchResult;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Handler.Callback;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs T9 queries on a single background thread and posts the results back to
+ * the UI thread.  Keystrokes arriving while a query is running are coalesced:
+ * only the latest query is executed next, and results of queries that were
+ * superseded in the meantime are dropped instead of being delivered.
+ *
+ * Everything that reads or writes the match state of {@link ContactItem}s,
+ * including ranking further pages, happens on the worker thread.  The UI thread
+ * only gets {@link T9Match}es, which carry their own copy of that state and of
+ * the query.
+ */
+class T9SearchWorker implements Callback {
+    private static final String TAG = "T9SearchWorker";
+    private static final boolean LOGV = false;
+
+    private static final String WORKER_THREAD_NAME = "T9SearchWorker";
+
+    /**
+     * Number of most recent query latencies kept for percentiles.
+     */
+    private static final int LATENCY_HISTORY = 256;
+
+    /**
+     * Messages handled by the worker thread.
+     */
+    private static final int MESSAGE_SEARCH = 1;
+    private static final int MESSAGE_NEXT_PAGE = 2;
+
+    /**
+     * Messages handled by the UI thread.
+     */
+    private static final int MESSAGE_RESULT = 3;
+    private static final int MESSAGE_PAGE = 4;
+
+    /**
+     * Receives results on the UI thread.
+     */
+    public interface Listener {
+        /**
+         * Called with the result of the latest query, null if nothing matched.
+         */
+        void onSearchComplete(T9SearchResult result, boolean hasMoreResults);
+
+        /**
+         * Called with a page requested through {@link #requestNextPage}.
+         */
+        void onPageLoaded(T9SearchResult result, List<T9Match> page, boolean hasMoreResults);
+    }
+
+    private static class Delivery {
+        T9SearchResult result;
+        List<T9Match> page;
+        boolean hasMoreResults;
+        long startTime;
+    }
+
+    private final Listener mListener;
+    private final Handler mMainThreadHandler = new Handler(this);
+    private HandlerThread mWorkerThread;
+    private Handler mWorkerHandler;
+
+    // Latest submitted query, guarded by "this"
+    private T9Search mPendingSearch;
+    private String mPendingQuery;
+    private long mPendingStartTime;
+
+    /**
+     * Incremented for every submitted query and cancellation; anything tagged with
+     * an older value is stale.
+     */
+    private volatile int mSequence;
+
+    // Metrics, only touched on the UI thread
+    private final long[] mLatencies = new long[LATENCY_HISTORY];
+    private int mCompletedQueries;
+    private int mSupersededQueries;
+
+    public T9SearchWorker(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Schedules {@code query} on the worker thread, superseding any query that
+     * has not been delivered yet.
+     */
+    public void search(T9Search search, String query) {
+        synchronized (this) {
+            if (mPendingQuery != null) {
+                mSupersededQueries++;
+            }
+            mSequence++;
+            mPendingSearch = search;
+            mPendingQuery = query;
+            mPendingStartTime = System.nanoTime();
+        }
+        Handler handler = getWorkerHandler();
+        handler.removeMessages(MESSAGE_SEARCH);
+        handler.sendEmptyMessage(MESSAGE_SEARCH);
+    }
+
+    /**
+     * Ranks the next page of {@code result} on the worker thread. Ignored if a
+     * newer query has been submitted since.
+     */
+    public void requestNextPage(T9SearchResult result) {
+        getWorkerHandler().obtainMessage(MESSAGE_NEXT_PAGE, mSequence, 0, result).sendToTarget();
+    }
+
+    /**
+     * Drops the pending query and any result that has not been delivered yet.
+     */
+    public void cancel() {
+        synchronized (this) {
+            mSequence++;
+            mPendingSearch = null;
+            mPendingQuery = null;
+        }
+    }
+
+    /**
+     * Cancels outstanding work and stops the worker thread.
+     */
+    public void quit() {
+        cancel();
+        if (mWorkerThread != null) {
+            mWorkerThread.quit();
+            mWorkerThread = null;
+            mWorkerHandler = null;
+        }
+    }
+
+    private Handler getWorkerHandler() {
+        if (mWorkerThread == null) {
+            mWorkerThread = new HandlerThread(WORKER_THREAD_NAME);
+            mWorkerThread.start();
+            mWorkerHandler = new Handler(mWorkerThread.getLooper(), new Callback() {
+                public boolean handleMessage(Message msg) {
+                    return handleWorkerMessage(msg);
+                }
+            });
+        }
+        return mWorkerHandler;
+    }
+
+    /**
+     * Processes requests on the worker thread.
+     */
+    private boolean handleWorkerMessage(Message msg) {
+        switch (msg.what) {
+            case MESSAGE_SEARCH: {
+                T9Search search;
+                String query;
+                int sequence;
+                Delivery delivery = new Delivery();
+                synchronized (this) {
+                    if (mPendingQuery == null) {
+                        return true;
+                    }
+                    search = mPendingSearch;
+                    query = mPendingQuery;
+                    sequence = mSequence;
+                    delivery.startTime = mPendingStartTime;
+                    mPendingSearch = null;
+                    mPendingQuery = null;
+                }
+
+                delivery.result = search.search(query);
+                delivery.hasMoreResults = delivery.result != null
+                        && delivery.result.hasMoreResults();
+                if (sequence == mSequence) {
+                    mMainThreadHandler.obtainMessage(MESSAGE_RESULT, sequence, 0, delivery)
+                            .sendToTarget();
+                }
+                return true;
+            }
+
+            case MESSAGE_NEXT_PAGE: {
+                if (msg.arg1 != mSequence) {
+                    return true;
+                }
+                Delivery delivery = new Delivery();
+                delivery.result = (T9SearchResult) msg.obj;
+                delivery.page = new ArrayList<T9Match>(delivery.result.nextPage());
+                delivery.hasMoreResults = delivery.result.hasMoreResults();
+                mMainThreadHandler.obtainMessage(MESSAGE_PAGE, msg.arg1, 0, delivery)
+                        .sendToTarget();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Delivers results on the UI thread, dropping those of superseded queries.
+     */
+    public boolean handleMessage(Message msg) {
+        switch (msg.what) {
+            case MESSAGE_RESULT: {
+                Delivery delivery = (Delivery) msg.obj;
+                if (msg.arg1 != mSequence) {
+                    mSupersededQueries++;
+                    return true;
+                }
+                long latency = System.nanoTime() - delivery.startTime;
+                mLatencies[mCompletedQueries % LATENCY_HISTORY] = latency;
+                mCompletedQueries++;
+                if (LOGV) {
+                    Log.v(TAG, "Query delivered in " + latency / 1000 + "us, p50="
+                            + getLatencyPercentile(50) / 1000 + "us p99="
+                            + getLatencyPercentile(99) / 1000 + "us, superseded="
+                            + mSupersededQueries);
+                }
+                mListener.onSearchComplete(delivery.result, delivery.hasMoreResults);
+                return true;
+            }
+
+            case MESSAGE_PAGE: {
+                if (msg.arg1 != mSequence) {
+                    return true;
+                }
+                Delivery delivery = (Delivery) msg.obj;
+                mListener.onPageLoaded(delivery.result, delivery.page, delivery.hasMoreResults);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the given percentile of the keystroke-to-results latency over the
+     * most recent queries, in nanoseconds, or 0 if no query completed yet.
+     * Must be called on the UI thread.
+     */
+    public long getLatencyPercentile(int percentile) {
+        int count = Math.min(mCompletedQueries, LATENCY_HISTORY);
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = new long[count];
+        System.arraycopy(mLatencies, 0, sorted, 0, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(index, count - 1))];
+    }
+
+    /**
+     * Returns the number of queries whose results were delivered.
+     */
+    public int getCompletedQueryCount() {
+        return mCompletedQueries;
+    }
+
+    /**
+     * Returns the number of queries that were coalesced or whose results were
+     * dropped because a newer query had been submitted.
+     */
+    public int getSupersededQueryCount() {
+        return mSupersededQueries;
+    }
+}
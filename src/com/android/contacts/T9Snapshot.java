@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import com.android.contacts.T9Search.ContactItem;
+
+import android.content.res.Resources;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary snapshot of the T9 contact list, so that a freshly started process can
+ * search right away instead of waiting for the provider queries.  The file holds
+ * the version fingerprint of every aggregate contact followed by one record per
+ * phone row.  Normalized names and numbers only contain dial pad characters and
+ * are stored one byte per char; everything else is written with
+ * {@link DataOutputStream} and read back from a memory-mapped buffer.
+ */
+class T9Snapshot {
+    private static final String TAG = "T9Snapshot";
+
+    private static final int MAGIC = 0x54394958; // "T9IX"
+    private static final int FORMAT_VERSION = 3;
+
+    private static final int FLAG_SUPER_PRIMARY = 1;
+
+    // Smallest size of the records, to bound the counts read from the file
+    private static final int VERSION_RECORD_SIZE = 16;
+    private static final int MIN_ITEM_RECORD_SIZE = 8 + 8 + 8 + 4 + 1 + 4 + 5 * 4;
+
+    /**
+     * Contents of a snapshot file.
+     */
+    static class Contents {
+        final ArrayList<ContactItem> items;
+        final HashMap<Long, Long> versions;
+
+        Contents(ArrayList<ContactItem> items, HashMap<Long, Long> versions) {
+            this.items = items;
+            this.versions = versions;
+        }
+    }
+
+    private T9Snapshot() {
+    }
+
+    /**
+     * Reads the snapshot stored in {@code file}.
+     *
+     * @param mapHash hash of the T9 map the normalized names were computed with;
+     *            a snapshot written with a different map is discarded
+     * @return the snapshot contents or null if the file is missing, stale or
+     *            corrupt; a corrupt file is deleted
+     */
+    static Contents read(File file, int mapHash, Resources res) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION
+                    || buffer.getInt() != mapHash) {
+                return null;
+            }
+
+            int versionCount = buffer.getInt();
+            checkCount(buffer, versionCount, VERSION_RECORD_SIZE);
+            HashMap<Long, Long> versions = new HashMap<Long, Long>(versionCount * 4 / 3 + 1);
+            for (int i = 0; i < versionCount; i++) {
+                long id = buffer.getLong();
+                versions.put(id, buffer.getLong());
+            }
+
+            int itemCount = buffer.getInt();
+            checkCount(buffer, itemCount, MIN_ITEM_RECORD_SIZE);
+            ArrayList<ContactItem> items = new ArrayList<ContactItem>(itemCount);
+            for (int i = 0; i < itemCount; i++) {
+                ContactItem item = new ContactItem();
+                item.id = buffer.getLong();
+                item.photoId = buffer.getLong();
+                item.version = buffer.getLong();
+                item.timesContacted = buffer.getInt();
+                item.isSuperPrimary = (buffer.get() & FLAG_SUPER_PRIMARY) != 0;
+                item.type = buffer.getInt();
+                item.label = readString(buffer);
+                item.name = readString(buffer);
+                item.number = readString(buffer);
+                item.normalName = readDigits(buffer);
+                item.normalNumber = readDigits(buffer);
+                item.groupType = Phone.getTypeLabel(res, item.type, item.label);
+                items.add(item);
+            }
+            return new Contents(items, versions);
+        } catch (CorruptSnapshotException e) {
+            Log.w(TAG, "Corrupt T9 snapshot", e);
+            file.delete();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read T9 snapshot", e);
+        } catch (BufferUnderflowException e) {
+            Log.w(TAG, "Truncated T9 snapshot", e);
+            file.delete();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replaces the snapshot in {@code file}.  The data is written to a temporary
+     * file first so a crash never leaves a half written snapshot behind, and
+     * writes are serialized so that two never share the temporary file.
+     */
+    static synchronized void write(File file, int mapHash, List<ContactItem> items,
+            Map<Long, Long> versions) {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(mapHash);
+
+            out.writeInt(versions.size());
+            for (Map.Entry<Long, Long> entry : versions.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+
+            out.writeInt(items.size());
+            for (ContactItem item : items) {
+                out.writeLong(item.id);
+                out.writeLong(item.photoId);
+                out.writeLong(item.version);
+                out.writeInt(item.timesContacted);
+                out.writeByte(item.isSuperPrimary ? FLAG_SUPER_PRIMARY : 0);
+                out.writeInt(item.type);
+                writeString(out, item.label);
+                writeString(out, item.name);
+                writeString(out, item.number);
+                writeDigits(out, item.normalName);
+                writeDigits(out, item.normalNumber);
+            }
+            out.close();
+            out = null;
+
+            if (!temp.renameTo(file)) {
+                Log.w(TAG, "Cannot replace T9 snapshot " + file);
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write T9 snapshot", e);
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(value.length());
+            out.writeChars(value);
+        }
+    }
+
+    /**
+     * Thrown when a count or length in the snapshot cannot be right.
+     */
+    private static class CorruptSnapshotException extends IOException {
+        CorruptSnapshotException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Makes sure {@code count} records of at least {@code recordSize} bytes can
+     * fit in the rest of the buffer, before anything gets allocated for them.
+     */
+    private static void checkCount(ByteBuffer buffer, int count, int recordSize)
+            throws CorruptSnapshotException {
+        if (count < 0 || count > buffer.remaining() / recordSize) {
+            throw new CorruptSnapshotException("Bad count " + count + " at "
+                    + buffer.position() + ", " + buffer.remaining() + " bytes left");
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) throws CorruptSnapshotException {
+        int length = buffer.getInt();
+        if (length == -1) {
+            return null;
+        }
+        checkCount(buffer, length, 2);
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = buffer.getChar();
+        }
+        return new String(chars);
+    }
+
+    private static void writeDigits(DataOutputStream out, String value) throws IOException {
+        out.writeInt(value.length());
+        out.writeBytes(value);
+    }
+
+    private static String readDigits(ByteBuffer buffer) throws CorruptSnapshotException {
+        int length = buffer.getInt();
+        checkCount(buffer, length, 1);
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) buffer.get();
+        }
+        return new String(chars);
+    }
+}
@@ -16,14 +16,15 @@
 
 package com.android.contacts;
 
-import com.android.contacts.T9Search.ContactItem;
 import com.android.contacts.T9Search.T9Adapter;
+import com.android.contacts.T9Search.T9Match;
 import com.android.contacts.T9Search.T9SearchResult;
 import com.android.internal.telephony.ITelephony;
 import com.android.phone.CallLogAsync;
 import com.android.phone.HapticFeedback;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import android.app.Activity;
 import android.content.ActivityNotFoundException;
@@ -73,6 +74,7 @@ import android.view.animation.Animation;
 import android.view.animation.DecelerateInterpolator;
 import android.view.animation.TranslateAnimation;
 import android.view.inputmethod.InputMethodManager;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.BaseAdapter;
 import android.widget.EditText;
@@ -102,7 +104,7 @@ import android.widget.ImageButton;
 public class TwelveKeyDialer extends Activity implements View.OnClickListener,
         View.OnLongClickListener, View.OnKeyListener,
         View.OnTouchListener,
-        AdapterView.OnItemClickListener, TextWatcher {
+        AdapterView.OnItemClickListener, TextWatcher, T9SearchWorker.Listener {
     private static final String EMPTY_NUMBER = "";
     private static final String TAG = "TwelveKeyDialer";
 
@@ -165,14 +167,20 @@ public class TwelveKeyDialer extends Activity implements View.OnClickListener,
 
     /** Identifier for the "Add Call" intent extra. */
     static final String ADD_CALL_MODE_KEY = "add_call_mode";
-    private static T9Search sT9Search; // Static to avoid reloading when class is destroyed and recreated
+    private static volatile T9Search sT9Search; // Static to avoid reloading when class is destroyed and recreated
+    private static boolean sT9SearchLoading; // Guarded by TwelveKeyDialer.class
     private ToggleButton mT9Toggle;
     private ListView mT9List;
     private ListView mT9ListTop;
     private T9Adapter mT9Adapter;
     private T9Adapter mT9AdapterTop;
+    private T9SearchResult mT9Result;
+    private boolean mT9HasMoreResults;
+    private boolean mT9PageRequested;
+    private T9SearchWorker mT9SearchWorker;
     private ViewSwitcher mT9Flipper;
     private LinearLayout mT9Top;
+    private ContactPhotoLoader mPhotoLoader;
 
     /**
      * Identifier for intent extra for sending an empty Flash message for
@@ -237,6 +245,7 @@ public class TwelveKeyDialer extends Activity implements View.OnClickListener,
         }
 
         updateDialAndDeleteButtonEnabledState();
+        searchContacts();
     }
 
     @Override
@@ -267,6 +276,20 @@ public class TwelveKeyDialer extends Activity implements View.OnClickListener,
         mT9List = (ListView) findViewById(R.id.t9list);
         if (mT9List != null) {
             mT9List.setOnItemClickListener(this);
+            mT9List.setOnScrollListener(new AbsListView.OnScrollListener() {
+                public void onScrollStateChanged(AbsListView view, int scrollState) {
+                }
+
+                public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                        int totalItemCount) {
+                    // Rank the next page of matches once the user nears the end of the list
+                    if (mT9Result != null && mT9HasMoreResults && !mT9PageRequested
+                            && firstVisibleItem + visibleItemCount * 2 >= totalItemCount) {
+                        mT9PageRequested = true;
+                        mT9SearchWorker.requestNextPage(mT9Result);
+                    }
+                }
+            });
         }
         mT9ListTop = (ListView) findViewById(R.id.t9listtop);
         if (mT9ListTop != null) {
@@ -278,6 +301,8 @@ public class TwelveKeyDialer extends Activity implements View.OnClickListener,
         }
         mT9Flipper = (ViewSwitcher) findViewById(R.id.t9flipper);
         mT9Top = (LinearLayout) findViewById(R.id.t9topbar);
+        mPhotoLoader = new ContactPhotoLoader(this, R.drawable.ic_contact_list_picture);
+        mT9SearchWorker = new T9SearchWorker(this);
         maybeAddNumberFormatting();
 
         setupKeypad(true);
@@ -504,15 +529,11 @@ public class TwelveKeyDialer extends Activity implements View.OnClickListener,
     @Override
     protected void onResume() {
         super.onResume();
-        if (sT9Search == null && isT9On()) {
-            Thread loadContacts = new Thread(new Runnable() {
-                public void run () {
-                    sT9Search = new T9Search(getBaseContext());
-                }
-            });
-            loadContacts.start();
+        if (isT9On()) {
+            loadT9Search();
         }
         hideT9();
+        mPhotoLoader.resume();
         // Query the last dialed number. Do it first because hitting
         // the DB is 'slow'. This call is asynchronous.
         queryLastOutgoingCall();
@@ -609,8 +630,8 @@ public class TwelveKeyDialer extends Activity implements View.OnClickListener,
     }
 
     /**
-     * Initiates a search for the dialed digits
-     * Toggles view visibility based on results
+     * Initiates a search for the dialed digits on the T9 worker thread.
+     * Results are applied in {@link #onSearchComplete}.
      */
     private void searchContacts() {
         if (!isT9On())
@@ -618,43 +639,56 @@ public class TwelveKeyDialer extends Activity implements View.OnClickListener,
         final int length = mDigits.length();
         if (length > 0) {
             if (sT9Search != null) {
-                T9SearchResult result = sT9Search.search(mDigits.getText().toString());
-                if (result != null) {
-                    if (mT9Adapter == null) {
-                        mT9Adapter = sT9Search.new T9Adapter(this, 0, result.getResults(),getLayoutInflater());
-                        mT9Adapter.setNotifyOnChange(true);
-                    } else {
-                        mT9Adapter.clear();
-                        for (ContactItem item : result.getResults()) {
-                            mT9Adapter.add(item);
-                        }
-                    }
-                    if (mT9List.getAdapter() == null) {
-                        mT9List.setAdapter(mT9Adapter);
-                    }
-
-                    if (mT9AdapterTop == null) {
-                        mT9AdapterTop = sT9Search.new T9Adapter(this, 0, new ArrayList<ContactItem>(),getLayoutInflater());
-                        mT9AdapterTop.setNotifyOnChange(true);
-                    } else {
-                        mT9AdapterTop.clear();
-                    }
-                    mT9AdapterTop.add(result.getTopContact());
-                    if (mT9ListTop.getAdapter() == null) {
-                        mT9ListTop.setAdapter(mT9AdapterTop);
-                    }
+                mT9SearchWorker.search(sT9Search, mDigits.getText().toString());
+            }
+        } else {
+            mT9SearchWorker.cancel();
+            mT9Result = null;
+            mT9ListTop.setVisibility(View.INVISIBLE);
+            mT9Toggle.setVisibility(View.INVISIBLE);
+            toggleT9();
+        }
+    }
 
-                    mT9ListTop.setVisibility(View.VISIBLE);
-                    if (result.getNumResults()>  1) {
-                        mT9Toggle.setVisibility(View.VISIBLE);
-                    } else {
-                        mT9Toggle.setVisibility(View.GONE);
-                    }
-                } else {
-                    mT9ListTop.setVisibility(View.INVISIBLE);
-                    mT9Toggle.setVisibility(View.INVISIBLE);
-                    toggleT9();
+    /**
+     * Toggles view visibility based on the results of the latest search
+     */
+    public void onSearchComplete(T9SearchResult result, boolean hasMoreResults) {
+        mT9Result = result;
+        mT9HasMoreResults = hasMoreResults;
+        mT9PageRequested = false;
+        if (result != null) {
+            if (mT9Adapter == null) {
+                mT9Adapter = sT9Search.new T9Adapter(this, 0, new ArrayList<T9Match>(result.getResults()),getLayoutInflater(), mPhotoLoader);
+                mT9Adapter.setNotifyOnChange(true);
+            } else {
+                mT9Adapter.setNotifyOnChange(false);
+                mT9Adapter.clear();
+                for (T9Match item : result.getResults()) {
+                    mT9Adapter.add(item);
                 }
+                mT9Adapter.notifyDataSetChanged();
+            }
+            if (mT9List.getAdapter() == null) {
+                mT9List.setAdapter(mT9Adapter);
+            }
+
+            if (mT9AdapterTop == null) {
+                mT9AdapterTop = sT9Search.new T9Adapter(this, 0, new ArrayList<T9Match>(),getLayoutInflater(), mPhotoLoader);
+                mT9AdapterTop.setNotifyOnChange(true);
+            } else {
+                mT9AdapterTop.clear();
+            }
+            mT9AdapterTop.add(result.getTopContact());
+            if (mT9ListTop.getAdapter() == null) {
+                mT9ListTop.setAdapter(mT9AdapterTop);
+            }
+
+            mT9ListTop.setVisibility(View.VISIBLE);
+            if (result.getNumResults()>  1) {
+                mT9Toggle.setVisibility(View.VISIBLE);
+            } else {
+                mT9Toggle.setVisibility(View.GONE);
             }
         } else {
             mT9ListTop.setVisibility(View.INVISIBLE);
@@ -663,9 +697,49 @@ public class TwelveKeyDialer extends Activity implements View.OnClickListener,
         }
     }
 
+    public void onPageLoaded(T9SearchResult result, List<T9Match> page, boolean hasMoreResults) {
+        if (result != mT9Result || mT9Adapter == null) {
+            return;
+        }
+        mT9HasMoreResults = hasMoreResults;
+        mT9PageRequested = false;
+        mT9Adapter.setNotifyOnChange(false);
+        for (T9Match item : page) {
+            mT9Adapter.add(item);
+        }
+        mT9Adapter.notifyDataSetChanged();
+    }
+
     /**
      * Returns preference value for T9Dialer
      */
+    /**
+     * Loads the contact list for T9 search in the background, unless it is loaded
+     * or being loaded already.  Only one instance is ever created per process, as
+     * each one keeps listening for contact changes and writes the snapshot.
+     */
+    private void loadT9Search() {
+        synchronized (TwelveKeyDialer.class) {
+            if (sT9Search != null || sT9SearchLoading) {
+                return;
+            }
+            sT9SearchLoading = true;
+        }
+        final Context context = getApplicationContext();
+        Thread loadContacts = new Thread(new Runnable() {
+            public void run () {
+                try {
+                    sT9Search = new T9Search(context);
+                } finally {
+                    synchronized (TwelveKeyDialer.class) {
+                        sT9SearchLoading = false;
+                    }
+                }
+            }
+        });
+        loadContacts.start();
+    }
+
     private boolean isT9On() {
         return PreferenceManager.getDefaultSharedPreferences(this).getBoolean("t9_state", true);
     }
@@ -745,6 +819,13 @@ public class TwelveKeyDialer extends Activity implements View.OnClickListener,
         mLastNumberDialed = EMPTY_NUMBER;  // Since we are going to query again, free stale number.
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mPhotoLoader.stop();
+        mT9SearchWorker.quit();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         m2SecPauseMenuItem = menu.add(0, MENU_2S_PAUSE, 0, R.string.add_2sec_pause)
@@ -901,7 +982,6 @@ public class TwelveKeyDialer extends Activity implements View.OnClickListener,
     private void keyPressed(int keyCode) {
         KeyEvent event = new KeyEvent(KeyEvent.ACTION_DOWN, keyCode);
         mDigits.onKeyDown(keyCode, event);
-        searchContacts();
     }
 
     public boolean onKey(View view, int keyCode, KeyEvent event) {
@@ -912,7 +992,6 @@ public class TwelveKeyDialer extends Activity implements View.OnClickListener,
                     dialButtonPressed();
                     return true;
                 }
-                searchContacts();
                 break;
         }
         return false;
@@ -1051,7 +1130,6 @@ public class TwelveKeyDialer extends Activity implements View.OnClickListener,
         switch (id) {
             case R.id.deleteButton: {
                 digits.clear();
-                searchContacts();
                 //Wysie: Invoke checkForNumber() to disable button
                 checkForNumber();
                 // TODO: The framework forgets to clear the pressed
@@ -1139,7 +1217,6 @@ public class TwelveKeyDialer extends Activity implements View.OnClickListener,
                 // Only if set in options.
                 mDigits.setText(mLastNumberDialed);
                 mDigits.setSelection(mDigits.length());
-                searchContacts();
                 return;
             } else {
                 // Rare case: there's no "last number dialed".  There's
@@ -1360,9 +1437,9 @@ public class TwelveKeyDialer extends Activity implements View.OnClickListener,
     public void onItemClick(AdapterView parent, View v, int position, long id) {
         if (parent == mT9List || parent == mT9ListTop) {
             if (parent == mT9List)
-                mDigits.setText(mT9Adapter.getItem(position).number);
+                mDigits.setText(mT9Adapter.getItem(position).item.number);
             else
-                mDigits.setText(mT9AdapterTop.getItem(position).number);
+                mDigits.setText(mT9AdapterTop.getItem(position).item.number);
             mDigits.setSelection(mDigits.length());
             if (dialOnTap()) {
                 dialButtonPressed();
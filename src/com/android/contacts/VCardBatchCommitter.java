@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import com.android.contacts.model.GoogleSource;
+
+import android.accounts.Account;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.pim.vcard.VCardEntry;
+import android.pim.vcard.VCardEntryHandler;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Event;
+import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
+import android.provider.ContactsContract.CommonDataKinds.Im;
+import android.provider.ContactsContract.CommonDataKinds.Nickname;
+import android.provider.ContactsContract.CommonDataKinds.Note;
+import android.provider.ContactsContract.CommonDataKinds.Organization;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.Photo;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
+import android.provider.ContactsContract.CommonDataKinds.Website;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.Groups;
+import android.provider.ContactsContract.RawContacts;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Commits vCard entries to the contacts provider in batches, instead of one
+ * provider transaction per entry as {@link android.pim.vcard.VCardEntryCommitter}
+ * does.  The inserts of each entry refer to its raw contact by back-reference,
+ * and the provider may yield between entries, so that a large batch does not
+ * hold the database lock for long.
+ * <p>
+ * The operations are built here rather than by
+ * {@link VCardEntry#pushIntoContentResolver(ContentResolver)}, which applies
+ * its own batch.
+ */
+public class VCardBatchCommitter implements VCardEntryHandler {
+    private static final String LOG_TAG = "VCardBatchCommitter";
+
+    /**
+     * Notified on the committing thread after each batch is applied, as long as
+     * no batch failed.  Once one did, the entries after it are no longer all
+     * committed, so the last notification stays the last committed position.
+     */
+    public interface OnBatchCommittedListener {
+        /**
+         * @param entryCount the number of entries handled so far, including the
+         *     ignorable ones, all of which are now committed
+         */
+        void onBatchCommitted(int entryCount);
+    }
+
+    private final ContentResolver mResolver;
+    private final Account mAccount;
+    private final int mVCardType;
+    private final int mBatchSize;
+
+    private final ArrayList<ContentProviderOperation> mOperations =
+            new ArrayList<ContentProviderOperation>();
+    /** Index in {@link #mOperations} of the raw contact insert of each pending entry */
+    private final ArrayList<Integer> mRawContactIndices = new ArrayList<Integer>();
+    private final ArrayList<VCardEntry> mPendingEntries = new ArrayList<VCardEntry>();
+    private final ArrayList<Uri> mCreatedUris = new ArrayList<Uri>();
+    private OnBatchCommittedListener mListener;
+    private VCardDuplicateIndex mDuplicateIndex;
+    private int mEntryCount;
+    private int mDuplicateCount;
+
+    private boolean mMyContactsGroupQueried;
+    private String mMyContactsGroupSourceId;
+
+    private int mCommittedCount;
+    private int mFailedCount;
+    private long mCommitTime;
+    private long mStartTime;
+    private long mEndTime;
+
+    /**
+     * @param account the account to create the raw contacts in, or null
+     * @param vcardType the type the vCard is parsed with, to format addresses
+     * @param batchSize the number of operations after which a batch is applied.
+     *     An entry is never split, so a batch may be larger when a single entry
+     *     needs more operations.
+     */
+    public VCardBatchCommitter(ContentResolver resolver, Account account, int vcardType,
+            int batchSize) {
+        mResolver = resolver;
+        mAccount = account;
+        mVCardType = vcardType;
+        mBatchSize = Math.max(1, batchSize);
+    }
+
+    public void onStart() {
+        mStartTime = System.currentTimeMillis();
+    }
+
+    public void setOnBatchCommittedListener(OnBatchCommittedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Makes the committer skip the entries already in the index, and add the
+     * others to it.
+     */
+    public void setDuplicateIndex(VCardDuplicateIndex index) {
+        mDuplicateIndex = index;
+    }
+
+    public void onEntryCreated(VCardEntry entry) {
+        mEntryCount++;
+        if (entry.isIgnorable()) {
+            return;
+        }
+        if (mDuplicateIndex != null) {
+            if (mDuplicateIndex.contains(entry)) {
+                mDuplicateCount++;
+                return;
+            }
+            mDuplicateIndex.add(entry);
+        }
+        mPendingEntries.add(entry);
+        addOperations(entry, mOperations.size());
+        if (mOperations.size() >= mBatchSize) {
+            flush();
+        }
+    }
+
+    public void onEnd() {
+        flush();
+        mEndTime = System.currentTimeMillis();
+        Log.i(LOG_TAG, "Committed " + mCommittedCount + " contacts in "
+                + (mEndTime - mStartTime) + " ms (" + mCommitTime + " ms in the provider), "
+                + getContactsPerSecond() + " contacts/s, " + mDuplicateCount
+                + " duplicates skipped, " + mFailedCount + " failed");
+    }
+
+    /**
+     * Applies the pending operations.  If the batch fails, its entries are
+     * counted as failed and dropped from the duplicate index, so that they are
+     * not mistaken for duplicates later in the import.  They are not retried one
+     * at a time: the provider may have committed the entries before the last
+     * yield point, and those would be inserted twice.
+     */
+    public void flush() {
+        if (mOperations.isEmpty()) {
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        try {
+            final ContentProviderResult[] results =
+                    mResolver.applyBatch(ContactsContract.AUTHORITY, mOperations);
+            for (int index : mRawContactIndices) {
+                if (results != null && index < results.length && results[index] != null) {
+                    mCreatedUris.add(results[index].uri);
+                }
+            }
+            mCommittedCount += mRawContactIndices.size();
+            if (mListener != null && mFailedCount == 0) {
+                mListener.onBatchCommitted(mEntryCount);
+            }
+        } catch (RemoteException e) {
+            Log.e(LOG_TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            onBatchFailed();
+        } catch (OperationApplicationException e) {
+            Log.e(LOG_TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            onBatchFailed();
+        } finally {
+            mCommitTime += System.currentTimeMillis() - start;
+            mOperations.clear();
+            mRawContactIndices.clear();
+            mPendingEntries.clear();
+        }
+    }
+
+    private void onBatchFailed() {
+        mFailedCount += mPendingEntries.size();
+        if (mDuplicateIndex != null) {
+            for (VCardEntry entry : mPendingEntries) {
+                mDuplicateIndex.remove(entry);
+            }
+        }
+    }
+
+    /**
+     * Returns the created raw contact URIs, in the order of the entries.
+     */
+    public ArrayList<Uri> getCreatedUris() {
+        return mCreatedUris;
+    }
+
+    public int getCommittedCount() {
+        return mCommittedCount;
+    }
+
+    /**
+     * Returns the number of entries in batches the provider failed to apply.
+     * Some of them may have been committed nonetheless.
+     */
+    public int getFailedCount() {
+        return mFailedCount;
+    }
+
+    public int getDuplicateCount() {
+        return mDuplicateCount;
+    }
+
+    /**
+     * Returns the number of contacts committed per second from {@link #onStart()}
+     * to {@link #onEnd()}, parsing included.
+     */
+    public long getContactsPerSecond() {
+        final long time = mEndTime - mStartTime;
+        return time > 0 ? mCommittedCount * 1000L / time : mCommittedCount;
+    }
+
+    private void addOperations(VCardEntry entry, int backReference) {
+        ContentProviderOperation.Builder builder =
+                ContentProviderOperation.newInsert(RawContacts.CONTENT_URI);
+        if (mAccount != null) {
+            builder.withValue(RawContacts.ACCOUNT_NAME, mAccount.name);
+            builder.withValue(RawContacts.ACCOUNT_TYPE, mAccount.type);
+        } else {
+            builder.withValue(RawContacts.ACCOUNT_NAME, null);
+            builder.withValue(RawContacts.ACCOUNT_TYPE, null);
+        }
+        if (backReference > 0) {
+            // Let the provider yield between entries
+            builder.withYieldAllowed(true);
+        }
+        mRawContactIndices.add(backReference);
+        mOperations.add(builder.build());
+
+        final String displayName = entry.getDisplayName();
+        if (!TextUtils.isEmpty(displayName) || !TextUtils.isEmpty(entry.getGivenName())
+                || !TextUtils.isEmpty(entry.getFamilyName())) {
+            builder = newDataInsert(StructuredName.CONTENT_ITEM_TYPE, backReference);
+            builder.withValue(StructuredName.GIVEN_NAME, entry.getGivenName());
+            builder.withValue(StructuredName.FAMILY_NAME, entry.getFamilyName());
+            builder.withValue(StructuredName.MIDDLE_NAME, entry.getMiddleName());
+            builder.withValue(StructuredName.PREFIX, entry.getPrefix());
+            builder.withValue(StructuredName.SUFFIX, entry.getSuffix());
+            if (!TextUtils.isEmpty(entry.getPhoneticGivenName())
+                    || !TextUtils.isEmpty(entry.getPhoneticFamilyName())
+                    || !TextUtils.isEmpty(entry.getPhoneticMiddleName())) {
+                builder.withValue(StructuredName.PHONETIC_GIVEN_NAME,
+                        entry.getPhoneticGivenName());
+                builder.withValue(StructuredName.PHONETIC_FAMILY_NAME,
+                        entry.getPhoneticFamilyName());
+                builder.withValue(StructuredName.PHONETIC_MIDDLE_NAME,
+                        entry.getPhoneticMiddleName());
+            }
+            builder.withValue(StructuredName.DISPLAY_NAME, displayName);
+            mOperations.add(builder.build());
+        }
+
+        final List<String> nickNames = entry.getNickNameList();
+        if (nickNames != null) {
+            for (String nickName : nickNames) {
+                builder = newDataInsert(Nickname.CONTENT_ITEM_TYPE, backReference);
+                builder.withValue(Nickname.TYPE, Nickname.TYPE_DEFAULT);
+                builder.withValue(Nickname.NAME, nickName);
+                mOperations.add(builder.build());
+            }
+        }
+
+        final List<VCardEntry.PhoneData> phones = entry.getPhoneList();
+        if (phones != null) {
+            for (VCardEntry.PhoneData phone : phones) {
+                builder = newDataInsert(Phone.CONTENT_ITEM_TYPE, backReference);
+                builder.withValue(Phone.TYPE, phone.type);
+                if (phone.type == Phone.TYPE_CUSTOM) {
+                    builder.withValue(Phone.LABEL, phone.label);
+                }
+                builder.withValue(Phone.NUMBER, phone.data);
+                if (phone.isPrimary) {
+                    builder.withValue(Phone.IS_PRIMARY, 1);
+                }
+                mOperations.add(builder.build());
+            }
+        }
+
+        final List<VCardEntry.OrganizationData> organizations = entry.getOrganizationList();
+        if (organizations != null) {
+            for (VCardEntry.OrganizationData organization : organizations) {
+                builder = newDataInsert(Organization.CONTENT_ITEM_TYPE, backReference);
+                builder.withValue(Organization.TYPE, organization.type);
+                builder.withValue(Organization.COMPANY, organization.companyName);
+                builder.withValue(Organization.DEPARTMENT, organization.departmentName);
+                builder.withValue(Organization.TITLE, organization.titleName);
+                if (organization.isPrimary) {
+                    builder.withValue(Organization.IS_PRIMARY, 1);
+                }
+                mOperations.add(builder.build());
+            }
+        }
+
+        final List<VCardEntry.EmailData> emails = entry.getEmailList();
+        if (emails != null) {
+            for (VCardEntry.EmailData email : emails) {
+                builder = newDataInsert(Email.CONTENT_ITEM_TYPE, backReference);
+                builder.withValue(Email.TYPE, email.type);
+                if (email.type == Email.TYPE_CUSTOM) {
+                    builder.withValue(Email.LABEL, email.label);
+                }
+                builder.withValue(Email.DATA, email.data);
+                if (email.isPrimary) {
+                    builder.withValue(Email.IS_PRIMARY, 1);
+                }
+                mOperations.add(builder.build());
+            }
+        }
+
+        final List<VCardEntry.PostalData> postals = entry.getPostalList();
+        if (postals != null) {
+            for (VCardEntry.PostalData postal : postals) {
+                builder = newDataInsert(StructuredPostal.CONTENT_ITEM_TYPE, backReference);
+                builder.withValue(StructuredPostal.TYPE, postal.type);
+                if (postal.type == StructuredPostal.TYPE_CUSTOM) {
+                    builder.withValue(StructuredPostal.LABEL, postal.label);
+                }
+                builder.withValue(StructuredPostal.POBOX, postal.pobox);
+                builder.withValue(StructuredPostal.NEIGHBORHOOD, postal.extendedAddress);
+                builder.withValue(StructuredPostal.STREET, postal.street);
+                builder.withValue(StructuredPostal.CITY, postal.localty);
+                builder.withValue(StructuredPostal.REGION, postal.region);
+                builder.withValue(StructuredPostal.POSTCODE, postal.postalCode);
+                builder.withValue(StructuredPostal.COUNTRY, postal.country);
+                builder.withValue(StructuredPostal.FORMATTED_ADDRESS,
+                        postal.getFormattedAddress(mVCardType));
+                if (postal.isPrimary) {
+                    builder.withValue(StructuredPostal.IS_PRIMARY, 1);
+                }
+                mOperations.add(builder.build());
+            }
+        }
+
+        final List<VCardEntry.ImData> ims = entry.getImList();
+        if (ims != null) {
+            for (VCardEntry.ImData im : ims) {
+                builder = newDataInsert(Im.CONTENT_ITEM_TYPE, backReference);
+                builder.withValue(Im.TYPE, im.type);
+                builder.withValue(Im.PROTOCOL, im.protocol);
+                if (im.protocol == Im.PROTOCOL_CUSTOM) {
+                    builder.withValue(Im.CUSTOM_PROTOCOL, im.customProtocol);
+                }
+                builder.withValue(Im.DATA, im.data);
+                if (im.isPrimary) {
+                    builder.withValue(Im.IS_PRIMARY, 1);
+                }
+                mOperations.add(builder.build());
+            }
+        }
+
+        final List<String> notes = entry.getNotes();
+        if (notes != null) {
+            for (String note : notes) {
+                builder = newDataInsert(Note.CONTENT_ITEM_TYPE, backReference);
+                builder.withValue(Note.NOTE, note);
+                mOperations.add(builder.build());
+            }
+        }
+
+        final List<VCardEntry.PhotoData> photos = entry.getPhotoList();
+        if (photos != null) {
+            for (VCardEntry.PhotoData photo : photos) {
+                builder = newDataInsert(Photo.CONTENT_ITEM_TYPE, backReference);
+                builder.withValue(Photo.PHOTO, photo.photoBytes);
+                if (photo.isPrimary) {
+                    builder.withValue(Photo.IS_PRIMARY, 1);
+                }
+                mOperations.add(builder.build());
+            }
+        }
+
+        final List<String> websites = entry.getWebsiteList();
+        if (websites != null) {
+            for (String website : websites) {
+                builder = newDataInsert(Website.CONTENT_ITEM_TYPE, backReference);
+                builder.withValue(Website.URL, website);
+                builder.withValue(Website.TYPE, Website.TYPE_HOMEPAGE);
+                mOperations.add(builder.build());
+            }
+        }
+
+        final String birthday = entry.getBirthday();
+        if (!TextUtils.isEmpty(birthday)) {
+            builder = newDataInsert(Event.CONTENT_ITEM_TYPE, backReference);
+            builder.withValue(Event.START_DATE, birthday);
+            builder.withValue(Event.TYPE, Event.TYPE_BIRTHDAY);
+            mOperations.add(builder.build());
+        }
+
+        final String myContactsGroupSourceId = getMyContactsGroupSourceId();
+        if (myContactsGroupSourceId != null) {
+            builder = newDataInsert(GroupMembership.CONTENT_ITEM_TYPE, backReference);
+            builder.withValue(GroupMembership.GROUP_SOURCE_ID, myContactsGroupSourceId);
+            mOperations.add(builder.build());
+        }
+    }
+
+    private static ContentProviderOperation.Builder newDataInsert(String mimeType,
+            int backReference) {
+        final ContentProviderOperation.Builder builder =
+                ContentProviderOperation.newInsert(Data.CONTENT_URI);
+        builder.withValueBackReference(Data.RAW_CONTACT_ID, backReference);
+        builder.withValue(Data.MIMETYPE, mimeType);
+        return builder;
+    }
+
+    /**
+     * Returns the source ID of the "My Contacts" group of a Google account, which
+     * the caller is expected to have created, once per committer.
+     */
+    private String getMyContactsGroupSourceId() {
+        if (mMyContactsGroupQueried) {
+            return mMyContactsGroupSourceId;
+        }
+        mMyContactsGroupQueried = true;
+        if (mAccount == null || !GoogleSource.ACCOUNT_TYPE.equals(mAccount.type)) {
+            return null;
+        }
+        final Cursor cursor = mResolver.query(Groups.CONTENT_URI,
+                new String[] { Groups.SOURCE_ID },
+                Groups.TITLE + "=? AND " + Groups.ACCOUNT_NAME + "=? AND "
+                        + Groups.ACCOUNT_TYPE + "=?",
+                new String[] { GoogleSource.GOOGLE_MY_CONTACTS_GROUP, mAccount.name,
+                        mAccount.type }, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    mMyContactsGroupSourceId = cursor.getString(0);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return mMyContactsGroupSourceId;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.pim.vcard.VCardEntry;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Fingerprints of the raw contacts of an account, to tell whether an imported
+ * vCard entry is already there.  A fingerprint is a 64-bit hash of the
+ * normalized display name and the set of normalized phone numbers and email
+ * addresses, and the index is a sorted array of them, so that 50,000 contacts
+ * take 400 KB.  Entries with neither a name nor a phone number or email address
+ * have no fingerprint, and are never taken for duplicates.
+ */
+final class VCardDuplicateIndex {
+    private static final String[] PROJECTION = new String[] {
+        Data.RAW_CONTACT_ID, Data.MIMETYPE, Data.DATA1,
+    };
+    private static final int COLUMN_RAW_CONTACT_ID = 0;
+    private static final int COLUMN_MIMETYPE = 1;
+    private static final int COLUMN_DATA = 2;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long[] mFingerprints;
+    /** Fingerprints of the entries imported since the index was built */
+    private final HashSet<Long> mAddedFingerprints = new HashSet<Long>();
+
+    private VCardDuplicateIndex(long[] fingerprints) {
+        mFingerprints = fingerprints;
+    }
+
+    /**
+     * Builds the index of the raw contacts in {@code account}, or of those in no
+     * account if it is null.
+     */
+    public static VCardDuplicateIndex build(ContentResolver resolver, Account account) {
+        final String selection = Data.MIMETYPE + " IN (?,?,?) AND "
+                + RawContacts.DELETED + "=0 AND "
+                + (account != null
+                        ? RawContacts.ACCOUNT_NAME + "=? AND " + RawContacts.ACCOUNT_TYPE + "=?"
+                        : RawContacts.ACCOUNT_NAME + " IS NULL AND "
+                                + RawContacts.ACCOUNT_TYPE + " IS NULL");
+        final String[] selectionArgs = account != null
+                ? new String[] { StructuredName.CONTENT_ITEM_TYPE, Phone.CONTENT_ITEM_TYPE,
+                        Email.CONTENT_ITEM_TYPE, account.name, account.type }
+                : new String[] { StructuredName.CONTENT_ITEM_TYPE, Phone.CONTENT_ITEM_TYPE,
+                        Email.CONTENT_ITEM_TYPE };
+
+        long[] fingerprints = new long[256];
+        int count = 0;
+        final Cursor cursor = resolver.query(Data.CONTENT_URI, PROJECTION, selection,
+                selectionArgs, Data.RAW_CONTACT_ID);
+        if (cursor != null) {
+            try {
+                final ArrayList<String> keys = new ArrayList<String>();
+                String name = null;
+                long rawContactId = -1;
+                while (cursor.moveToNext()) {
+                    final long id = cursor.getLong(COLUMN_RAW_CONTACT_ID);
+                    if (id != rawContactId) {
+                        final Long fingerprint = rawContactId != -1
+                                ? fingerprint(name, keys) : null;
+                        if (fingerprint != null) {
+                            if (count == fingerprints.length) {
+                                fingerprints = Arrays.copyOf(fingerprints, count * 2);
+                            }
+                            fingerprints[count++] = fingerprint;
+                        }
+                        rawContactId = id;
+                        name = null;
+                        keys.clear();
+                    }
+                    final String mimeType = cursor.getString(COLUMN_MIMETYPE);
+                    final String data = cursor.getString(COLUMN_DATA);
+                    if (StructuredName.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                        name = data;
+                    } else if (Phone.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                        addPhoneKey(keys, data);
+                    } else {
+                        addEmailKey(keys, data);
+                    }
+                }
+                final Long fingerprint = rawContactId != -1 ? fingerprint(name, keys) : null;
+                if (fingerprint != null) {
+                    if (count == fingerprints.length) {
+                        fingerprints = Arrays.copyOf(fingerprints, count * 2);
+                    }
+                    fingerprints[count++] = fingerprint;
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        fingerprints = Arrays.copyOf(fingerprints, count);
+        Arrays.sort(fingerprints);
+        return new VCardDuplicateIndex(fingerprints);
+    }
+
+    /**
+     * Returns true if a raw contact with the same name, phone numbers and email
+     * addresses as the entry exists, or was imported since the index was built.
+     */
+    public boolean contains(VCardEntry entry) {
+        final Long fingerprint = fingerprint(entry);
+        if (fingerprint == null) {
+            return false;
+        }
+        return Arrays.binarySearch(mFingerprints, fingerprint) >= 0
+                || mAddedFingerprints.contains(fingerprint);
+    }
+
+    /**
+     * Adds an imported entry, so that its duplicates later in the import are
+     * found too.
+     */
+    public void add(VCardEntry entry) {
+        final Long fingerprint = fingerprint(entry);
+        if (fingerprint != null) {
+            mAddedFingerprints.add(fingerprint);
+        }
+    }
+
+    /**
+     * Removes an entry added with {@link #add}, when it could not be imported.
+     */
+    public void remove(VCardEntry entry) {
+        final Long fingerprint = fingerprint(entry);
+        if (fingerprint != null) {
+            mAddedFingerprints.remove(fingerprint);
+        }
+    }
+
+    public int size() {
+        return mFingerprints.length + mAddedFingerprints.size();
+    }
+
+    private static Long fingerprint(VCardEntry entry) {
+        final ArrayList<String> keys = new ArrayList<String>();
+        final List<VCardEntry.PhoneData> phones = entry.getPhoneList();
+        if (phones != null) {
+            for (VCardEntry.PhoneData phone : phones) {
+                addPhoneKey(keys, phone.data);
+            }
+        }
+        final List<VCardEntry.EmailData> emails = entry.getEmailList();
+        if (emails != null) {
+            for (VCardEntry.EmailData email : emails) {
+                addEmailKey(keys, email.data);
+            }
+        }
+        return fingerprint(entry.getDisplayName(), keys);
+    }
+
+    private static void addPhoneKey(List<String> keys, String number) {
+        if (!TextUtils.isEmpty(number)) {
+            // Matches numbers with or without a country or trunk prefix
+            keys.add("p" + PhoneNumberUtils.toCallerIDMinMatch(number));
+        }
+    }
+
+    private static void addEmailKey(List<String> keys, String address) {
+        if (!TextUtils.isEmpty(address)) {
+            keys.add("e" + address.trim().toLowerCase());
+        }
+    }
+
+    /**
+     * Hashes the name and the set of keys with FNV-1a.  Duplicate keys count
+     * once and their order does not matter.
+     *
+     * @return the hash, or null if the name is empty and there are no keys, as
+     *     all such contacts would look alike
+     */
+    private static Long fingerprint(String name, ArrayList<String> keys) {
+        final String normalizedName = normalizeName(name);
+        if (normalizedName.length() == 0 && keys.isEmpty()) {
+            return null;
+        }
+        long hash = FNV_OFFSET_BASIS;
+        hash = hash(hash, normalizedName);
+        Collections.sort(keys);
+        String previous = null;
+        for (String key : keys) {
+            if (!key.equals(previous)) {
+                hash = hash(hash, key);
+                previous = key;
+            }
+        }
+        return hash;
+    }
+
+    private static long hash(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        // Separator, so that ("ab", "c") and ("a", "bc") differ
+        hash ^= 0xffff;
+        hash *= FNV_PRIME;
+        return hash;
+    }
+
+    private static String normalizeName(String name) {
+        if (name == null) {
+            return "";
+        }
+        return name.trim().replaceAll("\\s+", " ").toLowerCase();
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Entity;
+import android.content.EntityIterator;
+import android.database.Cursor;
+import android.pim.vcard.VCardBuilder;
+import android.pim.vcard.VCardConfig;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Event;
+import android.provider.ContactsContract.CommonDataKinds.Im;
+import android.provider.ContactsContract.CommonDataKinds.Nickname;
+import android.provider.ContactsContract.CommonDataKinds.Note;
+import android.provider.ContactsContract.CommonDataKinds.Organization;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.Photo;
+import android.provider.ContactsContract.CommonDataKinds.Relation;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
+import android.provider.ContactsContract.CommonDataKinds.Website;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.provider.ContactsContract.RawContactsEntity;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Exports contacts as vCards.  Unlike {@link android.pim.vcard.VCardComposer},
+ * which queries the data of each contact on its own and creates a builder per
+ * entry, the data is read for {@link #CHUNK_SIZE} contacts at a time and the
+ * entries are encoded with a single builder.  The properties are appended in
+ * the same order as the composer does.
+ */
+final class VCardExporter {
+    /** Number of contacts whose data is read with one query */
+    static final int CHUNK_SIZE = 100;
+
+    /** Minimum time between two progress notifications, in milliseconds */
+    private static final long PROGRESS_INTERVAL = 200;
+
+    private static final String[] CONTACTS_PROJECTION = new String[] { Contacts._ID };
+
+    interface ProgressListener {
+        /**
+         * Called at most every {@link VCardExporter#PROGRESS_INTERVAL} ms, and
+         * once all the contacts are exported.
+         */
+        void onProgress(int exportedCount);
+    }
+
+    private final int mVCardType;
+    private final VCardBuilder mBuilder;
+    /** Data rows of the current contact by MIME type, lists are reused */
+    private final HashMap<String, List<ContentValues>> mContentValuesListMap =
+            new HashMap<String, List<ContentValues>>();
+
+    private ProgressListener mProgressListener;
+    private volatile boolean mCanceled;
+    private int mExportedCount;
+    private long mLastProgressTime;
+
+    public VCardExporter(int vcardType) {
+        mVCardType = vcardType;
+        mBuilder = new VCardBuilder(vcardType);
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        mProgressListener = listener;
+    }
+
+    public void cancel() {
+        mCanceled = true;
+    }
+
+    public boolean isCanceled() {
+        return mCanceled;
+    }
+
+    public int getExportedCount() {
+        return mExportedCount;
+    }
+
+    /**
+     * Returns the IDs of all the contacts, or null if they could not be read.
+     */
+    public static long[] queryContactIds(ContentResolver resolver) {
+        final Cursor cursor = resolver.query(Contacts.CONTENT_URI, CONTACTS_PROJECTION, null,
+                null, Contacts._ID);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            final long[] contactIds = new long[cursor.getCount()];
+            int i = 0;
+            while (cursor.moveToNext() && i < contactIds.length) {
+                contactIds[i++] = cursor.getLong(0);
+            }
+            return contactIds;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Writes the vCards of the contacts, reading their data in chunks.  Stops
+     * early when canceled.
+     *
+     * @return false if the data of some contacts could not be read
+     */
+    public boolean export(ContentResolver resolver, long[] contactIds, Writer writer)
+            throws IOException {
+        final StringBuilder selection = new StringBuilder();
+        for (int start = 0; start < contactIds.length && !mCanceled; start += CHUNK_SIZE) {
+            final int end = Math.min(start + CHUNK_SIZE, contactIds.length);
+            selection.setLength(0);
+            selection.append(RawContacts.CONTACT_ID).append(" IN (");
+            for (int i = start; i < end; i++) {
+                if (i > start) {
+                    selection.append(',');
+                }
+                selection.append(contactIds[i]);
+            }
+            selection.append(')');
+
+            final Cursor cursor = resolver.query(RawContactsEntity.CONTENT_URI, null,
+                    selection.toString(), null,
+                    RawContacts.CONTACT_ID + "," + RawContactsEntity._ID);
+            if (cursor == null) {
+                return false;
+            }
+            final EntityIterator entities = RawContacts.newEntityIterator(cursor);
+            try {
+                export(entities, writer);
+            } finally {
+                entities.close();
+            }
+        }
+        notifyProgress(true);
+        return true;
+    }
+
+    /**
+     * Writes a vCard for every contact of the raw contact entities, which must
+     * be sorted by contact.
+     */
+    public void export(EntityIterator entities, Writer writer) throws IOException {
+        long contactId = -1;
+        while (entities.hasNext() && !mCanceled) {
+            final Entity entity = entities.next();
+            final Long entityContactId = entity.getEntityValues().getAsLong(RawContacts.CONTACT_ID);
+            final long id = entityContactId != null ? entityContactId : -1;
+            if (id != contactId && contactId != -1) {
+                writeEntry(writer);
+            }
+            contactId = id;
+
+            for (Entity.NamedContentValues namedValues : entity.getSubValues()) {
+                final ContentValues values = namedValues.values;
+                final String mimeType = values.getAsString(Data.MIMETYPE);
+                if (mimeType == null) {
+                    continue;
+                }
+                List<ContentValues> contentValuesList = mContentValuesListMap.get(mimeType);
+                if (contentValuesList == null) {
+                    contentValuesList = new ArrayList<ContentValues>();
+                    mContentValuesListMap.put(mimeType, contentValuesList);
+                }
+                contentValuesList.add(values);
+            }
+        }
+        if (contactId != -1 && !mCanceled) {
+            writeEntry(writer);
+        }
+    }
+
+    private void writeEntry(Writer writer) throws IOException {
+        mBuilder.clear();
+        mBuilder.appendNameProperties(get(StructuredName.CONTENT_ITEM_TYPE))
+                .appendNickNames(get(Nickname.CONTENT_ITEM_TYPE))
+                .appendPhones(get(Phone.CONTENT_ITEM_TYPE))
+                .appendEmails(get(Email.CONTENT_ITEM_TYPE))
+                .appendPostals(get(StructuredPostal.CONTENT_ITEM_TYPE))
+                .appendOrganizations(get(Organization.CONTENT_ITEM_TYPE))
+                .appendWebsites(get(Website.CONTENT_ITEM_TYPE));
+        if ((mVCardType & VCardConfig.FLAG_REFRAIN_IMAGE_EXPORT) == 0) {
+            mBuilder.appendPhotos(get(Photo.CONTENT_ITEM_TYPE));
+        }
+        mBuilder.appendNotes(get(Note.CONTENT_ITEM_TYPE))
+                .appendEvents(get(Event.CONTENT_ITEM_TYPE))
+                .appendIms(get(Im.CONTENT_ITEM_TYPE))
+                .appendRelation(get(Relation.CONTENT_ITEM_TYPE));
+        writer.write(mBuilder.toString());
+
+        for (List<ContentValues> contentValuesList : mContentValuesListMap.values()) {
+            contentValuesList.clear();
+        }
+        mExportedCount++;
+        notifyProgress(false);
+    }
+
+    /**
+     * Returns the rows of the current contact of the given type, or null if it
+     * has none, as the builder expects.
+     */
+    private List<ContentValues> get(String mimeType) {
+        final List<ContentValues> contentValuesList = mContentValuesListMap.get(mimeType);
+        return contentValuesList == null || contentValuesList.isEmpty() ? null : contentValuesList;
+    }
+
+    private void notifyProgress(boolean force) {
+        if (mProgressListener == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        if (force || now - mLastProgressTime >= PROGRESS_INTERVAL) {
+            mLastProgressTime = now;
+            mProgressListener.onProgress(mExportedCount);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+
+import java.io.File;
+
+/**
+ * Records how far the import of each vCard got, so that an import that was
+ * canceled or killed can resume after the last committed entry instead of
+ * inserting everything again.  A checkpoint only applies to the same file
+ * imported into the same account: it is ignored once the length or, for files,
+ * the modification time changes.
+ */
+final class VCardImportCheckpoints {
+    private static final String PREFERENCES_NAME = "vcard_import_checkpoints";
+
+    static final class Checkpoint {
+        /** Byte offset right after the last committed vCard */
+        public final long offset;
+        /** Number of vCards read up to {@link #offset} */
+        public final int entryCount;
+
+        public Checkpoint(long offset, int entryCount) {
+            this.offset = offset;
+            this.entryCount = entryCount;
+        }
+    }
+
+    private final SharedPreferences mPreferences;
+
+    public VCardImportCheckpoints(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the checkpoint of the vCard imported into {@code account}, or null
+     * if there is none for this version of it.
+     */
+    public Checkpoint get(Uri uri, Account account, long length) {
+        final String value = mPreferences.getString(getKey(uri, account), null);
+        if (value == null) {
+            return null;
+        }
+        final String[] fields = value.split(",");
+        if (fields.length != 3 || !fields[0].equals(getIdentity(uri, length))) {
+            return null;
+        }
+        try {
+            return new Checkpoint(Long.parseLong(fields[1]), Integer.parseInt(fields[2]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Records that the first {@code entryCount} vCards, ending at
+     * {@code offset}, are committed.  Nothing is recorded for a vCard of
+     * unknown length, which cannot be told apart from a different one.
+     */
+    public void put(Uri uri, Account account, long length, long offset, int entryCount) {
+        if (length < 0) {
+            return;
+        }
+        mPreferences.edit()
+                .putString(getKey(uri, account), getIdentity(uri, length) + "," + offset + ","
+                        + entryCount)
+                .apply();
+    }
+
+    public void remove(Uri uri, Account account) {
+        mPreferences.edit().remove(getKey(uri, account)).apply();
+    }
+
+    /**
+     * Returns the key of the checkpoint, which holds the account, or none for
+     * contacts in no account.  Newlines never occur in a URI.
+     */
+    private static String getKey(Uri uri, Account account) {
+        if (account == null) {
+            return uri.toString();
+        }
+        return uri + "\n" + account.type + "\n" + account.name;
+    }
+
+    private static String getIdentity(Uri uri, long length) {
+        if ("file".equals(uri.getScheme())) {
+            return length + ":" + new File(uri.getPath()).lastModified();
+        }
+        return String.valueOf(length);
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The result of the last scan of the external storage for vCard files: the
+ * subdirectories and vCard files of every directory, with the modification
+ * time of the directory when it was listed.  A directory whose modification
+ * time did not change since does not need to be listed again, as adding,
+ * removing or renaming an entry updates it.
+ */
+final class VCardScanIndex {
+    private static final String LOG_TAG = "VCardScanIndex";
+
+    private static final int VERSION = 1;
+
+    /**
+     * How much older than the scan a modification time must be to be trusted.
+     * FAT only stores times to two seconds, so a directory changed right after
+     * it was listed may keep the same time.
+     */
+    private static final long MODIFICATION_TIME_GRANULARITY = 2000;
+
+    /**
+     * Fewest bytes a directory, a subdirectory and a file take in the saved
+     * index, to bound the counts read back.
+     */
+    private static final int MIN_DIRECTORY_SIZE = 2 + 8 + 4 + 4;
+    private static final int MIN_SUBDIRECTORY_SIZE = 2;
+    private static final int MIN_FILE_SIZE = 2 + 2 + 8 + 8;
+
+    static final class Entry {
+        public final String name;
+        public final String canonicalPath;
+        public final long size;
+        public final long lastModified;
+
+        public Entry(String name, String canonicalPath, long size, long lastModified) {
+            this.name = name;
+            this.canonicalPath = canonicalPath;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    static final class Directory {
+        /** When the directory was listed, or 0 if it must be listed again */
+        public final long lastModified;
+        public final String[] subdirectories;
+        public final Entry[] files;
+
+        public Directory(long lastModified, String[] subdirectories, Entry[] files) {
+            this.lastModified = lastModified;
+            this.subdirectories = subdirectories;
+            this.files = files;
+        }
+    }
+
+    private final String mRootPath;
+    private final long mScanTime;
+    private final HashMap<String, Directory> mDirectories = new HashMap<String, Directory>();
+
+    /**
+     * Creates an empty index for a scan of {@code rootPath} starting now.
+     */
+    public VCardScanIndex(String rootPath) {
+        mRootPath = rootPath;
+        mScanTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the directory as it was listed, or null if it was not, or if it
+     * changed since.
+     */
+    public Directory getUnchanged(String canonicalPath, long lastModified) {
+        final Directory directory = mDirectories.get(canonicalPath);
+        if (directory == null || directory.lastModified == 0
+                || directory.lastModified != lastModified) {
+            return null;
+        }
+        return directory;
+    }
+
+    /**
+     * Adds a directory listed during this scan.  Modification times too close
+     * to the scan are not recorded, so that the directory is listed again.
+     */
+    public Directory putListed(String canonicalPath, long lastModified,
+            String[] subdirectories, Entry[] files) {
+        if (lastModified > mScanTime - MODIFICATION_TIME_GRANULARITY) {
+            lastModified = 0;
+        }
+        final Directory directory = new Directory(lastModified, subdirectories, files);
+        mDirectories.put(canonicalPath, directory);
+        return directory;
+    }
+
+    /**
+     * Adds a directory found unchanged during this scan.
+     */
+    public void putUnchanged(String canonicalPath, Directory directory) {
+        mDirectories.put(canonicalPath, directory);
+    }
+
+    /**
+     * Loads the index saved by the last scan of {@code rootPath}.  Returns an
+     * empty index if there is none, or if it cannot be read.
+     */
+    public static VCardScanIndex load(File file, String rootPath) {
+        final VCardScanIndex index = new VCardScanIndex(rootPath);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != VERSION || !rootPath.equals(in.readUTF())) {
+                return index;
+            }
+            final long length = file.length();
+            final int directoryCount = readCount(in, length, MIN_DIRECTORY_SIZE);
+            for (int i = 0; i < directoryCount; i++) {
+                final String path = in.readUTF();
+                final long lastModified = in.readLong();
+                final String[] subdirectories =
+                        new String[readCount(in, length, MIN_SUBDIRECTORY_SIZE)];
+                for (int j = 0; j < subdirectories.length; j++) {
+                    subdirectories[j] = in.readUTF();
+                }
+                final Entry[] files = new Entry[readCount(in, length, MIN_FILE_SIZE)];
+                for (int j = 0; j < files.length; j++) {
+                    files[j] = new Entry(in.readUTF(), in.readUTF(), in.readLong(),
+                            in.readLong());
+                }
+                index.mDirectories.put(path, new Directory(lastModified, subdirectories, files));
+            }
+        } catch (FileNotFoundException e) {
+            // Never scanned
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot read " + file, e);
+            index.mDirectories.clear();
+        } catch (RuntimeException e) {
+            // Whatever is wrong with the file, it is only a cache
+            Log.w(LOG_TAG, "Corrupt " + file, e);
+            index.mDirectories.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Reads a count of records that take at least {@code recordSize} bytes
+     * each, which must fit in a file of {@code length} bytes.
+     */
+    private static int readCount(DataInputStream in, long length, int recordSize)
+            throws IOException {
+        final int count = in.readInt();
+        if (count < 0 || (long) count * recordSize > length) {
+            throw new IOException("Corrupt count " + count);
+        }
+        return count;
+    }
+
+    public void save(File file) {
+        final File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(VERSION);
+            out.writeUTF(mRootPath);
+            out.writeInt(mDirectories.size());
+            for (Map.Entry<String, Directory> entry : mDirectories.entrySet()) {
+                final Directory directory = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(directory.lastModified);
+                out.writeInt(directory.subdirectories.length);
+                for (String subdirectory : directory.subdirectories) {
+                    out.writeUTF(subdirectory);
+                }
+                out.writeInt(directory.files.length);
+                for (Entry vcardFile : directory.files) {
+                    out.writeUTF(vcardFile.name);
+                    out.writeUTF(vcardFile.canonicalPath);
+                    out.writeLong(vcardFile.size);
+                    out.writeLong(vcardFile.lastModified);
+                }
+            }
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(file)) {
+                Log.w(LOG_TAG, "Cannot rename " + tempFile + " to " + file);
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot write " + tempFile, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+            tempFile.delete();
+        }
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.pim.vcard.VCardConfig;
+import android.pim.vcard.VCardParser;
+import android.pim.vcard.VCardParser_V21;
+import android.pim.vcard.VCardParser_V30;
+import android.pim.vcard.VCardSourceDetector;
+import android.pim.vcard.exception.VCardException;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * An opened vCard stream that is meant to be parsed once.  On opening, the
+ * vCard version is sniffed from the first bytes, and the vCard type and charset
+ * are estimated from the first entry, so that neither needs a pass over the
+ * whole stream.  The number of bytes read so far is tracked for progress
+ * reporting.
+ */
+final class VCardSource {
+    private static final String LOG_TAG = "VCardSource";
+
+    public static final int VERSION_UNKNOWN = 0;
+    public static final int VERSION_V21 = 1;
+    public static final int VERSION_V30 = 2;
+    public static final int VERSION_V40 = 3;
+
+    /** Number of bytes examined to sniff the version and type */
+    private static final int SNIFF_LENGTH = 16 * 1024;
+
+    private static final String END_VCARD = "END:VCARD";
+    private static final String VERSION = "VERSION:";
+
+    /**
+     * Counts the bytes read through it, and records the offsets at which
+     * top-level vCards end.  As the parser reads ahead, these are known for
+     * every entry it has created.
+     */
+    static final class CountingInputStream extends FilterInputStream {
+        /** Enough to hold "BEGIN:VCARD" with some trailing white space */
+        private static final int MAX_LINE_PREFIX = 16;
+
+        private volatile long mCount;
+
+        private final byte[] mLine = new byte[MAX_LINE_PREFIX];
+        private int mLineLength;
+        private boolean mLineTooLong;
+        private int mPreviousByte = -1;
+        private int mDepth;
+
+        // Guarded by "this"
+        private final ArrayList<Long> mEntryEnds = new ArrayList<Long>();
+        private long mStartOffset;
+
+        public CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                scan(b, mCount);
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                final long position = mCount;
+                for (int i = 0; i < read; i++) {
+                    scan(buffer[offset + i] & 0xff, position + i);
+                }
+                mCount = position + read;
+            }
+            return read;
+        }
+
+        /**
+         * Only skips to the end of a vCard, see {@link VCardSource#skipTo(long)}.
+         */
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            mCount += skipped;
+            mLineLength = 0;
+            mLineTooLong = false;
+            mPreviousByte = '\n';
+            mDepth = 0;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Scans the byte at {@code position}.
+         */
+        private void scan(int b, long position) {
+            if (b == '\r' || b == '\n') {
+                if (b == '\n' && mPreviousByte == '\r') {
+                    synchronized (this) {
+                        // Keep the end of a vCard after its CRLF
+                        final int last = mEntryEnds.size() - 1;
+                        if (last >= 0 && mEntryEnds.get(last) == position) {
+                            mEntryEnds.set(last, position + 1);
+                        }
+                    }
+                } else if (!mLineTooLong) {
+                    endLine(position);
+                }
+                mLineLength = 0;
+                mLineTooLong = false;
+            } else if (mLineLength < MAX_LINE_PREFIX) {
+                mLine[mLineLength++] = (byte) b;
+            } else {
+                mLineTooLong = true;
+            }
+            mPreviousByte = b;
+        }
+
+        private void endLine(long position) {
+            if (lineEquals("BEGIN:VCARD")) {
+                mDepth++;
+            } else if (lineEquals("END:VCARD") && mDepth > 0 && --mDepth == 0) {
+                synchronized (this) {
+                    if (position + 1 > mStartOffset) {
+                        mEntryEnds.add(position + 1);
+                    }
+                }
+            }
+        }
+
+        private boolean lineEquals(String value) {
+            int length = mLineLength;
+            while (length > 0 && (mLine[length - 1] == ' ' || mLine[length - 1] == '\t')) {
+                length--;
+            }
+            if (length != value.length()) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (Character.toUpperCase((char) mLine[i]) != value.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Drops the vCards that end at or before {@code offset}, which are not
+         * parsed.
+         */
+        public synchronized void setStartOffset(long offset) {
+            mStartOffset = offset;
+            while (!mEntryEnds.isEmpty() && mEntryEnds.get(0) <= offset) {
+                mEntryEnds.remove(0);
+            }
+        }
+
+        public synchronized long getEntryEnd(int index) {
+            return index < mEntryEnds.size() ? mEntryEnds.get(index) : -1;
+        }
+    }
+
+    private final CountingInputStream mCountingStream;
+    private final InputStream mInputStream;
+    private final long mLength;
+    private int mVersion = VERSION_UNKNOWN;
+    private int mEstimatedType = VCardConfig.VCARD_TYPE_UNKNOWN;
+    private String mEstimatedCharset;
+
+    /**
+     * Opens {@code uri} and sniffs its version, type and charset.
+     */
+    public static VCardSource open(ContentResolver resolver, Uri uri) throws IOException {
+        InputStream in = resolver.openInputStream(uri);
+        if (in == null) {
+            throw new FileNotFoundException("Cannot open " + uri);
+        }
+        return open(in, getLength(resolver, uri));
+    }
+
+    /**
+     * Sniffs the version, type and charset of {@code in}, which is closed with
+     * the source.
+     *
+     * @param length the length of the stream in bytes, or
+     *     {@link AssetFileDescriptor#UNKNOWN_LENGTH}
+     */
+    static VCardSource open(InputStream in, long length) throws IOException {
+        VCardSource source = new VCardSource(in, length);
+        try {
+            source.sniff();
+        } catch (IOException e) {
+            source.close();
+            throw e;
+        }
+        return source;
+    }
+
+    private VCardSource(InputStream in, long length) {
+        mCountingStream = new CountingInputStream(in);
+        mInputStream = new BufferedInputStream(mCountingStream, SNIFF_LENGTH);
+        mLength = length;
+    }
+
+    private static long getLength(ContentResolver resolver, Uri uri) {
+        AssetFileDescriptor fd = null;
+        try {
+            fd = resolver.openAssetFileDescriptor(uri, "r");
+            return fd != null ? fd.getLength() : AssetFileDescriptor.UNKNOWN_LENGTH;
+        } catch (FileNotFoundException e) {
+            return AssetFileDescriptor.UNKNOWN_LENGTH;
+        } finally {
+            if (fd != null) {
+                try {
+                    fd.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void sniff() throws IOException {
+        byte[] head = new byte[SNIFF_LENGTH];
+        mInputStream.mark(SNIFF_LENGTH);
+        int length = 0;
+        int read;
+        while (length < head.length
+                && (read = mInputStream.read(head, length, head.length - length)) > 0) {
+            length += read;
+        }
+        mInputStream.reset();
+
+        // Property names are ASCII whatever the charset
+        String text = new String(head, 0, length, "ISO-8859-1");
+        String upperText = text.toUpperCase();
+        mVersion = sniffVersion(text, upperText);
+
+        int end = upperText.indexOf(END_VCARD);
+        if (end != -1) {
+            detectSource(head, end + END_VCARD.length());
+        }
+    }
+
+    private static int sniffVersion(String text, String upperText) {
+        int index = upperText.indexOf(VERSION);
+        if (index == -1) {
+            return VERSION_UNKNOWN;
+        }
+        int start = index + VERSION.length();
+        int end = start;
+        while (end < text.length() && text.charAt(end) != '\r' && text.charAt(end) != '\n') {
+            end++;
+        }
+        String version = text.substring(start, end).trim();
+        if ("2.1".equals(version)) {
+            return VERSION_V21;
+        } else if ("3.0".equals(version)) {
+            return VERSION_V30;
+        } else if ("4.0".equals(version)) {
+            return VERSION_V40;
+        }
+        return VERSION_UNKNOWN;
+    }
+
+    /**
+     * Estimates the type and charset from the first entry, on the assumption
+     * that one source exports all of them alike.
+     */
+    private void detectSource(byte[] head, int length) {
+        VCardSourceDetector detector = new VCardSourceDetector();
+        try {
+            newParser(VCardConfig.VCARD_TYPE_UNKNOWN).parse(
+                    new ByteArrayInputStream(head, 0, length), detector);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot detect the vCard source", e);
+        } catch (VCardException e) {
+            // The detector has seen as much as the parser understood
+        }
+        mEstimatedType = detector.getEstimatedType();
+        mEstimatedCharset = detector.getEstimatedCharset();
+    }
+
+    /**
+     * Returns a parser for the sniffed version.  vCards of unknown version are
+     * parsed as 2.1.
+     */
+    public VCardParser newParser(int vcardType) {
+        if (mVersion == VERSION_V30 || mVersion == VERSION_V40) {
+            return new VCardParser_V30(vcardType);
+        }
+        return new VCardParser_V21(vcardType);
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public int getEstimatedType() {
+        return mEstimatedType;
+    }
+
+    public String getEstimatedCharset() {
+        return mEstimatedCharset;
+    }
+
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    /**
+     * Returns the length of the stream in bytes, or
+     * {@link AssetFileDescriptor#UNKNOWN_LENGTH} if it is not known.
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    /**
+     * Skips to {@code offset}, which must be right after the end of a vCard,
+     * typically that of an {@link VCardImportCheckpoints.Checkpoint}.  Entries
+     * are then counted from there for {@link #getEntryEnd(int)}.
+     */
+    public void skipTo(long offset) throws IOException {
+        long remaining = offset;
+        while (remaining > 0) {
+            long skipped = mInputStream.skip(remaining);
+            if (skipped <= 0) {
+                throw new EOFException("vCard shorter than " + offset + " bytes");
+            }
+            remaining -= skipped;
+        }
+        mCountingStream.setStartOffset(offset);
+    }
+
+    /**
+     * Returns the offset right after the {@code index}-th vCard parsed since
+     * the start, or since {@link #skipTo(long)}, or -1 if it was not read yet.
+     * May be called from any thread.
+     */
+    public long getEntryEnd(int index) {
+        return mCountingStream.getEntryEnd(index);
+    }
+
+    /**
+     * Returns the number of bytes read from the underlying stream so far.
+     * May be called from any thread.
+     */
+    public long getBytesRead() {
+        return mCountingStream.mCount;
+    }
+
+    public void close() {
+        try {
+            mInputStream.close();
+        } catch (IOException e) {
+        }
+    }
+}
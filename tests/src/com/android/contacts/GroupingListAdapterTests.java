@@ -22,10 +22,15 @@ import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.provider.CallLog.Calls;
 import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 
+import java.util.ArrayList;
+import java.util.Random;
+
 import static com.android.contacts.GroupingListAdapter.ITEM_TYPE_STANDALONE;
 import static com.android.contacts.GroupingListAdapter.ITEM_TYPE_IN_GROUP;
 import static com.android.contacts.GroupingListAdapter.ITEM_TYPE_GROUP_HEADER;
@@ -41,6 +46,9 @@ import static com.android.contacts.GroupingListAdapter.ITEM_TYPE_GROUP_HEADER;
  *     -w com.android.contacts.tests/android.test.InstrumentationTestRunner
  */
 public class GroupingListAdapterTests extends AndroidTestCase {
+    private static final String TAG = "GroupingListAdapterTests";
+
+    private static final int BENCHMARK_ROWS = 50000;
 
     static private final String[] CALL_LOG_PROJECTION = new String[] {
         Calls._ID,
@@ -53,7 +61,20 @@ public class GroupingListAdapterTests extends AndroidTestCase {
     private MatrixCursor mCursor;
     private long mNextCall;
 
-    private GroupingListAdapter mAdapter = new GroupingListAdapter(null) {
+    private TestGroupingListAdapter mAdapter = new TestGroupingListAdapter(false);
+
+    private static class TestGroupingListAdapter extends GroupingListAdapter {
+        private final boolean mIncremental;
+
+        public TestGroupingListAdapter(boolean incremental) {
+            super(null);
+            mIncremental = incremental;
+        }
+
+        @Override
+        protected boolean isIncrementalGroupingSupported() {
+            return mIncremental;
+        }
 
         @Override
         protected void addGroups(Cursor cursor) {
@@ -107,7 +128,7 @@ public class GroupingListAdapterTests extends AndroidTestCase {
         protected View newStandAloneView(Context context, ViewGroup parent) {
             return null;
         }
-    };
+    }
 
     private void buildCursor(String... numbers) {
         mCursor = new MatrixCursor(CALL_LOG_PROJECTION);
@@ -118,6 +139,37 @@ public class GroupingListAdapterTests extends AndroidTestCase {
         }
     }
 
+    /**
+     * Replaces the cursor with one that has new calls in front of the current ones,
+     * the way the call log looks after calls were made.
+     */
+    private void prependCalls(String... numbers) {
+        MatrixCursor cursor = new MatrixCursor(CALL_LOG_PROJECTION);
+        for (String number : numbers) {
+            cursor.addRow(new Object[]{mNextCall, number, 1000 - mNextCall});
+            mNextCall++;
+        }
+        mCursor.moveToPosition(-1);
+        while (mCursor.moveToNext()) {
+            cursor.addRow(new Object[]{mCursor.getLong(0), mCursor.getString(1),
+                    mCursor.getLong(2)});
+        }
+        mCursor = cursor;
+    }
+
+    /**
+     * Replaces the cursor with one that has older calls behind the current ones,
+     * the way the call log looks after loading another page.
+     */
+    private void appendCalls(String... numbers) {
+        MatrixCursor cursor = copyCursor(mCursor);
+        for (String number : numbers) {
+            cursor.addRow(new Object[]{mNextCall, number, 1000 - mNextCall});
+            mNextCall++;
+        }
+        mCursor = cursor;
+    }
+
     public void testGroupingWithoutGroups() {
         buildCursor("1", "2", "3");
         mAdapter.changeCursor(mCursor);
@@ -303,6 +355,246 @@ public class GroupingListAdapterTests extends AndroidTestCase {
         assertEquals(250, mAdapter.getCount());
     }
 
+    public void testIncrementalGroupingMergesIntoFirstGroup() {
+        mAdapter = new TestGroupingListAdapter(true);
+        buildCursor("1", "1", "2", "3", "3", "4");
+        mAdapter.changeCursor(mCursor);
+        assertEquals(4, mAdapter.getCount());
+
+        prependCalls("5", "1");
+        mAdapter.changeCursor(mCursor);
+
+        assertEquals(5, mAdapter.getCount());
+        assertPositionMetadata(0, ITEM_TYPE_STANDALONE, false, 0);
+        assertPositionMetadata(1, ITEM_TYPE_GROUP_HEADER, false, 1);
+        assertEquals(3, mAdapter.getGroupSize(1));
+        assertPositionMetadata(2, ITEM_TYPE_STANDALONE, false, 4);
+        assertPositionMetadata(3, ITEM_TYPE_GROUP_HEADER, false, 5);
+        assertPositionMetadata(4, ITEM_TYPE_STANDALONE, false, 7);
+    }
+
+    public void testIncrementalGroupingKeepsExpandedGroups() {
+        mAdapter = new TestGroupingListAdapter(true);
+        String[] numbers = new String[100];
+        for (int i = 0; i < numbers.length; i++) {
+
+            // Make groups of 2
+            numbers[i] = String.valueOf(i / 2);
+        }
+        buildCursor(numbers);
+        mAdapter.changeCursor(mCursor);
+        mAdapter.toggleGroup(40);
+
+        // Compute the list positions before the cursor changes
+        assertEquals(52, mAdapter.getCount());
+        assertPositionMetadata(51, ITEM_TYPE_GROUP_HEADER, false, 98);
+
+        prependCalls("0");
+        mAdapter.changeCursor(mCursor);
+
+        assertEquals(52, mAdapter.getCount());
+        assertPositionMetadata(0, ITEM_TYPE_GROUP_HEADER, false, 0);
+        assertEquals(3, mAdapter.getGroupSize(0));
+        assertPositionMetadata(1, ITEM_TYPE_GROUP_HEADER, false, 3);
+        assertPositionMetadata(40, ITEM_TYPE_GROUP_HEADER, true, 81);
+        assertPositionMetadata(41, ITEM_TYPE_IN_GROUP, false, 81);
+        assertPositionMetadata(42, ITEM_TYPE_IN_GROUP, false, 82);
+        assertPositionMetadata(43, ITEM_TYPE_GROUP_HEADER, false, 83);
+        assertPositionMetadata(51, ITEM_TYPE_GROUP_HEADER, false, 99);
+    }
+
+    public void testIncrementalGroupingMatchesFullGrouping() {
+        mAdapter = new TestGroupingListAdapter(true);
+        Random random = new Random(11);
+        String[] numbers = new String[5000];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = String.valueOf(random.nextInt(4));
+        }
+        buildCursor(numbers);
+        mAdapter.changeCursor(mCursor);
+        mAdapter.getCount();
+
+        for (int round = 0; round < 10; round++) {
+            String[] calls = new String[1 + random.nextInt(40)];
+            for (int i = 0; i < calls.length; i++) {
+                calls[i] = String.valueOf(random.nextInt(4));
+            }
+            prependCalls(calls);
+            mAdapter.changeCursor(mCursor);
+
+            TestGroupingListAdapter reference = new TestGroupingListAdapter(false);
+            reference.changeCursor(copyCursor(mCursor));
+            assertSameGrouping(reference, mAdapter);
+        }
+    }
+
+    /**
+     * Maps random list positions in a large list with some expanded groups and
+     * checks them against a mapping built independently of the adapter.
+     */
+    @LargeTest
+    public void testRandomAccessBenchmark() {
+        mAdapter = new TestGroupingListAdapter(true);
+        Random random = new Random(5);
+        String[] numbers = new String[BENCHMARK_ROWS];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = String.valueOf(random.nextInt(3));
+        }
+        buildCursor(numbers);
+        mAdapter.changeCursor(mCursor);
+
+        // Find the groups, expanding every 7th of them
+        ArrayList<int[]> groups = new ArrayList<int[]>();
+        for (int start = 0; start < numbers.length; ) {
+            int end = start + 1;
+            while (end < numbers.length && numbers[end].equals(numbers[start])) {
+                end++;
+            }
+            if (end - start > 1) {
+                groups.add(new int[] { start, end - start, groups.size() % 7 == 0 ? 1 : 0 });
+            }
+            start = end;
+        }
+
+        // Toggle from the end so that the groups in front stay collapsed
+        for (int g = groups.size() - 1; g >= 0; g--) {
+            int[] group = groups.get(g);
+            if (group[2] == 1) {
+                mAdapter.toggleGroup(group[0] - hiddenRowsBefore(groups, g));
+            }
+        }
+
+        // Expected item type and cursor position of every list item
+        int[] expectedTypes = new int[numbers.length * 2];
+        int[] expectedCursorPositions = new int[numbers.length * 2];
+        int count = 0;
+        int cursorPosition = 0;
+        for (int[] group : groups) {
+            while (cursorPosition < group[0]) {
+                expectedTypes[count] = ITEM_TYPE_STANDALONE;
+                expectedCursorPositions[count++] = cursorPosition++;
+            }
+            expectedTypes[count] = ITEM_TYPE_GROUP_HEADER;
+            expectedCursorPositions[count++] = group[0];
+            if (group[2] == 1) {
+                for (int i = 0; i < group[1]; i++) {
+                    expectedTypes[count] = ITEM_TYPE_IN_GROUP;
+                    expectedCursorPositions[count++] = group[0] + i;
+                }
+            }
+            cursorPosition = group[0] + group[1];
+        }
+        while (cursorPosition < numbers.length) {
+            expectedTypes[count] = ITEM_TYPE_STANDALONE;
+            expectedCursorPositions[count++] = cursorPosition++;
+        }
+        assertEquals(count, mAdapter.getCount());
+
+        int[] positions = new int[BENCHMARK_ROWS];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = random.nextInt(count);
+        }
+
+        GroupingListAdapter.PositionMetadata metadata = new GroupingListAdapter.PositionMetadata();
+        long start = System.nanoTime();
+        for (int position : positions) {
+            mAdapter.obtainPositionMetadata(metadata, position);
+        }
+        long time = System.nanoTime() - start;
+        Log.i(TAG, positions.length + " random lookups in a list of " + count + " items, "
+                + groups.size() + " groups: " + time / 1000 + "us");
+
+        for (int position : positions) {
+            mAdapter.obtainPositionMetadata(metadata, position);
+            assertEquals(expectedTypes[position], metadata.itemType);
+            assertEquals(expectedCursorPositions[position], metadata.cursorPosition);
+        }
+    }
+
+    private static int hiddenRowsBefore(ArrayList<int[]> groups, int index) {
+        int hidden = 0;
+        for (int g = 0; g < index; g++) {
+            hidden += groups.get(g)[1] - 1;
+        }
+        return hidden;
+    }
+
+    public void testIncrementalGroupingContinuesLastGroup() {
+        mAdapter = new TestGroupingListAdapter(true);
+        String[] numbers = new String[100];
+        for (int i = 0; i < numbers.length; i++) {
+
+            // Make groups of 2
+            numbers[i] = String.valueOf(i / 2);
+        }
+        buildCursor(numbers);
+        mAdapter.changeCursor(mCursor);
+        mAdapter.toggleGroup(10);
+        assertEquals(52, mAdapter.getCount());
+
+        appendCalls("49", "49", "50");
+        mAdapter.changeCursor(mCursor);
+
+        assertEquals(53, mAdapter.getCount());
+        assertPositionMetadata(10, ITEM_TYPE_GROUP_HEADER, true, 20);
+        assertPositionMetadata(11, ITEM_TYPE_IN_GROUP, false, 20);
+        assertPositionMetadata(51, ITEM_TYPE_GROUP_HEADER, false, 98);
+        assertEquals(4, mAdapter.getGroupSize(51));
+        assertPositionMetadata(52, ITEM_TYPE_STANDALONE, false, 102);
+    }
+
+    public void testIncrementalGroupingOfAppendedRowsMatchesFullGrouping() {
+        mAdapter = new TestGroupingListAdapter(true);
+        Random random = new Random(13);
+        String[] numbers = new String[100];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = String.valueOf(random.nextInt(4));
+        }
+        buildCursor(numbers);
+        mAdapter.changeCursor(mCursor);
+        mAdapter.getCount();
+
+        for (int page = 0; page < 10; page++) {
+            String[] calls = new String[1 + random.nextInt(100)];
+            for (int i = 0; i < calls.length; i++) {
+                calls[i] = String.valueOf(random.nextInt(4));
+            }
+            appendCalls(calls);
+            mAdapter.changeCursor(mCursor);
+
+            TestGroupingListAdapter reference = new TestGroupingListAdapter(false);
+            reference.changeCursor(copyCursor(mCursor));
+            assertSameGrouping(reference, mAdapter);
+        }
+    }
+
+    private static void assertSameGrouping(GroupingListAdapter expectedAdapter,
+            GroupingListAdapter actualAdapter) {
+        int count = expectedAdapter.getCount();
+        assertEquals(count, actualAdapter.getCount());
+        GroupingListAdapter.PositionMetadata expected = new GroupingListAdapter.PositionMetadata();
+        GroupingListAdapter.PositionMetadata actual = new GroupingListAdapter.PositionMetadata();
+        for (int position = 0; position < count; position++) {
+            expectedAdapter.obtainPositionMetadata(expected, position);
+            actualAdapter.obtainPositionMetadata(actual, position);
+            assertEquals(expected.itemType, actual.itemType);
+            assertEquals(expected.cursorPosition, actual.cursorPosition);
+            if (expected.itemType == ITEM_TYPE_GROUP_HEADER) {
+                assertEquals(expected.childCount, actual.childCount);
+            }
+        }
+    }
+
+    private static MatrixCursor copyCursor(Cursor source) {
+        MatrixCursor cursor = new MatrixCursor(CALL_LOG_PROJECTION);
+        source.moveToPosition(-1);
+        while (source.moveToNext()) {
+            cursor.addRow(new Object[]{source.getLong(0), source.getString(1),
+                    source.getLong(2)});
+        }
+        return cursor;
+    }
+
     private void assertPositionMetadata(int position, int itemType, boolean isExpanded,
             int cursorPosition) {
         GroupingListAdapter.PositionMetadata metadata = new GroupingListAdapter.PositionMetadata();
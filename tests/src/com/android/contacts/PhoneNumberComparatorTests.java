@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.database.CharArrayBuffer;
+import android.database.MatrixCursor;
+import android.provider.CallLog.Calls;
+import android.telephony.PhoneNumberUtils;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Tests for {@link PhoneNumberComparator}.
+ *
+ * Running all tests:
+ *
+ *   runtest contacts
+ * or
+ *   adb shell am instrument \
+ *     -w com.android.contacts.tests/android.test.InstrumentationTestRunner
+ */
+public class PhoneNumberComparatorTests extends AndroidTestCase {
+    private static final String TAG = "PhoneNumberComparatorTests";
+
+    private static final int BENCHMARK_ROWS = 10000;
+
+    private static final String[] NUMBERS = new String[] {
+        "", "1", "911", "40404", "404-04", "4040", "650-555-1212", "6505551212",
+        "(650) 555-1212", "+16505551212", "16505551212", "0116505551212",
+        "+1 650 555 1212", "5551212", "555-1212", "+44 20 7946 0958", "020 7946 0958",
+        "0044 20 7946 0958", "+4420 7946 0958", "00442079460958", "07946 0958",
+        "6505551212,123", "6505551212;456", "650555121N", "*86", "#31#6505551212",
+        "+49 30 1234567", "030 1234567", "0049301234567", "123456", "1234567",
+        "12345678", "+861065529988", "01065529988", "+1-650-555-1213",
+    };
+
+    @SmallTest
+    public void testMatchesPhoneNumberUtils() {
+        for (String a : NUMBERS) {
+            for (String b : NUMBERS) {
+                assertEquals("compare(\"" + a + "\", \"" + b + "\")",
+                        PhoneNumberUtils.compare(a, b), compare(a, b));
+            }
+        }
+    }
+
+    @SmallTest
+    public void testIgnoresCharsBeyondLength() {
+        char[] a = "6505551212999".toCharArray();
+        char[] b = "6505551212".toCharArray();
+        assertTrue(PhoneNumberComparator.compare(a, 10, b, b.length));
+        assertFalse(PhoneNumberComparator.compare(a, a.length, b, b.length));
+    }
+
+    @LargeTest
+    public void testMatchesPhoneNumberUtilsOnRandomNumbers() {
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            String a = randomNumber(random);
+            String b = random.nextBoolean() ? mutate(random, a) : randomNumber(random);
+            assertEquals("compare(\"" + a + "\", \"" + b + "\")",
+                    PhoneNumberUtils.compare(a, b), compare(a, b));
+        }
+    }
+
+    /**
+     * Groups a synthetic call log the way RecentCallsAdapter.addGroups does and
+     * compares the String based comparison with the char[] one.
+     */
+    @LargeTest
+    public void testGroupingBenchmark() {
+        MatrixCursor cursor = buildCallLog(BENCHMARK_ROWS);
+        CharArrayBuffer buffer1 = new CharArrayBuffer(128);
+        CharArrayBuffer buffer2 = new CharArrayBuffer(128);
+
+        // Warm up both paths
+        int expected = countGroups(cursor, buffer1, buffer2, false);
+        assertEquals(expected, countGroups(cursor, buffer1, buffer2, true));
+
+        long start = System.nanoTime();
+        int stringGroups = countGroups(cursor, buffer1, buffer2, false);
+        long stringTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int charGroups = countGroups(cursor, buffer1, buffer2, true);
+        long charTime = System.nanoTime() - start;
+
+        assertEquals(stringGroups, charGroups);
+        Log.i(TAG, BENCHMARK_ROWS + " rows, " + charGroups + " groups: String comparison "
+                + stringTime / 1000 + "us, char[] comparison " + charTime / 1000 + "us");
+    }
+
+    private static boolean compare(String a, String b) {
+        return PhoneNumberComparator.compare(a.toCharArray(), a.length(),
+                b.toCharArray(), b.length());
+    }
+
+    private static int countGroups(MatrixCursor cursor, CharArrayBuffer currentValue,
+            CharArrayBuffer value, boolean useChars) {
+        int groups = 0;
+        cursor.moveToFirst();
+        cursor.copyStringToBuffer(1, currentValue);
+        while (cursor.moveToNext()) {
+            cursor.copyStringToBuffer(1, value);
+            boolean sameNumber;
+            if (useChars) {
+                sameNumber = PhoneNumberComparator.compare(value.data, value.sizeCopied,
+                        currentValue.data, currentValue.sizeCopied);
+            } else {
+                sameNumber = PhoneNumberUtils.compare(
+                        new String(value.data, 0, value.sizeCopied),
+                        new String(currentValue.data, 0, currentValue.sizeCopied));
+            }
+            if (!sameNumber) {
+                groups++;
+                CharArrayBuffer temp = currentValue;
+                currentValue = value;
+                value = temp;
+            }
+        }
+        return groups + 1;
+    }
+
+    private static MatrixCursor buildCallLog(int rows) {
+        Random random = new Random(7);
+        String[] numbers = new String[200];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = randomNumber(random);
+        }
+
+        MatrixCursor cursor = new MatrixCursor(new String[] { Calls._ID, Calls.NUMBER });
+        String number = numbers[0];
+        for (int i = 0; i < rows; i++) {
+            // Runs of calls with the same number, sometimes formatted differently
+            if (random.nextInt(3) == 0) {
+                number = numbers[random.nextInt(numbers.length)];
+            } else if (random.nextInt(4) == 0) {
+                number = mutate(random, number);
+            }
+            cursor.addRow(new Object[] { i, number });
+        }
+        return cursor;
+    }
+
+    private static String randomNumber(Random random) {
+        StringBuilder sb = new StringBuilder();
+        switch (random.nextInt(4)) {
+            case 0:
+                sb.append('+').append(1 + random.nextInt(98));
+                break;
+            case 1:
+                sb.append('0');
+                break;
+        }
+        int digits = 3 + random.nextInt(9);
+        for (int i = 0; i < digits; i++) {
+            sb.append((char) ('0' + random.nextInt(10)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the number with separators, prefixes or a changed digit added.
+     */
+    private static String mutate(Random random, String number) {
+        StringBuilder sb = new StringBuilder(number);
+        switch (random.nextInt(5)) {
+            case 0:
+                if (sb.length() > 3) {
+                    sb.insert(3, '-');
+                }
+                break;
+            case 1:
+                sb.insert(0, "00");
+                break;
+            case 2:
+                sb.insert(0, '+');
+                break;
+            case 3:
+                if (sb.length() > 0) {
+                    int i = random.nextInt(sb.length());
+                    sb.setCharAt(i, (char) ('0' + random.nextInt(10)));
+                }
+                break;
+            case 4:
+                sb.insert(0, "(").insert(Math.min(4, sb.length()), ") ");
+                break;
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import com.android.contacts.T9Search.ContactItem;
+import com.android.contacts.T9Search.T9Match;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Tests for {@link T9Index} and the T9 normalization in {@link T9Search}.
+ *
+ * Running all tests:
+ *
+ *   runtest contacts
+ * or
+ *   adb shell am instrument \
+ *     -e class com.android.contacts.T9IndexTests \
+ *     -w com.android.contacts.tests/android.test.InstrumentationTestRunner
+ */
+public class T9IndexTests extends AndroidTestCase {
+    private static final String TAG = "T9IndexTests";
+
+    private static final int BENCHMARK_CONTACTS = 5000;
+    private static final int BENCHMARK_ROUNDS = 20;
+    private static final int BENCHMARK_NAMES = 10000;
+
+    private static ContactItem item(String normalName, String normalNumber) {
+        ContactItem item = new ContactItem();
+        item.normalName = normalName;
+        item.normalNumber = normalNumber;
+        return item;
+    }
+
+    @SmallTest
+    public void testNumberSubstring() {
+        ArrayList<ContactItem> items = new ArrayList<ContactItem>();
+        items.add(item("5646", "5551234"));
+        items.add(item("7262", "1234555"));
+        items.add(item("2665", "9876"));
+        T9Index index = new T9Index(items);
+
+        ArrayList<ContactItem> names = new ArrayList<ContactItem>();
+        ArrayList<ContactItem> numbers = new ArrayList<ContactItem>();
+        index.search("55", names, numbers);
+
+        assertEquals(0, names.size());
+        assertEquals(2, numbers.size());
+        assertTrue(numbers.contains(items.get(0)));
+        assertTrue(numbers.contains(items.get(1)));
+        // First occurrence wins, like String.indexOf()
+        assertEquals(0, items.get(0).numberMatchId);
+        assertEquals(4, items.get(1).numberMatchId);
+        assertEquals(-1, items.get(0).nameMatchId);
+    }
+
+    @SmallTest
+    public void testNameMatchIdIsRelativeToWord() {
+        ArrayList<ContactItem> items = new ArrayList<ContactItem>();
+        items.add(item("56460766484", "1"));
+        T9Index index = new T9Index(items);
+
+        ArrayList<ContactItem> names = new ArrayList<ContactItem>();
+        ArrayList<ContactItem> numbers = new ArrayList<ContactItem>();
+        index.search("766", names, numbers);
+
+        assertEquals(1, names.size());
+        assertEquals(1, items.get(0).nameMatchId);
+        assertEquals(-1, items.get(0).numberMatchId);
+    }
+
+    @SmallTest
+    public void testMatchIdsAreResetBetweenQueries() {
+        ArrayList<ContactItem> items = new ArrayList<ContactItem>();
+        items.add(item("234", "234"));
+        T9Index index = new T9Index(items);
+
+        ArrayList<ContactItem> names = new ArrayList<ContactItem>();
+        ArrayList<ContactItem> numbers = new ArrayList<ContactItem>();
+        index.search("3", names, numbers);
+        assertEquals(1, items.get(0).numberMatchId);
+
+        names.clear();
+        numbers.clear();
+        index.search("9", names, numbers);
+        assertEquals(0, names.size());
+        assertEquals(0, numbers.size());
+
+        index.search("4", names, numbers);
+        assertEquals(2, items.get(0).nameMatchId);
+        assertEquals(2, items.get(0).numberMatchId);
+    }
+
+    @MediumTest
+    public void testMoreItemsThanFitIn16Bits() {
+        final int count = 0x10000 + 100;
+        ArrayList<ContactItem> items = new ArrayList<ContactItem>(count);
+        for (int i = 0; i < count; i++) {
+            items.add(item("2", String.valueOf(1000000 + i)));
+        }
+        T9Index index = new T9Index(items);
+        assertEquals(count, index.size());
+
+        ArrayList<ContactItem> names = new ArrayList<ContactItem>();
+        ArrayList<ContactItem> numbers = new ArrayList<ContactItem>();
+        index.search(String.valueOf(1000000 + count - 1), names, numbers);
+        assertEquals(1, numbers.size());
+        assertSame(items.get(count - 1), numbers.get(0));
+        assertEquals(0, items.get(count - 1).numberMatchId);
+
+        names.clear();
+        numbers.clear();
+        index.search("2", names, numbers);
+        assertEquals(count, names.size());
+    }
+
+    @LargeTest
+    public void testIndexAgainstLinearScan() {
+        ArrayList<ContactItem> items = buildCorpus(BENCHMARK_CONTACTS);
+        long start = System.nanoTime();
+        T9Index index = new T9Index(items);
+        long buildTime = System.nanoTime() - start;
+
+        String[] queries = new String[] { "2", "26", "266", "5646", "0766", "555", "91827" };
+        ArrayList<ContactItem> names = new ArrayList<ContactItem>();
+        ArrayList<ContactItem> numbers = new ArrayList<ContactItem>();
+        ArrayList<ContactItem> scanNames = new ArrayList<ContactItem>();
+        ArrayList<ContactItem> scanNumbers = new ArrayList<ContactItem>();
+
+        long indexTime = 0;
+        long scanTime = 0;
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            for (String query : queries) {
+                names.clear();
+                numbers.clear();
+                start = System.nanoTime();
+                index.search(query, names, numbers);
+                indexTime += System.nanoTime() - start;
+
+                scanNames.clear();
+                scanNumbers.clear();
+                start = System.nanoTime();
+                linearScan(items, query, scanNames, scanNumbers);
+                scanTime += System.nanoTime() - start;
+
+                // Word-boundary keys may add name matches on top of the substring ones
+                assertTrue(query, new HashSet<ContactItem>(names).containsAll(scanNames));
+                assertEquals(query, scanNumbers.size(), numbers.size());
+            }
+        }
+
+        Log.i(TAG, BENCHMARK_CONTACTS + " contacts: index built in " + buildTime / 1000000
+                + "ms; " + BENCHMARK_ROUNDS * queries.length + " queries took "
+                + indexTime / 1000000 + "ms indexed vs " + scanTime / 1000000 + "ms scanned");
+    }
+
+    @SmallTest
+    public void testInitialsAndSkippedMiddleName() {
+        ArrayList<ContactItem> items = new ArrayList<ContactItem>();
+        // John Michael Smith, Mike Jones
+        items.add(item("564606424235076484", "1"));
+        items.add(item("6453056637", "2"));
+        T9Index index = new T9Index(items);
+
+        ArrayList<ContactItem> names = new ArrayList<ContactItem>();
+        ArrayList<ContactItem> numbers = new ArrayList<ContactItem>();
+
+        // "JMS"
+        index.search("567", names, numbers);
+        assertEquals(1, names.size());
+        assertSame(items.get(0), names.get(0));
+        assertEquals(0, items.get(0).nameMatchId);
+
+        // "JS", skipping Michael
+        names.clear();
+        index.search("57", names, numbers);
+        assertEquals(1, names.size());
+        assertEquals(1, items.get(0).nameMatchId);
+
+        // "johnsm", skipping Michael
+        names.clear();
+        index.search("564676", names, numbers);
+        assertEquals(1, names.size());
+        assertEquals(1, items.get(0).nameMatchId);
+
+        // "MJ" and "mikejo"
+        names.clear();
+        index.search("65", names, numbers);
+        assertEquals(1, names.size());
+        assertSame(items.get(1), names.get(0));
+        names.clear();
+        index.search("645356", names, numbers);
+        assertEquals(1, names.size());
+        assertEquals(0, items.get(1).nameMatchId);
+    }
+
+    @LargeTest
+    public void testMultiTokenMatchingBenchmark() {
+        T9Search.initT9Map(getContext().getResources());
+        String[] names = buildNames(BENCHMARK_NAMES);
+        ArrayList<ContactItem> items = new ArrayList<ContactItem>(names.length);
+        char[] buffer = new char[64];
+        for (String name : names) {
+            items.add(item(new String(buffer, 0, T9Search.nameToNumber(name, buffer)), "0"));
+        }
+
+        long start = System.nanoTime();
+        T9Index index = new T9Index(items);
+        long buildTime = System.nanoTime() - start;
+
+        String[] queries = new String[] { "2", "27", "527", "2276", "56467", "7648" };
+        ArrayList<ContactItem> results = new ArrayList<ContactItem>();
+        ArrayList<ContactItem> scanResults = new ArrayList<ContactItem>();
+        ArrayList<ContactItem> numbers = new ArrayList<ContactItem>();
+        long indexTime = 0;
+        long scanTime = 0;
+        int indexHits = 0;
+        int scanHits = 0;
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            for (String query : queries) {
+                results.clear();
+                numbers.clear();
+                start = System.nanoTime();
+                index.search(query, results, numbers);
+                indexTime += System.nanoTime() - start;
+                indexHits += results.size();
+
+                scanResults.clear();
+                start = System.nanoTime();
+                for (ContactItem item : items) {
+                    if (item.normalName.indexOf(query) != -1) {
+                        scanResults.add(item);
+                    }
+                }
+                scanTime += System.nanoTime() - start;
+                scanHits += scanResults.size();
+            }
+        }
+
+        Log.i(TAG, BENCHMARK_NAMES + " names: multi-token index built in "
+                + buildTime / 1000000 + "ms; " + BENCHMARK_ROUNDS * queries.length
+                + " queries took " + indexTime / 1000000 + "ms for " + indexHits
+                + " hits vs " + scanTime / 1000000 + "ms for " + scanHits
+                + " substring-only hits");
+    }
+
+    @SmallTest
+    public void testRankedMatchesPageInSortedOrder() {
+        ArrayList<ContactItem> items = buildCorpus(500);
+        T9Index index = new T9Index(items);
+        ArrayList<ContactItem> names = new ArrayList<ContactItem>();
+        ArrayList<ContactItem> numbers = new ArrayList<ContactItem>();
+        index.search("2", names, numbers);
+        ArrayList<T9Match> matches = T9Search.toMatches(numbers, "2");
+
+        ArrayList<T9Match> expected = new ArrayList<T9Match>(matches);
+        Collections.sort(expected, new T9Search.NumberComparator());
+
+        T9Search.RankedMatches ranked = new T9Search.RankedMatches(matches,
+                new T9Search.NumberComparator(), false, false);
+        assertEquals(expected.size(), ranked.size());
+        for (T9Match match : expected) {
+            assertTrue(ranked.hasNext());
+            assertSame(match, ranked.next(7));
+        }
+        assertFalse(ranked.hasNext());
+    }
+
+    @SmallTest
+    public void testRankedMatchesSkipDuplicates() {
+        ArrayList<ContactItem> items = new ArrayList<ContactItem>();
+        items.add(item("222", "222"));
+        items.add(item("333", "222"));
+        T9Index index = new T9Index(items);
+        ArrayList<ContactItem> names = new ArrayList<ContactItem>();
+        ArrayList<ContactItem> numbers = new ArrayList<ContactItem>();
+        index.search("22", names, numbers);
+
+        T9Search.RankedMatches ranked = new T9Search.RankedMatches(
+                T9Search.toMatches(numbers, "22"), new T9Search.NumberComparator(), true, false);
+        assertEquals(1, ranked.size());
+        assertSame(items.get(1), ranked.next(20).item);
+    }
+
+    @SmallTest
+    public void testMatchesKeepTheirStateAcrossQueries() {
+        ArrayList<ContactItem> items = new ArrayList<ContactItem>();
+        items.add(item("234", "234"));
+        T9Index index = new T9Index(items);
+
+        ArrayList<ContactItem> names = new ArrayList<ContactItem>();
+        ArrayList<ContactItem> numbers = new ArrayList<ContactItem>();
+        index.search("3", names, numbers);
+        T9Match match = T9Search.toMatches(numbers, "3").get(0);
+
+        names.clear();
+        numbers.clear();
+        index.search("4", names, numbers);
+        assertEquals(2, items.get(0).numberMatchId);
+        assertEquals("3", match.query);
+        assertEquals(1, match.numberMatchId);
+        assertEquals(1, match.nameMatchId);
+    }
+
+    @SmallTest
+    public void testNameToNumber() {
+        T9Search.initT9Map(getContext().getResources());
+        char[] buffer = new char[32];
+        int length = T9Search.nameToNumber("John Smith", buffer);
+        assertEquals("5646076484", new String(buffer, 0, length));
+        length = T9Search.nameToNumber("\u00c9lodie", buffer);
+        assertEquals("356343", new String(buffer, 0, length));
+    }
+
+    @SmallTest
+    public void testRemoveNonDigits() {
+        assertEquals("+15551234#", T9Search.removeNonDigits("+1 (555) 123-4#"));
+        String clean = "5551234";
+        assertSame(clean, T9Search.removeNonDigits(clean));
+    }
+
+    @LargeTest
+    public void testNormalizationThroughput() {
+        T9Search.initT9Map(getContext().getResources());
+        String[] t9Array = getContext().getResources().getStringArray(R.array.t9_map);
+        char[][] map = new char[t9Array.length][];
+        for (int i = 0; i < t9Array.length; i++) {
+            map[i] = t9Array[i].toCharArray();
+        }
+
+        String[] names = buildNames(BENCHMARK_NAMES);
+        char[] buffer = new char[64];
+
+        // Warm up both paths before measuring
+        for (String name : names) {
+            assertEquals(name, legacyNameToNumber(map, name),
+                    new String(buffer, 0, T9Search.nameToNumber(name, buffer)));
+        }
+
+        long start = System.nanoTime();
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            for (String name : names) {
+                legacyNameToNumber(map, name);
+            }
+        }
+        long legacyTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            for (String name : names) {
+                T9Search.nameToNumber(name, buffer);
+            }
+        }
+        long tableTime = System.nanoTime() - start;
+
+        long total = (long) BENCHMARK_NAMES * BENCHMARK_ROUNDS;
+        Log.i(TAG, "Normalized " + total + " names: " + total * 1000000000L / Math.max(legacyTime, 1)
+                + " names/s nested loop vs " + total * 1000000000L / Math.max(tableTime, 1)
+                + " names/s lookup table");
+    }
+
+    /**
+     * The per-character scan over the T9 map {@link T9Search} used before the
+     * lookup table existed.
+     */
+    private static String legacyNameToNumber(char[][] map, String name) {
+        StringBuilder sb = new StringBuilder();
+        int len = name.length();
+        for (int i = 0; i < len; i++) {
+            boolean matched = false;
+            char ch = Character.toLowerCase(name.charAt(i));
+            for (char[] row : map) {
+                for (char a : row) {
+                    if (ch == a) {
+                        matched = true;
+                        sb.append(row[0]);
+                        break;
+                    }
+                }
+                if (matched) {
+                    break;
+                }
+            }
+            if (!matched) {
+                sb.append(map[0][0]);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String[] buildNames(int count) {
+        final String alphabet = "abcdefghijklmnopqrstuvwxyz\u00e9\u00f1\u00df\u0107\u0148";
+        Random random = new Random(count);
+        String[] names = new String[count];
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.setLength(0);
+            int words = 2 + random.nextInt(2);
+            for (int w = 0; w < words; w++) {
+                if (w > 0) {
+                    sb.append(' ');
+                }
+                int length = 3 + random.nextInt(7);
+                for (int j = 0; j < length; j++) {
+                    char ch = alphabet.charAt(random.nextInt(alphabet.length()));
+                    sb.append(j == 0 ? Character.toUpperCase(ch) : ch);
+                }
+            }
+            names[i] = sb.toString();
+        }
+        return names;
+    }
+
+    /**
+     * The search loop {@link T9Search} used before the index existed.
+     */
+    private static void linearScan(ArrayList<ContactItem> items, String query,
+            ArrayList<ContactItem> names, ArrayList<ContactItem> numbers) {
+        for (ContactItem item : items) {
+            if (item.normalNumber.indexOf(query) != -1) {
+                numbers.add(item);
+            }
+            if (item.normalName.indexOf(query) != -1) {
+                names.add(item);
+            }
+        }
+    }
+
+    static ArrayList<ContactItem> buildCorpus(int count) {
+        Random random = new Random(count);
+        ArrayList<ContactItem> items = new ArrayList<ContactItem>(count);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.setLength(0);
+            appendDigits(sb, random, 3 + random.nextInt(6), '2');
+            sb.append('0');
+            appendDigits(sb, random, 4 + random.nextInt(8), '2');
+            String name = sb.toString();
+
+            sb.setLength(0);
+            appendDigits(sb, random, 10, '0');
+            ContactItem item = item(name, sb.toString());
+            // Distinct ids, so that the comparators give a total order
+            item.id = i + 1;
+            items.add(item);
+        }
+        return items;
+    }
+
+    private static void appendDigits(StringBuilder sb, Random random, int length, char lowest) {
+        for (int j = 0; j < length; j++) {
+            sb.append((char) (lowest + random.nextInt('9' - lowest + 1)));
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentValues;
+import android.content.Entity;
+import android.content.EntityIterator;
+import android.pim.vcard.VCardConfig;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tests for {@link VCardExporter}.
+ *
+ * Running all tests:
+ *
+ *   runtest contacts
+ * or
+ *   adb shell am instrument \
+ *     -w com.android.contacts.tests/android.test.InstrumentationTestRunner
+ */
+public class VCardExporterTests extends AndroidTestCase {
+    private static final String TAG = "VCardExporterTests";
+
+    private static final int BENCHMARK_CONTACTS = 10000;
+
+    /**
+     * Iterates over a list of entities.
+     */
+    private static class ListEntityIterator implements EntityIterator {
+        private final List<Entity> mEntities;
+        private Iterator<Entity> mIterator;
+
+        public ListEntityIterator(List<Entity> entities) {
+            mEntities = entities;
+            mIterator = entities.iterator();
+        }
+
+        public boolean hasNext() {
+            return mIterator.hasNext();
+        }
+
+        public Entity next() {
+            return mIterator.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void reset() {
+            mIterator = mEntities.iterator();
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * Counts the characters written and discards them.
+     */
+    private static class CountingWriter extends Writer {
+        long mCount;
+
+        @Override
+        public void write(char[] buffer, int offset, int count) {
+            mCount += count;
+        }
+
+        @Override
+        public void write(String str) {
+            mCount += str.length();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @SmallTest
+    public void testRawContactsOfOneContactMakeOneVCard() throws IOException {
+        List<Entity> entities = new ArrayList<Entity>();
+        entities.add(createEntity(1, 10, "John Doe", "555-1212", null));
+        entities.add(createEntity(1, 11, null, null, "john@example.com"));
+        entities.add(createEntity(2, 12, "Jane Roe", "555-3434", null));
+
+        VCardExporter exporter = new VCardExporter(VCardConfig.VCARD_TYPE_V30_GENERIC);
+        StringWriter writer = new StringWriter();
+        exporter.export(new ListEntityIterator(entities), writer);
+
+        String output = writer.toString();
+        assertEquals(2, exporter.getExportedCount());
+        assertEquals(2, count(output, "BEGIN:VCARD"));
+        int second = output.indexOf("BEGIN:VCARD", 1);
+        String first = output.substring(0, second);
+        assertTrue(first.contains("John Doe"));
+        assertTrue(first.contains("555-1212"));
+        assertTrue(first.contains("john@example.com"));
+        assertFalse(first.contains("Jane Roe"));
+        assertTrue(output.substring(second).contains("555-3434"));
+        assertFalse(output.substring(second).contains("john@example.com"));
+    }
+
+    @SmallTest
+    public void testCancel() throws IOException {
+        List<Entity> entities = new ArrayList<Entity>();
+        entities.add(createEntity(1, 10, "John Doe", "555-1212", null));
+
+        VCardExporter exporter = new VCardExporter(VCardConfig.VCARD_TYPE_V30_GENERIC);
+        exporter.cancel();
+        StringWriter writer = new StringWriter();
+        exporter.export(new ListEntityIterator(entities), writer);
+
+        assertEquals(0, exporter.getExportedCount());
+        assertEquals("", writer.toString());
+    }
+
+    @LargeTest
+    public void testExportBenchmark() throws IOException {
+        List<Entity> entities = new ArrayList<Entity>();
+        for (int i = 0; i < BENCHMARK_CONTACTS; i++) {
+            entities.add(createEntity(i + 1, i + 1, "Contact " + i, "650-555-" + (1000 + i % 9000),
+                    "contact" + i + "@example.com"));
+        }
+
+        // Warm up
+        VCardExporter exporter = new VCardExporter(VCardConfig.VCARD_TYPE_V30_GENERIC);
+        exporter.export(new ListEntityIterator(entities.subList(0, 100)), new CountingWriter());
+
+        final int[] progressCalls = new int[1];
+        exporter = new VCardExporter(VCardConfig.VCARD_TYPE_V30_GENERIC);
+        exporter.setProgressListener(new VCardExporter.ProgressListener() {
+            public void onProgress(int exportedCount) {
+                progressCalls[0]++;
+            }
+        });
+        CountingWriter counter = new CountingWriter();
+        Writer writer = new BufferedWriter(counter, 64 * 1024);
+        long start = System.nanoTime();
+        exporter.export(new ListEntityIterator(entities), writer);
+        writer.flush();
+        long time = System.nanoTime() - start;
+
+        assertEquals(BENCHMARK_CONTACTS, exporter.getExportedCount());
+        assertTrue(progressCalls[0] < BENCHMARK_CONTACTS);
+        Log.i(TAG, BENCHMARK_CONTACTS + " contacts, " + counter.mCount + " chars in "
+                + time / 1000000 + "ms, " + BENCHMARK_CONTACTS * 1000000000L / Math.max(1, time)
+                + " contacts/s, " + progressCalls[0] + " progress updates");
+    }
+
+    private static Entity createEntity(long contactId, long rawContactId, String name,
+            String number, String email) {
+        ContentValues values = new ContentValues();
+        values.put(RawContacts._ID, rawContactId);
+        values.put(RawContacts.CONTACT_ID, contactId);
+        Entity entity = new Entity(values);
+        if (name != null) {
+            ContentValues data = new ContentValues();
+            data.put(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE);
+            data.put(StructuredName.DISPLAY_NAME, name);
+            entity.addSubValue(Data.CONTENT_URI, data);
+        }
+        if (number != null) {
+            ContentValues data = new ContentValues();
+            data.put(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
+            data.put(Phone.TYPE, Phone.TYPE_MOBILE);
+            data.put(Phone.NUMBER, number);
+            entity.addSubValue(Data.CONTENT_URI, data);
+        }
+        if (email != null) {
+            ContentValues data = new ContentValues();
+            data.put(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE);
+            data.put(Email.TYPE, Email.TYPE_HOME);
+            data.put(Email.DATA, email);
+            entity.addSubValue(Data.CONTENT_URI, data);
+        }
+        return entity;
+    }
+
+    private static int count(String text, String value) {
+        int count = 0;
+        for (int i = text.indexOf(value); i != -1; i = text.indexOf(value, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
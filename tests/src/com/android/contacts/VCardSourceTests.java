@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import com.android.contacts.VCardSource.CountingInputStream;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Tests for the vCard end offsets recorded by {@link VCardSource}, which import
+ * checkpoints resume from.
+ *
+ * Running all tests:
+ *
+ *   runtest contacts
+ * or
+ *   adb shell am instrument \
+ *     -w com.android.contacts.tests/android.test.InstrumentationTestRunner
+ */
+public class VCardSourceTests extends AndroidTestCase {
+    private static final String FIRST =
+            "BEGIN:VCARD\r\nVERSION:2.1\r\nN:Smith;John\r\nTEL:555-1212\r\nEND:VCARD\r\n";
+    private static final String SECOND =
+            "BEGIN:VCARD\r\nVERSION:2.1\r\nN:Doe;Jane\r\nEND:VCARD\r\n";
+    private static final String THIRD =
+            "BEGIN:VCARD\r\nVERSION:2.1\r\nN:Roe;Richard\r\nEND:VCARD\r\n";
+
+    @SmallTest
+    public void testEntryEndsAfterCrlf() throws IOException {
+        CountingInputStream in = readFully(FIRST + SECOND);
+        assertEquals(FIRST.length(), in.getEntryEnd(0));
+        assertEquals(FIRST.length() + SECOND.length(), in.getEntryEnd(1));
+        assertEquals(-1, in.getEntryEnd(2));
+    }
+
+    @SmallTest
+    public void testEntryEndsAfterLf() throws IOException {
+        String first = FIRST.replace("\r\n", "\n");
+        String second = SECOND.replace("\r\n", "\n");
+        CountingInputStream in = readFully(first + second);
+        assertEquals(first.length(), in.getEntryEnd(0));
+        assertEquals(first.length() + second.length(), in.getEntryEnd(1));
+    }
+
+    @SmallTest
+    public void testEntryEndsAfterCrlfReadByteByByte() throws IOException {
+        CountingInputStream in = new CountingInputStream(toStream(FIRST + SECOND));
+        while (in.read() != -1) {
+        }
+        assertEquals(FIRST.length(), in.getEntryEnd(0));
+        assertEquals(FIRST.length() + SECOND.length(), in.getEntryEnd(1));
+    }
+
+    @SmallTest
+    public void testEntryEndsWithoutFinalNewline() throws IOException {
+        String last = "BEGIN:VCARD\r\nN:Doe;Jane\r\nEND:VCARD";
+        CountingInputStream in = readFully(FIRST + last);
+        assertEquals(FIRST.length(), in.getEntryEnd(0));
+        // The end of a line is needed to tell the end of a vCard
+        assertEquals(-1, in.getEntryEnd(1));
+    }
+
+    @SmallTest
+    public void testFoldedLinesDoNotEndEntries() throws IOException {
+        String folded = "BEGIN:VCARD\r\nVERSION:2.1\r\nNOTE:The line below is folded\r\n"
+                + " END:VCARD\r\nEND:VCARD\r\n";
+        CountingInputStream in = readFully(folded + SECOND);
+        assertEquals(folded.length(), in.getEntryEnd(0));
+        assertEquals(folded.length() + SECOND.length(), in.getEntryEnd(1));
+    }
+
+    @SmallTest
+    public void testNestedVCardsDoNotEndEntries() throws IOException {
+        String agent = "BEGIN:VCARD\r\nVERSION:2.1\r\nAGENT:\r\nBEGIN:VCARD\r\nN:Agent\r\n"
+                + "END:VCARD\r\nEND:VCARD\r\n";
+        CountingInputStream in = readFully(agent + SECOND);
+        assertEquals(agent.length(), in.getEntryEnd(0));
+        assertEquals(agent.length() + SECOND.length(), in.getEntryEnd(1));
+    }
+
+    @SmallTest
+    public void testTrailingWhitespaceAndCase() throws IOException {
+        String first = "begin:vcard \r\nN:Smith;John\r\nEnd:VCard\t \r\n";
+        CountingInputStream in = readFully(first + SECOND);
+        assertEquals(first.length(), in.getEntryEnd(0));
+        assertEquals(first.length() + SECOND.length(), in.getEntryEnd(1));
+    }
+
+    @SmallTest
+    public void testLongLinesAreNotMistakenForEnds() throws IOException {
+        String first = "BEGIN:VCARD\r\nNOTE:END:VCARD\r\nEND:VCARD and more text\r\n"
+                + "END:VCARD\r\n";
+        CountingInputStream in = readFully(first);
+        assertEquals(first.length(), in.getEntryEnd(0));
+        assertEquals(-1, in.getEntryEnd(1));
+    }
+
+    @SmallTest
+    public void testSkipToAlignsEntryEnds() throws IOException {
+        VCardSource source = VCardSource.open(toStream(FIRST + SECOND + THIRD),
+                FIRST.length() + SECOND.length() + THIRD.length());
+        try {
+            source.skipTo(FIRST.length());
+            drain(source.getInputStream());
+            assertEquals(FIRST.length() + SECOND.length(), source.getEntryEnd(0));
+            assertEquals(FIRST.length() + SECOND.length() + THIRD.length(),
+                    source.getEntryEnd(1));
+            assertEquals(-1, source.getEntryEnd(2));
+        } finally {
+            source.close();
+        }
+    }
+
+    @SmallTest
+    public void testSkipToBeyondSniffedBytes() throws IOException {
+        // Long enough for the skip to go past the bytes buffered while sniffing
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            text.append(FIRST);
+        }
+        final long offset = 400 * FIRST.length();
+        VCardSource source = VCardSource.open(toStream(text.toString()), text.length());
+        try {
+            source.skipTo(offset);
+            drain(source.getInputStream());
+            assertEquals(offset + FIRST.length(), source.getEntryEnd(0));
+            assertEquals(text.length(), source.getEntryEnd(99));
+            assertEquals(-1, source.getEntryEnd(100));
+        } finally {
+            source.close();
+        }
+    }
+
+    @SmallTest
+    public void testEntryEndsWithoutSkip() throws IOException {
+        VCardSource source = VCardSource.open(toStream(FIRST + SECOND), -1);
+        try {
+            drain(source.getInputStream());
+            assertEquals(FIRST.length(), source.getEntryEnd(0));
+            assertEquals(FIRST.length() + SECOND.length(), source.getEntryEnd(1));
+            assertEquals(FIRST.length() + SECOND.length(), source.getBytesRead());
+        } finally {
+            source.close();
+        }
+    }
+
+    private static CountingInputStream readFully(String text) throws IOException {
+        CountingInputStream in = new CountingInputStream(toStream(text));
+        drain(in);
+        return in;
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        // Small reads, so that line ends fall across them
+        byte[] buffer = new byte[7];
+        while (in.read(buffer, 0, buffer.length) != -1) {
+        }
+    }
+
+    private static InputStream toStream(String text) throws IOException {
+        return new ByteArrayInputStream(text.getBytes("ISO-8859-1"));
+    }
+}